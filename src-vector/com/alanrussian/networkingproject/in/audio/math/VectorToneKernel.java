@@ -0,0 +1,142 @@
+package com.alanrussian.networkingproject.in.audio.math;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Measures tones with the processor's vector instructions, using the incubating Vector API. This is
+ * built separately from the rest of the code since it needs Java 16 or later, and is only loaded by
+ * {@link ToneDetector} if the {@code jdk.incubator.vector} module is added to the runtime.
+ *
+ * <p>Like {@link SoundMath}, partitions are measured two at a time so that each vector of
+ * coefficients is loaded once for both. The sums are kept lane by lane and only added up at the
+ * end, so the magnitudes differ from {@link ScalarToneKernel}'s in their last few bits.
+ */
+class VectorToneKernel implements ToneKernel {
+
+  private static final VectorSpecies<Double> DOUBLE_SPECIES = DoubleVector.SPECIES_PREFERRED;
+  private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+  VectorToneKernel() {
+    if (DOUBLE_SPECIES.length() < 2) {
+      throw new UnsupportedOperationException("No vector instructions for doubles");
+    }
+  }
+
+  @Override
+  public void getMagnitudes(
+      double[] samples,
+      int partitions,
+      double[] cosines,
+      double[] sines,
+      double[] magnitudes) {
+
+    int length = cosines.length;
+    int lanes = DOUBLE_SPECIES.length();
+    int bound = DOUBLE_SPECIES.loopBound(length);
+
+    int partition = 0;
+    for (; partition + 1 < partitions; partition += 2) {
+      int offset = length * partition;
+      int nextOffset = offset + length;
+
+      DoubleVector real = DoubleVector.zero(DOUBLE_SPECIES);
+      DoubleVector imaginary = DoubleVector.zero(DOUBLE_SPECIES);
+      DoubleVector nextReal = DoubleVector.zero(DOUBLE_SPECIES);
+      DoubleVector nextImaginary = DoubleVector.zero(DOUBLE_SPECIES);
+      int i = 0;
+      for (; i < bound; i += lanes) {
+        DoubleVector cosine = DoubleVector.fromArray(DOUBLE_SPECIES, cosines, i);
+        DoubleVector sine = DoubleVector.fromArray(DOUBLE_SPECIES, sines, i);
+        DoubleVector sample = DoubleVector.fromArray(DOUBLE_SPECIES, samples, offset + i);
+        DoubleVector nextSample = DoubleVector.fromArray(DOUBLE_SPECIES, samples, nextOffset + i);
+        real = sample.fma(cosine, real);
+        imaginary = sample.fma(sine, imaginary);
+        nextReal = nextSample.fma(cosine, nextReal);
+        nextImaginary = nextSample.fma(sine, nextImaginary);
+      }
+
+      double realSum = real.reduceLanes(VectorOperators.ADD);
+      double imaginarySum = imaginary.reduceLanes(VectorOperators.ADD);
+      double nextRealSum = nextReal.reduceLanes(VectorOperators.ADD);
+      double nextImaginarySum = nextImaginary.reduceLanes(VectorOperators.ADD);
+      for (; i < length; i++) {
+        double sample = samples[offset + i];
+        double nextSample = samples[nextOffset + i];
+        realSum += sample * cosines[i];
+        imaginarySum += sample * sines[i];
+        nextRealSum += nextSample * cosines[i];
+        nextImaginarySum += nextSample * sines[i];
+      }
+
+      magnitudes[partition] = Math.sqrt(realSum * realSum + imaginarySum * imaginarySum);
+      magnitudes[partition + 1] =
+          Math.sqrt(nextRealSum * nextRealSum + nextImaginarySum * nextImaginarySum);
+    }
+
+    if (partition < partitions) {
+      magnitudes[partition] = SoundMath.getMagnitude(samples, length * partition, cosines, sines);
+    }
+  }
+
+  @Override
+  public void getMagnitudes(
+      float[] samples,
+      int partitions,
+      float[] cosines,
+      float[] sines,
+      double[] magnitudes) {
+
+    int length = cosines.length;
+    int lanes = FLOAT_SPECIES.length();
+    int bound = FLOAT_SPECIES.loopBound(length);
+
+    int partition = 0;
+    for (; partition + 1 < partitions; partition += 2) {
+      int offset = length * partition;
+      int nextOffset = offset + length;
+
+      FloatVector real = FloatVector.zero(FLOAT_SPECIES);
+      FloatVector imaginary = FloatVector.zero(FLOAT_SPECIES);
+      FloatVector nextReal = FloatVector.zero(FLOAT_SPECIES);
+      FloatVector nextImaginary = FloatVector.zero(FLOAT_SPECIES);
+      int i = 0;
+      for (; i < bound; i += lanes) {
+        FloatVector cosine = FloatVector.fromArray(FLOAT_SPECIES, cosines, i);
+        FloatVector sine = FloatVector.fromArray(FLOAT_SPECIES, sines, i);
+        FloatVector sample = FloatVector.fromArray(FLOAT_SPECIES, samples, offset + i);
+        FloatVector nextSample = FloatVector.fromArray(FLOAT_SPECIES, samples, nextOffset + i);
+        real = sample.fma(cosine, real);
+        imaginary = sample.fma(sine, imaginary);
+        nextReal = nextSample.fma(cosine, nextReal);
+        nextImaginary = nextSample.fma(sine, nextImaginary);
+      }
+
+      float realSum = real.reduceLanes(VectorOperators.ADD);
+      float imaginarySum = imaginary.reduceLanes(VectorOperators.ADD);
+      float nextRealSum = nextReal.reduceLanes(VectorOperators.ADD);
+      float nextImaginarySum = nextImaginary.reduceLanes(VectorOperators.ADD);
+      for (; i < length; i++) {
+        float sample = samples[offset + i];
+        float nextSample = samples[nextOffset + i];
+        realSum += sample * cosines[i];
+        imaginarySum += sample * sines[i];
+        nextRealSum += nextSample * cosines[i];
+        nextImaginarySum += nextSample * sines[i];
+      }
+
+      magnitudes[partition] = getMagnitude(realSum, imaginarySum);
+      magnitudes[partition + 1] = getMagnitude(nextRealSum, nextImaginarySum);
+    }
+
+    if (partition < partitions) {
+      magnitudes[partition] = SoundMath.getMagnitude(samples, length * partition, cosines, sines);
+    }
+  }
+
+  private static double getMagnitude(float real, float imaginary) {
+    return Math.sqrt((double) real * real + (double) imaginary * imaginary);
+  }
+}
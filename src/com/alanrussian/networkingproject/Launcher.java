@@ -1,19 +1,67 @@
 package com.alanrussian.networkingproject;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.common.RoutingTable;
+import com.alanrussian.networkingproject.common.SharedExecutors;
 import com.alanrussian.networkingproject.in.Input;
 import com.alanrussian.networkingproject.in.InputRedirecter;
 import com.alanrussian.networkingproject.out.Output;
 import com.alanrussian.networkingproject.out.OutputRedirector;
 import com.alanrussian.networkingproject.out.OutputRedirector.Listener.InputError;
+import com.alanrussian.networkingproject.stream.SoundStreams;
+import com.alanrussian.networkingproject.stream.StreamPipe;
 
 /**
  * Launches the application.
  */
 public class Launcher {
   
+  /**
+   * The argument that turns on relaying.
+   */
+  private static final String RELAY_ARGUMENT = "--relay";
+  
+  /**
+   * The argument followed by "=", the address of a computer that is out of range, ":" and the
+   * address of the neighbor to send to it through. It may be given more than once.
+   */
+  private static final String ROUTE_ARGUMENT = "--route";
+  
+  /**
+   * The argument that turns on echo cancellation, optionally followed by "=" and the fewest
+   * millaseconds of echo delay. The rest of the delay is found from the first frame sent, so this
+   * is only needed for a sound card that is slower than most.
+   */
+  private static final String ECHO_CANCELLATION_ARGUMENT = "--cancel-echo";
+  
+  /**
+   * The argument followed by "=" and the computer ID to use, instead of asking for it.
+   */
+  private static final String COMPUTER_ID_ARGUMENT = "--id";
+  
+  /**
+   * The argument followed by "=" and the address of a computer that turns on binary pipe mode,
+   * where the bytes of standard input are streamed to the computer and the bytes that it streams
+   * back are written to standard output.
+   */
+  private static final String PIPE_ARGUMENT = "--pipe";
+  
+  /**
+   * The argument that turns on processing sound in single precision.
+   */
+  private static final String SINGLE_PRECISION_ARGUMENT = "--single-precision";
+  
   private final OutputRedirector.Listener outputRedirectorListener =
       new OutputRedirector.Listener() {
         @Override
@@ -22,24 +70,271 @@ public class Launcher {
         }
       };
   
-  public Launcher() {
-    int computerId = requestComputerId();
+  private final StreamPipe.Listener streamPipeListener = new StreamPipe.Listener() {
+    @Override
+    public void onInputSent(long bytes) {
+      console.printf("Sent %d bytes.%n", bytes);
+    }
+
+    @Override
+    public void onOutputWritten(long bytes) {
+      console.printf("Received %d bytes.%n", bytes);
+    }
+
+    @Override
+    public void onError(IOException e) {
+      console.println("Pipe stopped: " + e.getMessage());
+    }
+  };
+  
+  private final LinkProfile profile;
+  
+  /**
+   * Where messages for the user are printed. This is standard error in pipe mode, where standard
+   * output carries the piped bytes.
+   */
+  private final PrintStream console;
+  
+  /**
+   * @param computerId the computer ID to use, or a negative number to ask for one
+   * @param staticRoutes the neighbor to send through for each computer that is out of range
+   * @param echoDelay the fewest millaseconds of echo delay, or a negative number to leave echo
+   *     cancellation disabled
+   * @param pipePeer the address of the computer to pipe standard input and output to, or a
+   *     negative number to read and print text messages instead
+   */
+  public Launcher(
+      LinkProfile profile,
+      int computerId,
+      boolean isRelayEnabled,
+      Map<Integer, Integer> staticRoutes,
+      long echoDelay,
+      int pipePeer,
+      boolean isSinglePrecisionEnabled) {
+
+    this.profile = profile;
+    this.console = (pipePeer >= 0) ? System.err : System.out;
+
+    if (computerId < 0) {
+      computerId = requestComputerId();
+    }
     
-    System.out.println();
+    console.println();
+    console.println("Using the " + profile + " profile.");
     
-    Input in = Input.getInstance(computerId);
-    Output out = Output.getInstance(computerId);
-
-    new InputRedirecter(in, System.out);
-    new OutputRedirector(out, System.in, outputRedirectorListener);
+    RoutingTable routingTable = RoutingTable.getInstance(computerId);
+    for (Map.Entry<Integer, Integer> route : staticRoutes.entrySet()) {
+      routingTable.setStaticRoute(route.getKey(), route.getValue());
+      console.printf("Sending to %d through %d.%n", route.getKey(), route.getValue());
+    }
+    
+    final Input in = Input.getInstance(computerId, profile);
+    final Output out = Output.getInstance(computerId, profile);
+    
+    in.setRelayEnabled(isRelayEnabled);
+    if (isRelayEnabled) {
+      console.println("Relaying messages between other computers.");
+    }
+    
+    if (echoDelay >= 0) {
+      in.setEchoDelay(echoDelay);
+      in.setEchoCancellationEnabled(true);
+      console.println("Cancelling echo, so messages are received while sending.");
+    }
+    
+    in.setSinglePrecisionEnabled(isSinglePrecisionEnabled);
+    if (isSinglePrecisionEnabled && (echoDelay < 0)) {
+      console.println("Processing sound in single precision.");
+    }
+    
+    if (pipePeer >= 0) {
+      new StreamPipe(
+          new SoundStreams(in, out),
+          pipePeer,
+          new FileInputStream(FileDescriptor.in),
+          new FileOutputStream(FileDescriptor.out),
+          streamPipeListener);
+    } else {
+      new InputRedirecter(in, System.out);
+      new OutputRedirector(out, System.in, outputRedirectorListener);
+    }
+    
+    // Release the audio lines and shared threads on exit.
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        out.close();
+        in.close();
+        SharedExecutors.shutdown();
+      }
+    }));
+    
+    out.whenReady().thenRun(new Runnable() {
+      @Override
+      public void run() {
+        console.println("Ready.");
+      }
+    });
+    
+    if (pipePeer >= 0) {
+      console.printf("Now piping standard input and output to %d.%n", pipePeer);
+      return;
+    }
 
     System.out.println("Now reading and broadcasting. Please send messages like this:");
     System.out.println("2: Message to computer 2.");
+    System.out.println("*: Message to everyone.");
+    System.out.println("!2: Urgent message to computer 2, sent before other messages.");
     System.out.println();
   }
 
+  /**
+   * @param args optionally {@value #RELAY_ARGUMENT} to relay messages between other computers,
+   *     {@value #ROUTE_ARGUMENT}=DESTINATION:NEIGHBOR to reach a computer that is out of range
+   *     through a neighbor, {@value #ECHO_CANCELLATION_ARGUMENT} to receive while sending, {@value
+   *     #COMPUTER_ID_ARGUMENT}=ID to not be asked for the computer ID, {@value
+   *     #PIPE_ARGUMENT}=ADDRESS to pipe bytes instead of text, which needs the computer ID to be
+   *     given, {@value #SINGLE_PRECISION_ARGUMENT} to process sound faster, and the name of a
+   *     {@link LinkProfile} preset or the path of a properties file to load one from
+   */
   public static void main(String[] args) {
-    new Launcher();
+    LinkProfile profile = LinkProfile.BALANCED;
+    boolean isRelayEnabled = false;
+    Map<Integer, Integer> staticRoutes = new LinkedHashMap<>();
+    long echoDelay = -1;
+    int computerId = -1;
+    int pipePeer = -1;
+    boolean isSinglePrecisionEnabled = false;
+
+    for (String arg : args) {
+      if (arg.equals(RELAY_ARGUMENT)) {
+        isRelayEnabled = true;
+        continue;
+      }
+      
+      if (arg.startsWith(ROUTE_ARGUMENT + "=")) {
+        String route = arg.substring(ROUTE_ARGUMENT.length() + 1);
+        if (!route.matches("\\d{1,9}:\\d{1,9}")) {
+          System.err.println(
+              ROUTE_ARGUMENT + " must be followed by \"=\" and two numbers with \":\" between"
+              + " them: " + arg);
+          System.exit(1);
+          return;
+        }
+
+        String[] addresses = route.split(":");
+        staticRoutes.put(Integer.parseInt(addresses[0]), Integer.parseInt(addresses[1]));
+        continue;
+      }
+      
+      if (arg.equals(SINGLE_PRECISION_ARGUMENT)) {
+        isSinglePrecisionEnabled = true;
+        continue;
+      }
+      
+      if (arg.equals(ECHO_CANCELLATION_ARGUMENT)) {
+        echoDelay = 0;
+        continue;
+      }
+      
+      if (arg.startsWith(ECHO_CANCELLATION_ARGUMENT + "=")) {
+        echoDelay = parseNumberArgument(arg, ECHO_CANCELLATION_ARGUMENT);
+        continue;
+      }
+      
+      if (arg.startsWith(COMPUTER_ID_ARGUMENT + "=")) {
+        computerId = (int) parseNumberArgument(arg, COMPUTER_ID_ARGUMENT);
+        continue;
+      }
+      
+      if (arg.startsWith(PIPE_ARGUMENT + "=")) {
+        pipePeer = (int) parseNumberArgument(arg, PIPE_ARGUMENT);
+        continue;
+      }
+      
+      profile = LinkProfile.getPreset(arg);
+
+      if (profile == null) {
+        try {
+          profile = LinkProfile.load(Paths.get(arg));
+        } catch (IOException | IllegalArgumentException e) {
+          System.err.println("Could not load link profile " + arg + ": " + e.getMessage());
+          System.exit(1);
+          return;
+        }
+      }
+    }
+
+    if ((computerId >= 0) && !profile.isComputerId(computerId)) {
+      System.err.printf(
+          "Computer ID must be between %d and %d.%n",
+          Constants.SMALLEST_COMPUTER_ID,
+          profile.getLargestComputerId());
+      System.exit(1);
+      return;
+    }
+    
+    for (Map.Entry<Integer, Integer> route : staticRoutes.entrySet()) {
+      if (!profile.isComputerId(route.getKey())
+          || !profile.isComputerId(route.getValue())
+          || (route.getKey() == computerId)
+          || (route.getValue() == computerId)) {
+        System.err.printf(
+            "Routes must be between computer IDs from %d to %d that are not this computer.%n",
+            Constants.SMALLEST_COMPUTER_ID,
+            profile.getLargestComputerId());
+        System.exit(1);
+        return;
+      }
+    }
+    
+    if (pipePeer >= 0) {
+      if (computerId < 0) {
+        System.err.println(
+            "Pipe mode reads bytes from standard input, so the computer ID must be given with "
+            + COMPUTER_ID_ARGUMENT + "=ID.");
+        System.exit(1);
+        return;
+      }
+      
+      if ((pipePeer == computerId) || !profile.isComputerId(pipePeer)) {
+        System.err.printf(
+            "Pipe peer must be a computer ID between %d and %d and not this computer.%n",
+            Constants.SMALLEST_COMPUTER_ID,
+            profile.getLargestComputerId());
+        System.exit(1);
+        return;
+      }
+    }
+
+    new Launcher(
+        profile,
+        computerId,
+        isRelayEnabled,
+        staticRoutes,
+        echoDelay,
+        pipePeer,
+        isSinglePrecisionEnabled);
+  }
+  
+  /**
+   * Returns the number after the "=" of {@code arg}, exiting if it is not a number of at least
+   * zero.
+   */
+  private static long parseNumberArgument(String arg, String name) {
+    long number = -1;
+    try {
+      number = Long.parseLong(arg.substring(name.length() + 1));
+    } catch (NumberFormatException e) {
+      // Handled below.
+    }
+    
+    if ((number < 0) || (number > Integer.MAX_VALUE)) {
+      System.err.println(name + " must be followed by \"=\" and a number: " + arg);
+      System.exit(1);
+    }
+    
+    return number;
   }
   
   /**
@@ -60,12 +355,11 @@ public class Launcher {
       System.out.printf(
           "Please enter a unique computer ID [%d-%d] ",
           Constants.SMALLEST_COMPUTER_ID,
-          Constants.LARGEST_COMPUTER_ID);
+          profile.getLargestComputerId());
 
       int response = scanner.nextInt();
 
-      if ((response >= Constants.SMALLEST_COMPUTER_ID)
-          && (response <= Constants.LARGEST_COMPUTER_ID)) {
+      if (profile.isComputerId(response)) {
         return response;
       }
     }
@@ -75,22 +369,28 @@ public class Launcher {
     switch (error) {
       case FORMAT:
         System.out.printf(
-            "Input must be in the format: \"[%d-%d]: Message\".%n",
+            "Input must be in the format: \"[!][%d-%d or *]: Message\".%n",
             Constants.SMALLEST_COMPUTER_ID,
-            Constants.LARGEST_COMPUTER_ID);
+            profile.getBroadcastAddress());
         break;
     
       case OUT_OF_RANGE_TARGET:
         System.out.printf(
-            "Target computer ID must be between %d and %d.%n",
+            "Target address must be between %d and %d.%n",
             Constants.SMALLEST_COMPUTER_ID,
-            Constants.LARGEST_COMPUTER_ID);
+            profile.getBroadcastAddress());
         break;
         
       case MESSAGE_TO_SELF:
         System.out.println("Cannot send message to self.");
         break;
         
+      case MESSAGE_TOO_LONG:
+        System.out.printf(
+            "Message cannot be longer than %d bytes.%n",
+            OutputRedirector.MAX_LINE_LENGTH);
+        break;
+        
       default:
         throw new IllegalStateException(
             "Unhandled " + InputError.class.getSimpleName() + " received.");
@@ -2,9 +2,6 @@ package com.alanrussian.networkingproject.common;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
-
-import com.google.common.collect.ImmutableList;
 
 /**
  * Global constants shared between input and output.
@@ -17,75 +14,139 @@ public class Constants {
   public static final Charset CHARSET = StandardCharsets.UTF_8;
   
   /**
-   * Sound frequency at which to transfer off bits. Be sure to avoid harmonics with {@link
-   * #FREQUENCY_ON}. Also, it should be a multiple of 50.
+   * The number of bits containing the size.
+   */
+  public static final int AUDIO_FRAME_SIZE_BITS = 3;
+
+  /**
+   * The maximum size in bytes of the data part of a frame.
    */
-  public static final double FREQUENCY_OFF = 1_000.0;
+  public static final int AUDIO_FRAME_MAX_DATA_LENGTH =
+      ((int) Math.pow(2, AUDIO_FRAME_SIZE_BITS)) - 1;
   
   /**
-   * Sound frequency at which to transfer on bits. Be sure to avoid harmonics with {@link
-   * #FREQUENCY_OFF}. Also, it should be a multiple of 50.
+   * The number of bits containing the sequence number of a data frame. ACK frames use the same
+   * number of bits for the first sequence number that they acknowledge.
    */
-  public static final double FREQUENCY_ON = FREQUENCY_OFF + 400.0;
+  public static final int AUDIO_FRAME_SEQUENCE_BITS = 3;
   
   /**
-   * Offset of off and on frequency to mix into off and on wave. For example, if you put 50 here and
-   * 10,000 in FREQUENCY_OFF, there will be two sine waves mixed together at 10,000 and 10,050 hz.
-   * Make sure this is a multiple of 50 and avoid harmonics.
+   * The number of distinct frame sequence numbers.
    */
-  public static final double FREQUENCY_SECOND_OFFSET = 100.0;
+  public static final int AUDIO_FRAME_SEQUENCES = (int) Math.pow(2, AUDIO_FRAME_SEQUENCE_BITS);
   
   /**
-   * The sample rate to encode and to decode at.
+   * The most data frames that a sender may have waiting for an ACK at once. This is also the number
+   * of frames that a single ACK frame can acknowledge. It is half the sequence numbers so that a
+   * repeated frame can always be told from a new one.
    */
-  public static final int SAMPLE_RATE = 48_000;
+  public static final int AUDIO_FRAME_WINDOW = AUDIO_FRAME_SEQUENCES / 2;
   
   /**
-   * Millaseconds that each bit is transfered for.
+   * The number of bits containing the session of a data frame that starts the sequence numbers
+   * over. A sender picks a new session whenever it starts over, so that its repeated start frames
+   * can be told from the start frames of a restarted sender.
    */
-  public static final int BIT_DURATION = SAMPLE_RATE / 256;
+  public static final int AUDIO_FRAME_SESSION_BITS = 4;
   
   /**
-   * The start of an audio frame.
+   * The number of distinct sessions.
    */
-  public static final List<Boolean> AUDIO_FRAME_START =
-      ImmutableList.of(true, true, true, false, false, false);
+  public static final int AUDIO_FRAME_SESSIONS = (int) Math.pow(2, AUDIO_FRAME_SESSION_BITS);
   
   /**
-   * The end of an audio frame.
+   * Flag in the first byte of the data part of a frame marking the frame as a segment of a stream
+   * rather than a fragment of a message.
    */
-  public static final List<Boolean> AUDIO_FRAME_END =
-      ImmutableList.of(false, false, false, true, true, true);
+  public static final int PAYLOAD_STREAM_FLAG = 0x80;
   
   /**
-   * The checksum of an audio frame.
+   * The number of bytes at the start of the data part of a stream segment's frame that describe
+   * the rest of it. This holds {@link #PAYLOAD_STREAM_FLAG} and the sequence number.
    */
-  public static final List<Boolean> AUDIO_FRAME_CHECKSUM =
-      ImmutableList.of(true, false, true, false);
+  public static final int STREAM_HEADER_LENGTH = 1;
   
   /**
-   * The number of bits containing the size.
+   * The number of distinct stream sequence numbers, which are stored in the bits of the header
+   * below {@link #PAYLOAD_STREAM_FLAG}.
    */
-  public static final int AUDIO_FRAME_SIZE_BITS = 3;
-
+  public static final int STREAM_SEQUENCE_NUMBERS = PAYLOAD_STREAM_FLAG;
+  
   /**
-   * The maximum size in bytes of the data part of a frame.
+   * The maximum number of bytes of a stream that fit in a frame after the header.
    */
-  public static final int AUDIO_FRAME_MAX_DATA_LENGTH =
-      ((int) Math.pow(2, AUDIO_FRAME_SIZE_BITS)) - 1;
+  public static final int STREAM_MAX_SEGMENT_LENGTH =
+      AUDIO_FRAME_MAX_DATA_LENGTH - STREAM_HEADER_LENGTH;
   
   /**
-   * The number of bits containing the computer ID.
+   * The number of bytes at the start of the data part of a message fragment's frame that describe
+   * the rest of it. The first holds {@link #PAYLOAD_LAST_FRAGMENT_FLAG}, {@link
+   * #PAYLOAD_COMPRESSED_FLAG}, {@link #PAYLOAD_ROUTED_FLAG} and the message ID and the second holds
+   * the index of the fragment within the message.
    */
-  public static final int COMPUTER_ID_BITS = 3;
+  public static final int MESSAGE_HEADER_LENGTH = 2;
   
   /**
-   * The smallest possible computer ID.
+   * Flag in the first byte of a message fragment's header marking it as the message's last.
    */
-  public static final int SMALLEST_COMPUTER_ID = 0;
+  public static final int PAYLOAD_LAST_FRAGMENT_FLAG = 0x40;
+  
+  /**
+   * Flag in the first byte of a message fragment's header marking the message as compressed with
+   * {@link MessageCompression}. Every fragment of a compressed message has it.
+   */
+  public static final int PAYLOAD_COMPRESSED_FLAG = 0x20;
+  
+  /**
+   * Flag in the first byte of a message fragment's header marking the message as routed, meaning
+   * that it starts with a route header of {@link #ROUTE_HEADER_LENGTH} bytes. Every fragment of a
+   * routed message has it.
+   */
+  public static final int PAYLOAD_ROUTED_FLAG = 0x10;
   
   /**
-   * The largest possible computer ID.
+   * The number of distinct message IDs, which are stored in the bits of the first header byte
+   * below {@link #PAYLOAD_ROUTED_FLAG}.
    */
-  public static final int LARGEST_COMPUTER_ID = ((int) Math.pow(2, COMPUTER_ID_BITS)) - 1;
+  public static final int MESSAGE_IDS = PAYLOAD_ROUTED_FLAG;
+  
+  /**
+   * The maximum number of fragments in a message.
+   */
+  public static final int MESSAGE_MAX_FRAGMENTS = 256;
+  
+  /**
+   * The maximum number of bytes of a message that fit in a frame after the header.
+   */
+  public static final int MESSAGE_MAX_FRAGMENT_LENGTH =
+      AUDIO_FRAME_MAX_DATA_LENGTH - MESSAGE_HEADER_LENGTH;
+  
+  /**
+   * The maximum number of bytes in a message. This applies to a message before it is compressed.
+   */
+  public static final int MESSAGE_MAX_LENGTH = MESSAGE_MAX_FRAGMENTS * MESSAGE_MAX_FRAGMENT_LENGTH;
+  
+  /**
+   * The number of bytes at the start of a routed message that describe its route. These hold the
+   * computer that sent it first, the computer that it is for, the number of times that it may still
+   * be relayed and an ID that tells it apart from the origin's other routed messages.
+   */
+  public static final int ROUTE_HEADER_LENGTH = 4;
+  
+  /**
+   * The number of times that a routed message may be relayed on its way to its destination.
+   */
+  public static final int ROUTE_HOP_LIMIT = 3;
+  
+  /**
+   * The number of distinct routed message IDs.
+   */
+  public static final int ROUTED_MESSAGE_IDS = 256;
+  
+  /**
+   * The smallest possible computer ID. The largest depends on the address space of the {@link
+   * LinkProfile}.
+   */
+  public static final int SMALLEST_COMPUTER_ID = 0;
+  
 }
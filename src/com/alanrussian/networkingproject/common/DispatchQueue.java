@@ -0,0 +1,110 @@
+package com.alanrussian.networkingproject.common;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs tasks one at a time in the order they were queued, on the shared workers. This hands work
+ * that may block, such as calling listeners, off a thread that must not block, such as the one
+ * processing sound, without giving every queue a thread of its own.
+ *
+ * <p>The queue is bounded and never makes the thread queuing a task wait. A task that does not fit
+ * is rejected instead.
+ */
+public class DispatchQueue implements Executor {
+
+  private final int capacity;
+
+  /**
+   * Guarded by {@code this}.
+   */
+  private final Queue<Runnable> tasks;
+
+  /**
+   * Whether a worker is running the tasks. Guarded by {@code this}.
+   */
+  private boolean isRunning;
+
+  private final Runnable runTasksRunnable = new Runnable() {
+    @Override
+    public void run() {
+      runTasks();
+    }
+  };
+
+  /**
+   * @param capacity the most tasks that may wait to run
+   */
+  public DispatchQueue(int capacity) {
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+
+    this.capacity = capacity;
+    this.tasks = new ArrayDeque<>();
+  }
+
+  /**
+   * Queues {@code task} to run after every task queued before it.
+   *
+   * @throws RejectedExecutionException if the queue is full
+   */
+  @Override
+  public void execute(Runnable task) {
+    synchronized (this) {
+      if (tasks.size() >= capacity) {
+        throw new RejectedExecutionException("Dispatch queue is full");
+      }
+
+      tasks.add(task);
+
+      if (isRunning) {
+        return;
+      }
+      isRunning = true;
+    }
+
+    try {
+      SharedExecutors.getInstance().getWorkers().execute(runTasksRunnable);
+    } catch (RejectedExecutionException e) {
+      // The workers have been shut down, so the tasks will never run.
+      synchronized (this) {
+        tasks.clear();
+        isRunning = false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns whether {@code count} tasks queued now would fit. A thread that is the only one queuing
+   * tasks can check this first to hold back work it cannot afford to have rejected.
+   */
+  public synchronized boolean hasRoomFor(int count) {
+    return tasks.size() + count <= capacity;
+  }
+
+  /**
+   * Runs tasks until there are none left. A task that throws does not stop the ones after it.
+   */
+  private void runTasks() {
+    while (true) {
+      Runnable task;
+      synchronized (this) {
+        task = tasks.poll();
+        if (task == null) {
+          isRunning = false;
+          return;
+        }
+      }
+
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        System.err.println("A dispatched task failed: " + e);
+      }
+    }
+  }
+}
@@ -0,0 +1,661 @@
+package com.alanrussian.networkingproject.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * How sound is used to carry frames over a link: the sound format, the tones, how long each bit
+ * lasts, the fixed patterns in every frame and the address space. Both ends of a link must use the
+ * same profile.
+ *
+ * <p>A profile can give the link a second band of tones, which makes it full duplex: frames from a
+ * computer to a higher address use the forward band and frames to a lower one use the reverse band,
+ * so a computer can hear replies while it sends. Frames to groups always use the forward band.
+ *
+ * <p>Addresses take {@link #getAddressBits} bits. The highest address is the broadcast address,
+ * which every computer receives. Below it are {@link #getMulticastGroups} group addresses, which
+ * computers receive once they join them, and the rest are computer IDs.
+ *
+ * <p>Profiles are immutable. They are built in code with a {@link Builder}, taken from the named
+ * presets or loaded from a properties file, so that different profiles can be tried without
+ * recompiling and used side by side in one process.
+ */
+public class LinkProfile {
+
+  /**
+   * A set of tones that frames are sent on.
+   */
+  public enum Band {
+    FORWARD,
+    REVERSE
+  }
+
+  /**
+   * Slow bits on low tones, for noisy rooms and distant devices.
+   */
+  public static final LinkProfile ROBUST = newBuilder()
+      .setName("robust")
+      .setFrequencyOff(800.0)
+      .setFrequencyOn(1_300.0)
+      .setBitDuration(375)
+      .setFrameStartThreshold(0.65)
+      .build();
+
+  /**
+   * The tones and bit duration that were used before there were profiles, which suit most rooms.
+   * Addresses take 4 bits instead of the original 3, so that there is room for the broadcast
+   * address, 3 multicast groups and computer IDs up to 11.
+   */
+  public static final LinkProfile BALANCED = newBuilder().setName("balanced").build();
+
+  /**
+   * Fast bits on widely spaced tones, for devices close to each other in a quiet room.
+   */
+  public static final LinkProfile FAST = newBuilder()
+      .setName("fast")
+      .setFrequencyOff(2_000.0)
+      .setFrequencyOn(3_000.0)
+      .setFrequencySecondOffset(200.0)
+      .setBitDuration(94)
+      .setFrameStartThreshold(0.85)
+      .build();
+
+  /**
+   * The balanced profile with a reverse band, for computers that should hear replies while they
+   * send. The reverse tones avoid the harmonics of the forward ones.
+   */
+  public static final LinkProfile DUPLEX = BALANCED.toBuilder()
+      .setName("duplex")
+      .setReverseFrequencies(1_700.0, 2_500.0)
+      .build();
+
+  /**
+   * The most bits an address may have. Addresses must fit in the keys used to tell sources apart.
+   */
+  private static final int MAX_ADDRESS_BITS = 8;
+
+  private static final Map<String, LinkProfile> PRESETS = ImmutableMap.of(
+      ROBUST.getName(), ROBUST,
+      BALANCED.getName(), BALANCED,
+      FAST.getName(), FAST,
+      DUPLEX.getName(), DUPLEX);
+
+  /**
+   * Builds a {@link LinkProfile}. Every value starts out as in {@link LinkProfile#BALANCED}.
+   */
+  public static class Builder {
+
+    private String name = "custom";
+    private SoundFormat soundFormat = SoundFormat.PCM_16_BIT;
+    private double frequencyOff = 1_000.0;
+    private double frequencyOn = 1_400.0;
+    private double frequencySecondOffset = 100.0;
+    private int bitDuration = 187;
+    private List<Boolean> frameStart = ImmutableList.of(
+        true, true, true, true, true, false, false, true, true, false, true, false, true);
+    private double frameStartThreshold = 0.75;
+    private List<Boolean> frameEnd = ImmutableList.of(false, false, false, true, true, true);
+    private List<Boolean> frameChecksum = ImmutableList.of(true, false, true, false);
+    private double reverseFrequencyOff;
+    private double reverseFrequencyOn;
+    private int addressBits = 4;
+    private int multicastGroups = 3;
+
+    private Builder() {}
+
+    public Builder setName(String name) {
+      this.name = name;
+      return this;
+    }
+
+    public Builder setSoundFormat(SoundFormat soundFormat) {
+      this.soundFormat = soundFormat;
+      return this;
+    }
+
+    /**
+     * Sets the sound frequency at which to transfer off bits. Be sure to avoid harmonics with the
+     * on frequency. Also, it should be a multiple of 50.
+     */
+    public Builder setFrequencyOff(double frequencyOff) {
+      this.frequencyOff = frequencyOff;
+      return this;
+    }
+
+    /**
+     * Sets the sound frequency at which to transfer on bits. Be sure to avoid harmonics with the
+     * off frequency. Also, it should be a multiple of 50.
+     */
+    public Builder setFrequencyOn(double frequencyOn) {
+      this.frequencyOn = frequencyOn;
+      return this;
+    }
+
+    /**
+     * Sets the offset of the off and on frequencies to mix into the off and on waves. For example,
+     * with 50 here and 10,000 as the off frequency, there will be two sine waves mixed together at
+     * 10,000 and 10,050 hz. Make sure this is a multiple of 50 and avoid harmonics.
+     */
+    public Builder setFrequencySecondOffset(double frequencySecondOffset) {
+      this.frequencySecondOffset = frequencySecondOffset;
+      return this;
+    }
+
+    /**
+     * Sets the millaseconds that each bit is transfered for.
+     */
+    public Builder setBitDuration(int bitDuration) {
+      this.bitDuration = bitDuration;
+      return this;
+    }
+
+    /**
+     * Sets the off and on frequencies of the reverse band, which makes the link full duplex, or
+     * zero for both to only use one band. Like the forward ones, these get {@link
+     * #setFrequencySecondOffset} mixed in and should avoid harmonics with every other frequency.
+     */
+    public Builder setReverseFrequencies(double reverseFrequencyOff, double reverseFrequencyOn) {
+      this.reverseFrequencyOff = reverseFrequencyOff;
+      this.reverseFrequencyOn = reverseFrequencyOn;
+      return this;
+    }
+
+    /**
+     * Sets the bits that start every frame. These should correlate poorly with any shifted copy of
+     * themselves and with Manchester encoded data.
+     */
+    public Builder setFrameStart(List<Boolean> frameStart) {
+      this.frameStart = ImmutableList.copyOf(frameStart);
+      return this;
+    }
+
+    /**
+     * Sets the correlation between the last bits received and the frame start, from -1.0 to 1.0,
+     * at or above which a frame is considered to have started.
+     */
+    public Builder setFrameStartThreshold(double frameStartThreshold) {
+      this.frameStartThreshold = frameStartThreshold;
+      return this;
+    }
+
+    public Builder setFrameEnd(List<Boolean> frameEnd) {
+      this.frameEnd = ImmutableList.copyOf(frameEnd);
+      return this;
+    }
+
+    public Builder setFrameChecksum(List<Boolean> frameChecksum) {
+      this.frameChecksum = ImmutableList.copyOf(frameChecksum);
+      return this;
+    }
+
+    /**
+     * Sets the number of bits in the source and target addresses of every frame.
+     */
+    public Builder setAddressBits(int addressBits) {
+      this.addressBits = addressBits;
+      return this;
+    }
+
+    /**
+     * Sets the number of addresses below the broadcast address that are used for multicast groups
+     * rather than for computers.
+     */
+    public Builder setMulticastGroups(int multicastGroups) {
+      this.multicastGroups = multicastGroups;
+      return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if any of the values cannot work
+     */
+    public LinkProfile build() {
+      Preconditions.checkArgument(frequencyOff > 0.0, "Off frequency must be positive");
+      Preconditions.checkArgument(frequencyOn > 0.0, "On frequency must be positive");
+      Preconditions.checkArgument(frequencyOff != frequencyOn, "Frequencies must differ");
+      Preconditions.checkArgument(
+          Math.max(frequencyOff, frequencyOn) + frequencySecondOffset
+              < soundFormat.getSampleRate() / 2,
+          "Frequencies must be below half the sample rate");
+      Preconditions.checkArgument(
+          (reverseFrequencyOff == 0.0) == (reverseFrequencyOn == 0.0),
+          "Reverse frequencies must both be set or both be zero");
+      if (reverseFrequencyOff != 0.0) {
+        Preconditions.checkArgument(
+            (reverseFrequencyOff > 0.0) && (reverseFrequencyOn > 0.0),
+            "Reverse frequencies must be positive");
+        Preconditions.checkArgument(
+            ImmutableSet.of(frequencyOff, frequencyOn, reverseFrequencyOff, reverseFrequencyOn)
+                .size() == 4,
+            "Reverse frequencies must differ from each other and from the forward ones");
+        Preconditions.checkArgument(
+            Math.max(reverseFrequencyOff, reverseFrequencyOn) + frequencySecondOffset
+                < soundFormat.getSampleRate() / 2,
+            "Reverse frequencies must be below half the sample rate");
+      }
+      Preconditions.checkArgument(bitDuration > 0, "Bit duration must be positive");
+      Preconditions.checkArgument(!frameStart.isEmpty(), "Frame start cannot be empty");
+      Preconditions.checkArgument(
+          frameStartThreshold <= 1.0,
+          "Frame start threshold cannot be above 1.0");
+      Preconditions.checkArgument(!frameEnd.isEmpty(), "Frame end cannot be empty");
+      Preconditions.checkArgument(
+          (addressBits >= 2) && (addressBits <= MAX_ADDRESS_BITS),
+          "Addresses must have 2 to %s bits",
+          MAX_ADDRESS_BITS);
+      Preconditions.checkArgument(multicastGroups >= 0, "Multicast groups cannot be negative");
+      Preconditions.checkArgument(
+          multicastGroups <= (1 << addressBits) - 3,
+          "Multicast groups must leave at least two computer IDs");
+
+      return new LinkProfile(this);
+    }
+  }
+
+  private final String name;
+  private final SoundFormat soundFormat;
+  private final double frequencyOff;
+  private final double frequencyOn;
+  private final double frequencySecondOffset;
+  private final int bitDuration;
+  private final List<Boolean> frameStart;
+  private final double frameStartThreshold;
+  private final List<Boolean> frameEnd;
+  private final List<Boolean> frameChecksum;
+  private final double reverseFrequencyOff;
+  private final double reverseFrequencyOn;
+  private final int addressBits;
+  private final int multicastGroups;
+
+  private LinkProfile(Builder builder) {
+    this.name = builder.name;
+    this.soundFormat = builder.soundFormat;
+    this.frequencyOff = builder.frequencyOff;
+    this.frequencyOn = builder.frequencyOn;
+    this.frequencySecondOffset = builder.frequencySecondOffset;
+    this.bitDuration = builder.bitDuration;
+    this.frameStart = builder.frameStart;
+    this.frameStartThreshold = builder.frameStartThreshold;
+    this.frameEnd = builder.frameEnd;
+    this.frameChecksum = builder.frameChecksum;
+    this.reverseFrequencyOff = builder.reverseFrequencyOff;
+    this.reverseFrequencyOn = builder.reverseFrequencyOn;
+    this.addressBits = builder.addressBits;
+    this.multicastGroups = builder.multicastGroups;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns a builder that starts out with the values of this profile.
+   */
+  public Builder toBuilder() {
+    return newBuilder()
+        .setName(name)
+        .setSoundFormat(soundFormat)
+        .setFrequencyOff(frequencyOff)
+        .setFrequencyOn(frequencyOn)
+        .setFrequencySecondOffset(frequencySecondOffset)
+        .setReverseFrequencies(reverseFrequencyOff, reverseFrequencyOn)
+        .setBitDuration(bitDuration)
+        .setFrameStart(frameStart)
+        .setFrameStartThreshold(frameStartThreshold)
+        .setFrameEnd(frameEnd)
+        .setFrameChecksum(frameChecksum)
+        .setAddressBits(addressBits)
+        .setMulticastGroups(multicastGroups);
+  }
+
+  /**
+   * Returns the preset called {@code name}, ignoring case, or null if there is none.
+   */
+  public static LinkProfile getPreset(String name) {
+    return PRESETS.get(name.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Loads a profile from a properties file. The file may name a {@code preset} to start from and
+   * then override any of its values:
+   *
+   * <pre>
+   * preset = robust
+   * sampleRate = 44100
+   * sampleSizeInBits = 16
+   * bigEndian = false
+   * frequencyOff = 900
+   * frequencyOn = 1400
+   * frequencySecondOffset = 100
+   * reverseFrequencyOff = 1700
+   * reverseFrequencyOn = 2500
+   * bitDuration = 250
+   * frameStart = 1111100110101
+   * frameStartThreshold = 0.7
+   * frameEnd = 000111
+   * frameChecksum = 1010
+   * addressBits = 5
+   * multicastGroups = 4
+   * </pre>
+   *
+   * @throws IllegalArgumentException if a value is not valid
+   */
+  public static LinkProfile load(Path path) throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(path, Constants.CHARSET)) {
+      properties.load(reader);
+    }
+
+    return fromProperties(properties, path.getFileName().toString());
+  }
+
+  /**
+   * Loads a profile from a properties stream. See {@link #load(Path)} for the format.
+   *
+   * @throws IllegalArgumentException if a value is not valid
+   */
+  public static LinkProfile load(InputStream stream, String name) throws IOException {
+    Properties properties = new Properties();
+    properties.load(stream);
+
+    return fromProperties(properties, name);
+  }
+
+  private static LinkProfile fromProperties(Properties properties, String name) {
+    LinkProfile base = BALANCED;
+    String presetName = properties.getProperty("preset");
+    if (presetName != null) {
+      base = getPreset(presetName.trim());
+      Preconditions.checkArgument(base != null, "Unknown preset: %s", presetName);
+    }
+
+    SoundFormat format = base.getSoundFormat();
+
+    return base.toBuilder()
+        .setName(name)
+        .setSoundFormat(new SoundFormat(
+            getInt(properties, "sampleRate", format.getSampleRate()),
+            getInt(properties, "sampleSizeInBits", format.getSampleSizeInBits()),
+            getBoolean(properties, "bigEndian", format.isBigEndian())))
+        .setFrequencyOff(getDouble(properties, "frequencyOff", base.getFrequencyOff()))
+        .setFrequencyOn(getDouble(properties, "frequencyOn", base.getFrequencyOn()))
+        .setFrequencySecondOffset(
+            getDouble(properties, "frequencySecondOffset", base.getFrequencySecondOffset()))
+        .setReverseFrequencies(
+            getDouble(properties, "reverseFrequencyOff", base.reverseFrequencyOff),
+            getDouble(properties, "reverseFrequencyOn", base.reverseFrequencyOn))
+        .setBitDuration(getInt(properties, "bitDuration", base.getBitDuration()))
+        .setFrameStart(getBits(properties, "frameStart", base.getFrameStart()))
+        .setFrameStartThreshold(
+            getDouble(properties, "frameStartThreshold", base.getFrameStartThreshold()))
+        .setFrameEnd(getBits(properties, "frameEnd", base.getFrameEnd()))
+        .setFrameChecksum(getBits(properties, "frameChecksum", base.getFrameChecksum()))
+        .setAddressBits(getInt(properties, "addressBits", base.getAddressBits()))
+        .setMulticastGroups(getInt(properties, "multicastGroups", base.getMulticastGroups()))
+        .build();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public SoundFormat getSoundFormat() {
+    return soundFormat;
+  }
+
+  public double getFrequencyOff() {
+    return frequencyOff;
+  }
+
+  public double getFrequencyOn() {
+    return frequencyOn;
+  }
+
+  public double getFrequencySecondOffset() {
+    return frequencySecondOffset;
+  }
+
+  /**
+   * Returns the off frequency of {@code band}.
+   */
+  public double getFrequencyOff(Band band) {
+    return (band == Band.FORWARD) ? frequencyOff : reverseFrequencyOff;
+  }
+
+  /**
+   * Returns the on frequency of {@code band}.
+   */
+  public double getFrequencyOn(Band band) {
+    return (band == Band.FORWARD) ? frequencyOn : reverseFrequencyOn;
+  }
+
+  /**
+   * Returns whether the link has a reverse band.
+   */
+  public boolean isFullDuplex() {
+    return reverseFrequencyOff != 0.0;
+  }
+
+  /**
+   * Returns the bands that frames are sent on.
+   */
+  public List<Band> getBands() {
+    return isFullDuplex()
+        ? ImmutableList.of(Band.FORWARD, Band.REVERSE)
+        : ImmutableList.of(Band.FORWARD);
+  }
+
+  /**
+   * Returns the band that frames from {@code source} to {@code target} are sent on. Group addresses
+   * are above every computer ID, so frames to them are always sent on the forward band.
+   */
+  public Band getBand(int source, int target) {
+    return (isFullDuplex() && (target < source)) ? Band.REVERSE : Band.FORWARD;
+  }
+
+  /**
+   * Returns the millaseconds that each bit is transfered for.
+   */
+  public int getBitDuration() {
+    return bitDuration;
+  }
+
+  /**
+   * Returns the start of an audio frame.
+   */
+  public List<Boolean> getFrameStart() {
+    return frameStart;
+  }
+
+  /**
+   * Returns the correlation between the last bits received and {@link #getFrameStart}, from -1.0
+   * to 1.0, at or above which a frame is considered to have started.
+   */
+  public double getFrameStartThreshold() {
+    return frameStartThreshold;
+  }
+
+  /**
+   * Returns the end of an audio frame.
+   */
+  public List<Boolean> getFrameEnd() {
+    return frameEnd;
+  }
+
+  /**
+   * Returns the checksum of an audio frame.
+   */
+  public List<Boolean> getFrameChecksum() {
+    return frameChecksum;
+  }
+
+  /**
+   * Returns the number of bits in the source and target addresses of every frame.
+   */
+  public int getAddressBits() {
+    return addressBits;
+  }
+
+  /**
+   * Returns the number of multicast group addresses.
+   */
+  public int getMulticastGroups() {
+    return multicastGroups;
+  }
+
+  /**
+   * Returns the largest address that is a computer ID. Computer IDs start at {@link
+   * Constants#SMALLEST_COMPUTER_ID}.
+   */
+  public int getLargestComputerId() {
+    return getBroadcastAddress() - multicastGroups - 1;
+  }
+
+  /**
+   * Returns the address that every computer receives frames for.
+   */
+  public int getBroadcastAddress() {
+    return (1 << addressBits) - 1;
+  }
+
+  /**
+   * Returns the address of multicast group {@code group}, counting from zero.
+   */
+  public int getMulticastAddress(int group) {
+    Preconditions.checkElementIndex(group, multicastGroups, "Multicast group");
+
+    return getLargestComputerId() + 1 + group;
+  }
+
+  /**
+   * Returns whether {@code address} is a computer ID, as opposed to a group address.
+   */
+  public boolean isComputerId(int address) {
+    return (address >= Constants.SMALLEST_COMPUTER_ID) && (address <= getLargestComputerId());
+  }
+
+  /**
+   * Returns whether {@code address} is the broadcast address or a multicast group address. Frames
+   * to these are received by several computers and are not acknowledged.
+   */
+  public boolean isGroupAddress(int address) {
+    return (address > getLargestComputerId()) && (address <= getBroadcastAddress());
+  }
+
+  /**
+   * Returns the millaseconds that a receiver waits after a data frame for more data frames before
+   * sending an ACK for all of them. This must be longer than a sender takes to find the line clear
+   * again and send the start of its next frame.
+   */
+  public long getAckDelay() {
+    return (long) bitDuration * (frameStart.size() + 7 /* finding the line clear */);
+  }
+
+  /**
+   * Returns the time it takes to send the largest possible data frame, which carries an ACK (in
+   * millaseconds).
+   */
+  public long getFrameMaxDuration() {
+    return (long) bitDuration * (frameStart.size()
+        + (addressBits * 2 /* Manchester encoded */ * 2 /* source and target */)
+        + (Constants.AUDIO_FRAME_SIZE_BITS * 2 /* Manchester encoded */)
+        + (Constants.AUDIO_FRAME_SEQUENCE_BITS * 2 /* Manchester encoded */)
+        + (1 /* start flag */ * 2 /* Manchester encoded */)
+        + (Constants.AUDIO_FRAME_SESSION_BITS * 2 /* Manchester encoded */)
+        + (1 /* ACK flag */ * 2 /* Manchester encoded */)
+        + (Constants.AUDIO_FRAME_SEQUENCE_BITS * 2 /* Manchester encoded */)
+        + (Constants.AUDIO_FRAME_WINDOW * 2 /* Manchester encoded */)
+        + (Constants.AUDIO_FRAME_MAX_DATA_LENGTH
+            * 8 /* bits in byte */
+            * 2 /* Manchester encoded */)
+        + frameChecksum.size()
+        + frameEnd.size());
+  }
+
+  /**
+   * Returns the time it takes to send an ACK frame (in millaseconds).
+   */
+  public long getAckFrameDuration() {
+    return (long) bitDuration * (frameStart.size()
+        + (addressBits * 2 /* Manchester encoded */ * 2 /* source and target */)
+        + (Constants.AUDIO_FRAME_SIZE_BITS * 2 /* Manchester encoded */)
+        + (Constants.AUDIO_FRAME_SEQUENCE_BITS * 2 /* Manchester encoded */)
+        + (Constants.AUDIO_FRAME_WINDOW * 2 /* Manchester encoded */)
+        + frameEnd.size());
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s (%s, %.0f/%.0f Hz, %d ms bits)",
+        name,
+        soundFormat,
+        frequencyOff,
+        frequencyOn,
+        bitDuration);
+  }
+
+  private static int getInt(Properties properties, String key, int defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad " + key + ": " + value, e);
+    }
+  }
+
+  private static double getDouble(Properties properties, String key, double defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad " + key + ": " + value, e);
+    }
+  }
+
+  private static boolean getBoolean(Properties properties, String key, boolean defaultValue) {
+    String value = properties.getProperty(key);
+    return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+  }
+
+  /**
+   * Reads a pattern of bits written as ones and zeros.
+   */
+  private static List<Boolean> getBits(
+      Properties properties,
+      String key,
+      List<Boolean> defaultValue) {
+
+    String value = properties.getProperty(key);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    ImmutableList.Builder<Boolean> bits = ImmutableList.builder();
+    for (char c : value.trim().toCharArray()) {
+      Preconditions.checkArgument((c == '0') || (c == '1'), "Bad %s: %s", key, value);
+      bits.add(c == '1');
+    }
+
+    return bits.build();
+  }
+}
@@ -0,0 +1,109 @@
+package com.alanrussian.networkingproject.common;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses messages before they are sent and decompresses them once they are received.
+ *
+ * <p>Messages are mostly short lines of text, which deflate cannot shrink on its own since it has
+ * nothing to refer back to. Both sides therefore start from the same preset {@link #DICTIONARY} of
+ * common text so that even a single line can refer back to it. Raw deflate is used so that no
+ * header or checksum is added.
+ */
+public final class MessageCompression {
+
+  /**
+   * Text that compressed messages can refer back to. Deflate spends fewer bits on nearby matches,
+   * so the most common text is at the end.
+   */
+  private static final byte[] DICTIONARY = (
+      "http://https://www..com.org.net/index.html"
+      + "0123456789 10 100 Monday Tuesday Wednesday Thursday Friday Saturday Sunday "
+      + "January February March April May June July August September October November December "
+      + "error warning failed success received sending message network computer sound audio "
+      + "because people should would could there their about which other these after first "
+      + "please thanks thank you sorry okay yes no maybe tomorrow today tonight later again "
+      + "what when where why how who is are was were will can do does did have has had not "
+      + "The This That What When Where Why How Hello Hi Hey OK Yes No I'm I'll I've don't "
+      + "can't it's that's you're we're they're and the for with from this that your you "
+      + "of to in on at is it be as by or an a I \n. , ? ! ").getBytes(Constants.CHARSET);
+
+  private MessageCompression() {}
+
+  /**
+   * Compresses {@code data}.
+   *
+   * @return the compressed data, or null if compressing does not make it any shorter
+   */
+  public static byte[] compress(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true /* nowrap */);
+    try {
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(data);
+      deflater.finish();
+
+      // Anything at least as long as the data is of no use.
+      byte[] buffer = new byte[data.length];
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == buffer.length) {
+          return null;
+        }
+
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+
+      byte[] compressedData = new byte[length];
+      System.arraycopy(buffer, 0, compressedData, 0, length);
+
+      return compressedData;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Decompresses data from {@link #compress}.
+   *
+   * @throws DataFormatException if {@code data} is not valid or complete or would decompress to
+   *     more than {@link Constants#MESSAGE_MAX_LENGTH} bytes
+   */
+  public static byte[] decompress(byte[] data) throws DataFormatException {
+    Inflater inflater = new Inflater(true /* nowrap */);
+    try {
+      inflater.setDictionary(DICTIONARY);
+
+      // Raw inflate needs one extra byte past the end of the data to finish.
+      byte[] input = new byte[data.length + 1];
+      System.arraycopy(data, 0, input, 0, data.length);
+      inflater.setInput(input);
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] buffer = new byte[256];
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if ((length == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("Compressed data is incomplete");
+        }
+
+        output.write(buffer, 0, length);
+        if (output.size() > Constants.MESSAGE_MAX_LENGTH) {
+          throw new DataFormatException("Compressed data is too long");
+        }
+      }
+
+      // The extra byte is zero, which can itself end the data when some was cut off. It is only
+      // left over if the data ended on its own.
+      if (inflater.getRemaining() != 1) {
+        throw new DataFormatException("Compressed data is incomplete");
+      }
+
+      return output.toByteArray();
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.alanrussian.networkingproject.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Knows which neighbor to hand a message to so that it reaches a computer that is out of range.
+ *
+ * <p>Routes are either set statically or learned from overheard traffic: a computer that we hear
+ * any frame from is a neighbor, and a computer that a neighbor is heard acknowledging, or whose
+ * routed message we receive through a neighbor, can be reached through that neighbor. Learned
+ * routes are forgotten after {@link #ROUTE_TIMEOUT} so that computers that move are found again. A
+ * computer without a route is sent to directly.
+ *
+ * <p>There is one table per computer ID, which its {@code Input} and {@code Output} share.
+ */
+public class RoutingTable {
+
+  /**
+   * Nanoseconds after a learned route was last heard that it is forgotten.
+   */
+  private static final long ROUTE_TIMEOUT = TimeUnit.MINUTES.toNanos(10);
+
+  private static class Route {
+
+    private final int nextHop;
+    private final boolean isStatic;
+    private final long lastHeardTime;
+
+    private Route(int nextHop, boolean isStatic, long lastHeardTime) {
+      this.nextHop = nextHop;
+      this.isStatic = isStatic;
+      this.lastHeardTime = lastHeardTime;
+    }
+  }
+
+  private static Map<Integer, RoutingTable> computerIdsToInstance = new HashMap<>();
+
+  private final Map<Integer, Route> destinationsToRoute;
+
+  private RoutingTable() {
+    this.destinationsToRoute = new HashMap<>();
+  }
+
+  /**
+   * Returns the routing table of the computer with the given ID, creating it if there is none. The
+   * table is kept when the computer's {@code Input} or {@code Output} is closed, so routes that
+   * were set or learned outlive them.
+   */
+  public static synchronized RoutingTable getInstance(int computerId) {
+    RoutingTable instance = computerIdsToInstance.get(computerId);
+    if (instance == null) {
+      instance = new RoutingTable();
+      computerIdsToInstance.put(computerId, instance);
+    }
+
+    return instance;
+  }
+
+  /**
+   * Sends everything to {@code destination} through {@code nextHop} until the route is removed.
+   * Learned routes never replace a static one.
+   */
+  public synchronized void setStaticRoute(int destination, int nextHop) {
+    destinationsToRoute.put(destination, new Route(nextHop, true /* isStatic */, 0));
+  }
+
+  /**
+   * Removes the route to {@code destination}, whether it was set or learned.
+   */
+  public synchronized void removeRoute(int destination) {
+    destinationsToRoute.remove(destination);
+  }
+
+  /**
+   * Handles a frame being heard from {@code neighbor}, which means it can be sent to directly.
+   */
+  public synchronized void handleNeighborHeard(int neighbor) {
+    Route route = destinationsToRoute.get(neighbor);
+    if ((route != null) && route.isStatic) {
+      return;
+    }
+
+    destinationsToRoute.put(neighbor, new Route(neighbor, false /* isStatic */, System.nanoTime()));
+  }
+
+  /**
+   * Handles hearing that {@code origin} can be reached through {@code neighbor}, either because a
+   * routed message from {@code origin} arrived through {@code neighbor} or because {@code
+   * neighbor} was heard acknowledging frames from {@code origin}. This is only used as the route to
+   * {@code origin} if there is no better one, which is a static route or a recent direct one.
+   */
+  public synchronized void handleRouteHeard(int origin, int neighbor) {
+    if (origin == neighbor) {
+      handleNeighborHeard(neighbor);
+      return;
+    }
+
+    long now = System.nanoTime();
+
+    Route route = destinationsToRoute.get(origin);
+    if ((route != null)
+        && (route.isStatic || ((route.nextHop == origin) && !isExpired(route, now)))) {
+      return;
+    }
+
+    destinationsToRoute.put(origin, new Route(neighbor, false /* isStatic */, now));
+  }
+
+  /**
+   * Returns the neighbor to send to so that a message reaches {@code destination}. This is {@code
+   * destination} itself if it is a neighbor or no route to it is known.
+   */
+  public synchronized int getNextHop(int destination) {
+    Route route = destinationsToRoute.get(destination);
+    if (route == null) {
+      return destination;
+    }
+
+    if (isExpired(route, System.nanoTime())) {
+      destinationsToRoute.remove(destination);
+      return destination;
+    }
+
+    return route.nextHop;
+  }
+
+  private static boolean isExpired(Route route, long now) {
+    return !route.isStatic && (now - route.lastHeardTime > ROUTE_TIMEOUT);
+  }
+}
@@ -0,0 +1,99 @@
+package com.alanrussian.networkingproject.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Singleton holding the threads shared by every input and output in the process. Timers run on one
+ * shared scheduler and blocking work, such as playing a frame or reading a stream, runs on a shared
+ * pool of workers that reuses idle threads. This way the number of threads does not grow with the
+ * number of computer IDs hosted in a process.
+ *
+ * <p>Recorded sound is processed on a separate scheduler whose threads run at the highest priority,
+ * so that raising them does not also raise every timer.
+ *
+ * <p>Once shut down, the threads are gone for good, which is why components may keep the executors
+ * they are given.
+ */
+public class SharedExecutors {
+  
+  private static SharedExecutors instance = null;
+  private static boolean isShutDown = false;
+  
+  private final ScheduledExecutorService scheduler;
+  private final ScheduledExecutorService soundScheduler;
+  private final ExecutorService workers;
+  
+  private SharedExecutors() {
+    this.scheduler = Executors.newScheduledThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder().setNameFormat("scheduler-%d").build());
+    this.soundScheduler = Executors.newScheduledThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("sound-%d")
+            .setPriority(Thread.MAX_PRIORITY)
+            .build());
+    this.workers = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("worker-%d").build());
+  }
+  
+  /**
+   * Returns the instance of the SharedExecutors class.
+   *
+   * @throws RejectedExecutionException if the threads have been shut down
+   */
+  public static synchronized SharedExecutors getInstance() {
+    if (isShutDown) {
+      throw new RejectedExecutionException("Shared executors have been shut down");
+    }
+    
+    if (instance == null) {
+      instance = new SharedExecutors();
+    }
+    
+    return instance;
+  }
+  
+  /**
+   * Returns the scheduler for short, periodic or delayed tasks. Tasks must not block.
+   */
+  public ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+  
+  /**
+   * Returns the scheduler for processing recorded sound, which runs at the highest priority. Tasks
+   * must not block.
+   */
+  public ScheduledExecutorService getSoundScheduler() {
+    return soundScheduler;
+  }
+  
+  /**
+   * Returns the executor for tasks that may block, such as audio I/O.
+   */
+  public ExecutorService getWorkers() {
+    return workers;
+  }
+  
+  /**
+   * Stops all shared threads once their current tasks finish. Inputs and outputs should be closed
+   * first, since none can be used afterwards.
+   */
+  public static synchronized void shutdown() {
+    isShutDown = true;
+
+    if (instance == null) {
+      return;
+    }
+    
+    instance.scheduler.shutdown();
+    instance.soundScheduler.shutdown();
+    instance.workers.shutdown();
+  }
+}
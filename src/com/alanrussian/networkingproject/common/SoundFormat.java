@@ -0,0 +1,173 @@
+package com.alanrussian.networkingproject.common;
+
+import javax.sound.sampled.AudioFormat;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The format of the sound that is played and recorded, which is signed mono PCM at a given sample
+ * rate, bit depth and byte order.
+ *
+ * <p>Waves are synthesized and analyzed as samples from -1.0 to 1.0. This converts them to and
+ * from the bytes of the audio lines, with a separate loop for each supported bit depth and byte
+ * order so that converting a whole partition does not decide the format for every sample.
+ */
+public class SoundFormat {
+
+  /**
+   * The sample rate of the preset formats.
+   */
+  private static final int DEFAULT_SAMPLE_RATE = 48_000;
+
+  /**
+   * 8-bit samples at 48 kHz, which is what every device supports.
+   */
+  public static final SoundFormat PCM_8_BIT =
+      new SoundFormat(DEFAULT_SAMPLE_RATE, 8 /* sampleSizeInBits */, true /* isBigEndian */);
+
+  /**
+   * 16-bit little-endian samples at 48 kHz. The lower quantization noise lets weaker signals be
+   * decoded.
+   */
+  public static final SoundFormat PCM_16_BIT =
+      new SoundFormat(DEFAULT_SAMPLE_RATE, 16 /* sampleSizeInBits */, false /* isBigEndian */);
+
+  private static final double MAX_8_BIT = Byte.MAX_VALUE;
+  private static final double MAX_16_BIT = Short.MAX_VALUE;
+
+  private final int sampleRate;
+  private final int sampleSizeInBits;
+  private final boolean isBigEndian;
+
+  /**
+   * @param sampleSizeInBits either 8 or 16
+   * @param isBigEndian the byte order of 16-bit samples
+   */
+  public SoundFormat(int sampleRate, int sampleSizeInBits, boolean isBigEndian) {
+    Preconditions.checkArgument(sampleRate > 0, "Sample rate must be positive");
+    Preconditions.checkArgument(
+        (sampleSizeInBits == 8) || (sampleSizeInBits == 16),
+        "Samples must be 8 or 16 bits");
+
+    this.sampleRate = sampleRate;
+    this.sampleSizeInBits = sampleSizeInBits;
+    this.isBigEndian = isBigEndian;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getSampleSizeInBits() {
+    return sampleSizeInBits;
+  }
+
+  public boolean isBigEndian() {
+    return isBigEndian;
+  }
+
+  /**
+   * Returns the number of bytes in each sample.
+   */
+  public int getFrameSize() {
+    return sampleSizeInBits / 8;
+  }
+
+  /**
+   * Returns the number of samples that last {@code duration} millaseconds.
+   */
+  public int getSampleCount(long duration) {
+    return (int) (sampleRate * duration / 1000);
+  }
+
+  /**
+   * Returns the format to open audio lines with.
+   */
+  public AudioFormat toAudioFormat() {
+    return new AudioFormat(
+        sampleRate,
+        sampleSizeInBits,
+        1 /* channels */,
+        true /* signed */,
+        isBigEndian);
+  }
+
+  /**
+   * Converts samples from -1.0 to 1.0 into bytes in this format.
+   */
+  public byte[] toBytes(double[] samples) {
+    byte[] data = new byte[samples.length * getFrameSize()];
+
+    if (sampleSizeInBits == 8) {
+      for (int i = 0; i < samples.length; i++) {
+        data[i] = (byte) (samples[i] * MAX_8_BIT);
+      }
+    } else if (isBigEndian) {
+      for (int i = 0, j = 0; i < samples.length; i++, j += 2) {
+        int sample = (int) (samples[i] * MAX_16_BIT);
+        data[j] = (byte) (sample >> 8);
+        data[j + 1] = (byte) sample;
+      }
+    } else {
+      for (int i = 0, j = 0; i < samples.length; i++, j += 2) {
+        int sample = (int) (samples[i] * MAX_16_BIT);
+        data[j] = (byte) sample;
+        data[j + 1] = (byte) (sample >> 8);
+      }
+    }
+
+    return data;
+  }
+
+  /**
+   * Converts {@code count} samples in this format, starting at byte {@code offset} of {@code data},
+   * into {@code samples} from -1.0 to 1.0.
+   */
+  public void toSamples(byte[] data, int offset, double[] samples, int count) {
+    if (sampleSizeInBits == 8) {
+      for (int i = 0; i < count; i++) {
+        samples[i] = data[offset + i] / MAX_8_BIT;
+      }
+    } else if (isBigEndian) {
+      for (int i = 0, j = offset; i < count; i++, j += 2) {
+        samples[i] = (short) ((data[j] << 8) | (data[j + 1] & 0xFF)) / MAX_16_BIT;
+      }
+    } else {
+      for (int i = 0, j = offset; i < count; i++, j += 2) {
+        samples[i] = (short) ((data[j + 1] << 8) | (data[j] & 0xFF)) / MAX_16_BIT;
+      }
+    }
+  }
+
+  /**
+   * Converts {@code count} samples in this format, starting at byte {@code offset} of {@code data},
+   * into single precision {@code samples} from -1.0 to 1.0.
+   */
+  public void toSamples(byte[] data, int offset, float[] samples, int count) {
+    if (sampleSizeInBits == 8) {
+      float max = (float) MAX_8_BIT;
+      for (int i = 0; i < count; i++) {
+        samples[i] = data[offset + i] / max;
+      }
+    } else if (isBigEndian) {
+      float max = (float) MAX_16_BIT;
+      for (int i = 0, j = offset; i < count; i++, j += 2) {
+        samples[i] = (short) ((data[j] << 8) | (data[j + 1] & 0xFF)) / max;
+      }
+    } else {
+      float max = (float) MAX_16_BIT;
+      for (int i = 0, j = offset; i < count; i++, j += 2) {
+        samples[i] = (short) ((data[j + 1] << 8) | (data[j] & 0xFF)) / max;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d Hz, %d-bit%s",
+        sampleRate,
+        sampleSizeInBits,
+        (sampleSizeInBits == 8) ? "" : (isBigEndian ? " big-endian" : " little-endian"));
+  }
+}
@@ -1,13 +1,22 @@
 package com.alanrussian.networkingproject.in;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
 
 import javax.sound.sampled.LineUnavailableException;
 
+import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.common.MessageCompression;
+import com.alanrussian.networkingproject.common.RoutingTable;
 import com.alanrussian.networkingproject.in.audio.AudioDecoder;
+import com.alanrussian.networkingproject.out.Output;
+import com.google.common.base.Preconditions;
 
 /**
  * Singleton that reads data broadcasted from an {@link Output}.
@@ -15,27 +24,55 @@ import com.alanrussian.networkingproject.in.audio.AudioDecoder;
 public class Input {
   
   /**
-   * Listener for changes to {@link Input}.
-   *
+   * Listener for changes to {@link Input}. Listeners are called one at a time on a worker, in the
+   * order that frames arrive, and may be added and removed from any thread.
    */
   public interface Listener {
 
     /**
-     * Triggered when new data is received.
+     * Triggered when a whole message is received.
      */
     void onDataReceived(int source, byte[] data);
     
     /**
      * Triggered when an ACK is received.
+     *
+     * @param acknowledgedSequences a mask with bit {@code n} set if the data frame with sequence
+     *     number {@code n} was acknowledged
      */
-    void onAckReceived(int source);
+    void onAckReceived(int source, int acknowledgedSequences);
+  }
+  
+  /**
+   * Listener for segments of streams sent to this {@link Input}.
+   */
+  public interface StreamListener {
+    
+    /**
+     * Triggered when a stream segment is received. Segments may be repeated if an ACK was lost.
+     */
+    void onStreamSegmentReceived(int source, int sequence, byte[] data);
+    
+    /**
+     * Triggered when {@code source} starts over after it restarted or gave up on data, before any
+     * segment that it sends after. Segments of a stream in progress may have been lost.
+     */
+    void onStreamReset(int source);
   }
   
   private static Map<Integer, Input> computerIdsToInstance = new HashMap<>();
   
+  private final int computerId;
+  private final LinkProfile profile;
   private final AudioDecoder audioDecoder;
+  private final MessageReassembler messageReassembler;
+  private final RoutingTable routingTable;
+  private final RoutedMessageFilter routedMessageFilter;
   private final List<Listener> listeners;
   
+  private volatile StreamListener streamListener;
+  private volatile boolean isRelayEnabled;
+  
   private final AudioDecoder.Listener decoderListener = new AudioDecoder.Listener() {
     @Override
     public void onDataReceived(int source, byte[] data) {
@@ -43,16 +80,36 @@ public class Input {
     }
     
     @Override
-    public void onAckReceived(int source) {
-      handleAckReceived(source);
+    public void onAckReceived(int source, int acknowledgedSequences) {
+      handleAckReceived(source, acknowledgedSequences);
+    }
+    
+    @Override
+    public void onFrameHeard(int source) {
+      routingTable.handleNeighborHeard(source);
+    }
+    
+    @Override
+    public void onAckHeard(int source, int target) {
+      routingTable.handleRouteHeard(target, source);
+    }
+    
+    @Override
+    public void onSourceRestarted(int source) {
+      handleSourceRestarted(source);
     }
   };
   
-  private Input(int computerId) {
-    this.listeners = new ArrayList<>();
+  private Input(int computerId, LinkProfile profile) {
+    this.computerId = computerId;
+    this.profile = profile;
+    this.listeners = new CopyOnWriteArrayList<>();
+    this.messageReassembler = new MessageReassembler();
+    this.routingTable = RoutingTable.getInstance(computerId);
+    this.routedMessageFilter = new RoutedMessageFilter();
 
     try {
-      this.audioDecoder = new AudioDecoder(computerId, decoderListener);
+      this.audioDecoder = new AudioDecoder(computerId, profile, decoderListener);
     } catch (LineUnavailableException e) {
       // TODO: Handle error.
       e.printStackTrace();
@@ -62,20 +119,120 @@ public class Input {
   }
   
   /**
-   * Returns the instance of the Input class for the given ID.
+   * Returns the instance of the Input class for the given ID, creating it with {@link
+   * LinkProfile#BALANCED} if there is none.
+   */
+  public static synchronized Input getInstance(int computerId) {
+    Input instance = computerIdsToInstance.get(computerId);
+    if (instance == null) {
+      instance = getInstance(computerId, LinkProfile.BALANCED);
+    }
+
+    return instance;
+  }
+  
+  /**
+   * Returns the instance of the Input class for the given ID, creating it with {@code profile} if
+   * there is none.
+   *
+   * @throws IllegalStateException if the instance already uses a different profile
    */
-  public static Input getInstance(int computerId) {
-    if (!computerIdsToInstance.containsKey(computerId)) {
-      computerIdsToInstance.put(computerId, new Input(computerId));
+  public static synchronized Input getInstance(int computerId, LinkProfile profile) {
+    Input instance = computerIdsToInstance.get(computerId);
+    if (instance == null) {
+      instance = new Input(computerId, profile);
+      computerIdsToInstance.put(computerId, instance);
     }
+    
+    Preconditions.checkState(
+        instance.profile == profile,
+        "Computer %s already uses the %s profile",
+        computerId,
+        instance.profile.getName());
 
-    return computerIdsToInstance.get(computerId);
+    return instance;
+  }
+  
+  /**
+   * Returns the profile of the link that this uses.
+   */
+  public LinkProfile getProfile() {
+    return profile;
+  }
+  
+  /**
+   * Returns a future that completes once sound is being processed. Frames that start before then
+   * are still received.
+   */
+  public CompletableFuture<Void> whenReady() {
+    return audioDecoder.whenReady();
   }
   
   public void addListener(Listener listener) {
     listeners.add(listener);
   }
   
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+  
+  /**
+   * Sets the listener that receives stream segments, or null to drop them.
+   */
+  public void setStreamListener(StreamListener streamListener) {
+    this.streamListener = streamListener;
+  }
+  
+  /**
+   * Stops listening and releases the microphone. A later call to {@link #getInstance} creates a new
+   * instance.
+   */
+  public void close() {
+    synchronized (Input.class) {
+      computerIdsToInstance.remove(computerId);
+    }
+
+    audioDecoder.close();
+  }
+  
+  /**
+   * Sets whether routed messages for other computers are relayed towards them. This is disabled by
+   * default. Routed messages for this computer are received either way.
+   */
+  public void setRelayEnabled(boolean isRelayEnabled) {
+    this.isRelayEnabled = isRelayEnabled;
+  }
+  
+  /**
+   * Returns the routes used to reach computers that are out of range, which are learned from what
+   * this hears. This is the same table that the {@link Output} of this computer uses.
+   */
+  public RoutingTable getRoutingTable() {
+    return routingTable;
+  }
+  
+  /**
+   * Starts receiving messages sent to the multicast group with {@code address}. Messages sent to
+   * the broadcast address are always received.
+   *
+   * @throws IllegalArgumentException if {@code address} is not a multicast group address
+   */
+  public void joinGroup(int address) {
+    Preconditions.checkArgument(
+        profile.isGroupAddress(address) && (address != profile.getBroadcastAddress()),
+        "Not a multicast group address: %s",
+        address);
+
+    audioDecoder.joinGroup(address);
+  }
+  
+  /**
+   * Stops receiving messages sent to the multicast group with {@code address}.
+   */
+  public void leaveGroup(int address) {
+    audioDecoder.leaveGroup(address);
+  }
+  
   /**
    * Sets whether input should be enabled. Input should be disabled, for example, if you are sending
    * something.
@@ -84,6 +241,54 @@ public class Input {
     audioDecoder.setEnabled(isEnabled);
   }
   
+  /**
+   * Sets whether frames sent on {@code band} should be received. A band should be disabled while
+   * sending on it unless echo cancellation is enabled, and a full duplex link keeps receiving on
+   * the other one.
+   */
+  public void setBandEnabled(LinkProfile.Band band, boolean isEnabled) {
+    audioDecoder.setBandEnabled(band, isEnabled);
+  }
+  
+  /**
+   * Sets whether the sound that this computer plays is removed from what it records, so that it
+   * keeps receiving while sending. This is disabled by default.
+   */
+  public void setEchoCancellationEnabled(boolean isEchoCancellationEnabled) {
+    audioDecoder.setEchoCancellationEnabled(isEchoCancellationEnabled);
+  }
+  
+  public boolean isEchoCancellationEnabled() {
+    return audioDecoder.isEchoCancellationEnabled();
+  }
+  
+  /**
+   * Sets whether sound is processed in single precision, which is faster. This is disabled by
+   * default.
+   *
+   * @see AudioDecoder#setSinglePrecisionEnabled
+   */
+  public void setSinglePrecisionEnabled(boolean isSinglePrecisionEnabled) {
+    audioDecoder.setSinglePrecisionEnabled(isSinglePrecisionEnabled);
+  }
+  
+  /**
+   * Sets the fewest millaseconds that it may take for sound that is played to start being
+   * recorded.
+   *
+   * @see AudioDecoder#setEchoDelay
+   */
+  public void setEchoDelay(long delay) {
+    audioDecoder.setEchoDelay(delay);
+  }
+  
+  /**
+   * Handles {@code sound} in the link's format starting to be played.
+   */
+  public void handleSoundPlaying(byte[] sound) {
+    audioDecoder.handleSoundPlaying(sound);
+  }
+  
   /**
    * Returns whether the line is clear on all frequencies that are used.
    */
@@ -92,9 +297,153 @@ public class Input {
   }
   
   /**
-   * Handles data being received from the {@link AudioDecoder}.
+   * Returns whether the line is clear on the frequencies of {@code band}.
+   */
+  public boolean isLineClear(LinkProfile.Band band) {
+    return audioDecoder.isLineClear(band);
+  }
+  
+  /**
+   * Takes the ACK that is waiting to be sent to {@code source} so that it can be sent along with
+   * data.
+   *
+   * @return a mask with bit {@code n} set if sequence number {@code n} should be acknowledged, or
+   *     zero if no ACK is waiting
+   */
+  public int takePendingAck(int source) {
+    return audioDecoder.takePendingAck(source);
+  }
+  
+  /**
+   * Handles data being received from the {@link AudioDecoder}. The first byte decides whether it is
+   * part of a stream or part of a message.
+   */
+  private void handleDataReceived(int source, byte[] payload) {
+    if (payload.length == 0) {
+      return;
+    }
+    
+    if ((payload[0] & Constants.PAYLOAD_STREAM_FLAG) != 0) {
+      handleStreamSegmentReceived(source, payload);
+    } else {
+      handleMessageFragmentReceived(source, payload);
+    }
+  }
+  
+  /**
+   * Handles {@code source} starting its frames over.
+   */
+  private void handleSourceRestarted(int source) {
+    messageReassembler.handleSourceRestarted(source);
+    
+    StreamListener streamListener = this.streamListener;
+    if (streamListener != null) {
+      streamListener.onStreamReset(source);
+    }
+  }
+  
+  /**
+   * Handles a segment of a stream.
+   */
+  private void handleStreamSegmentReceived(int source, byte[] payload) {
+    StreamListener streamListener = this.streamListener;
+    if (streamListener == null) {
+      return;
+    }
+
+    int sequence = payload[0] & ~Constants.PAYLOAD_STREAM_FLAG;
+    byte[] data = Arrays.copyOfRange(payload, Constants.STREAM_HEADER_LENGTH, payload.length);
+    
+    streamListener.onStreamSegmentReceived(source, sequence, data);
+  }
+  
+  /**
+   * Handles a fragment of a message, passing the message on once it is whole.
    */
-  private void handleDataReceived(int source, byte[] data) {
+  private void handleMessageFragmentReceived(int source, byte[] payload) {
+    if (payload.length < Constants.MESSAGE_HEADER_LENGTH) {
+      return;
+    }
+    
+    int messageId = payload[0] & (Constants.MESSAGE_IDS - 1);
+    boolean isLast = (payload[0] & Constants.PAYLOAD_LAST_FRAGMENT_FLAG) != 0;
+    boolean isCompressed = (payload[0] & Constants.PAYLOAD_COMPRESSED_FLAG) != 0;
+    boolean isRouted = (payload[0] & Constants.PAYLOAD_ROUTED_FLAG) != 0;
+    int index = payload[1] & 0xFF;
+    byte[] fragment = Arrays.copyOfRange(payload, Constants.MESSAGE_HEADER_LENGTH, payload.length);
+    
+    byte[] data = messageReassembler.addFragment(source, messageId, index, isLast, fragment);
+    if (data == null) {
+      return;
+    }
+    
+    if (isCompressed) {
+      try {
+        data = MessageCompression.decompress(data);
+      } catch (DataFormatException e) {
+        // Its fragments passed their checks but do not make a valid message, so it is dropped.
+        return;
+      }
+    }
+    
+    if (isRouted) {
+      handleRoutedMessageReceived(source, data);
+    } else {
+      notifyDataReceived(source, data);
+    }
+  }
+  
+  /**
+   * Handles a routed message that arrived from {@code neighbor}, which is received if it is for
+   * this computer and relayed if it is for another one. Copies that arrive along other paths are
+   * dropped.
+   */
+  private void handleRoutedMessageReceived(int neighbor, byte[] message) {
+    if (message.length < Constants.ROUTE_HEADER_LENGTH) {
+      return;
+    }
+    
+    int origin = message[0] & 0xFF;
+    int destination = message[1] & 0xFF;
+    int hopLimit = message[2] & 0xFF;
+    int routedMessageId = message[3] & 0xFF;
+    byte[] data = Arrays.copyOfRange(message, Constants.ROUTE_HEADER_LENGTH, message.length);
+    
+    if (origin == computerId) {
+      return;
+    }
+    
+    routingTable.handleRouteHeard(origin, neighbor);
+    
+    if (!routedMessageFilter.add(origin, routedMessageId)) {
+      return;
+    }
+    
+    if (destination == computerId) {
+      notifyDataReceived(origin, data);
+      return;
+    }
+    
+    if (!isRelayEnabled || (hopLimit == 0)) {
+      return;
+    }
+    
+    int nextHop = routingTable.getNextHop(destination);
+    if (nextHop == neighbor) {
+      // Sending it back would only make a loop.
+      return;
+    }
+    
+    Output.getInstance(computerId, profile).relayMessage(
+        nextHop,
+        origin,
+        destination,
+        hopLimit - 1,
+        routedMessageId,
+        data);
+  }
+  
+  private void notifyDataReceived(int source, byte[] data) {
     for (Listener listener : listeners) {
       listener.onDataReceived(source, data);
     }
@@ -103,9 +452,9 @@ public class Input {
   /**
    * Handles an ACK being received from the {@link AudioDecoder}.
    */
-  private void handleAckReceived(int source) {
+  private void handleAckReceived(int source, int acknowledgedSequences) {
     for (Listener listener : listeners) {
-      listener.onAckReceived(source);
+      listener.onAckReceived(source, acknowledgedSequences);
     }
   }
 }
@@ -19,7 +19,7 @@ public class InputRedirecter {
     }
 
     @Override
-    public void onAckReceived(int source) {
+    public void onAckReceived(int source, int acknowledgedSequences) {
       // Do not care here.
     }
   };
@@ -0,0 +1,196 @@
+package com.alanrussian.networkingproject.in;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.alanrussian.networkingproject.common.Constants;
+
+/**
+ * Puts the fragments of messages back together. Incomplete messages are dropped if no fragment of
+ * them arrives for {@link #TIMEOUT} or if they are the oldest once more than {@link
+ * #MAX_BUFFERED_BYTES} are waiting.
+ */
+class MessageReassembler {
+  
+  /**
+   * The most bytes of incomplete messages to hold on to.
+   */
+  private static final int MAX_BUFFERED_BYTES = 64 * 1024;
+  
+  /**
+   * Nanoseconds without a new fragment after which an incomplete message is dropped. This is long
+   * enough to cover a sender backing off several times.
+   */
+  private static final long TIMEOUT = TimeUnit.MINUTES.toNanos(30);
+  
+  /**
+   * The fragments received so far of a message.
+   */
+  private static class PartialMessage {
+
+    private final byte[][] fragments = new byte[Constants.MESSAGE_MAX_FRAGMENTS][];
+    private int receivedFragments;
+    private int length;
+    
+    /**
+     * The number of fragments in the message, or -1 until the last fragment arrives.
+     */
+    private int fragmentCount = -1;
+    private long lastUpdateTime;
+  }
+  
+  /**
+   * Incomplete messages keyed by {@link #getKey}, from least to most recently updated.
+   */
+  private final LinkedHashMap<Integer, PartialMessage> partialMessages;
+  
+  /**
+   * The last fragment received from each source, as {@link #getKey} shifted above the index.
+   * Fragments are not checked against every fragment received, since a sender has several frames
+   * out at once and they can arrive in any order. Repeated frames are instead dropped by the
+   * decoder's {@code AckAggregator} using their sequence numbers. It forgets a sender that has been
+   * quiet for a minute though, so a repeat of the last fragment is still caught here.
+   */
+  private final Map<Integer, Integer> sourcesToLastFragment;
+  
+  private int bufferedBytes;
+
+  public MessageReassembler() {
+    this.partialMessages = new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+    this.sourcesToLastFragment = new HashMap<>();
+  }
+  
+  /**
+   * Adds a fragment of a message.
+   * 
+   * @return the whole message if this fragment completed it, or null otherwise
+   */
+  public byte[] addFragment(int source, int messageId, int index, boolean isLast, byte[] data) {
+    int key = getKey(source, messageId);
+    
+    Integer fragment = (key << 8) | index;
+    if (fragment.equals(sourcesToLastFragment.put(source, fragment))) {
+      return null;
+    }
+    
+    long now = System.nanoTime();
+    evictExpired(now);
+    
+    // Skip the table for messages that fit in a single fragment.
+    if ((index == 0) && isLast) {
+      removePartialMessage(key);
+      return data;
+    }
+    
+    PartialMessage message = partialMessages.get(key);
+    if ((message != null)
+        && ((message.fragments[index] != null) || (isLast && (message.fragmentCount != -1)))) {
+      // This is not a repeat, so what we have is left over from an older message with the same ID.
+      removePartialMessage(key);
+      message = null;
+    }
+    
+    if (message == null) {
+      message = new PartialMessage();
+      partialMessages.put(key, message);
+    }
+    
+    message.fragments[index] = data;
+    message.receivedFragments++;
+    message.length += data.length;
+    message.lastUpdateTime = now;
+    if (isLast) {
+      message.fragmentCount = index + 1;
+    }
+    bufferedBytes += data.length;
+    
+    if (message.receivedFragments == message.fragmentCount) {
+      removePartialMessage(key);
+
+      return join(message);
+    }
+    
+    evictOverflow(key);
+
+    return null;
+  }
+  
+  /**
+   * Forgets everything from {@code source}, which started its frames over. Its incomplete messages
+   * were given up on and the message IDs it sends next may repeat the ones before, so they must not
+   * be mistaken for repeats or joined with old fragments.
+   */
+  public void handleSourceRestarted(int source) {
+    sourcesToLastFragment.remove(source);
+    
+    for (int messageId = 0; messageId < Constants.MESSAGE_IDS; messageId++) {
+      removePartialMessage(getKey(source, messageId));
+    }
+  }
+  
+  /**
+   * Drops messages that have not been updated for {@link #TIMEOUT}.
+   */
+  private void evictExpired(long now) {
+    Iterator<PartialMessage> iterator = partialMessages.values().iterator();
+    while (iterator.hasNext()) {
+      PartialMessage message = iterator.next();
+      if (now - message.lastUpdateTime < TIMEOUT) {
+        // The rest were updated more recently.
+        return;
+      }
+      
+      bufferedBytes -= message.length;
+      iterator.remove();
+    }
+  }
+  
+  /**
+   * Drops the least recently updated messages, other than the one with {@code keepKey}, until at
+   * most {@link #MAX_BUFFERED_BYTES} are held.
+   */
+  private void evictOverflow(int keepKey) {
+    Iterator<Map.Entry<Integer, PartialMessage>> iterator = partialMessages.entrySet().iterator();
+    while ((bufferedBytes > MAX_BUFFERED_BYTES) && iterator.hasNext()) {
+      Map.Entry<Integer, PartialMessage> entry = iterator.next();
+      if (entry.getKey() == keepKey) {
+        continue;
+      }
+      
+      bufferedBytes -= entry.getValue().length;
+      iterator.remove();
+    }
+  }
+  
+  private void removePartialMessage(int key) {
+    PartialMessage message = partialMessages.remove(key);
+
+    if (message != null) {
+      bufferedBytes -= message.length;
+    }
+  }
+  
+  /**
+   * Joins the fragments of a complete message.
+   */
+  private static byte[] join(PartialMessage message) {
+    byte[] data = new byte[message.length];
+    
+    int offset = 0;
+    for (int i = 0; i < message.fragmentCount; i++) {
+      byte[] fragment = message.fragments[i];
+
+      System.arraycopy(fragment, 0, data, offset, fragment.length);
+      offset += fragment.length;
+    }
+    
+    return data;
+  }
+  
+  private static int getKey(int source, int messageId) {
+    return source * Constants.MESSAGE_IDS + messageId;
+  }
+}
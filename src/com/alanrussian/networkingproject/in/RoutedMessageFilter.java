@@ -0,0 +1,57 @@
+package com.alanrussian.networkingproject.in;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the routed messages that have been seen recently so that a message that reaches us
+ * along more than one path is only delivered or relayed once.
+ */
+class RoutedMessageFilter {
+
+  /**
+   * The most messages to remember.
+   */
+  private static final int MAX_MESSAGES = 256;
+
+  /**
+   * Nanoseconds after which a message is forgotten, so that its origin can reuse its ID.
+   */
+  private static final long TIMEOUT = TimeUnit.MINUTES.toNanos(5);
+
+  /**
+   * The time that each message was seen, keyed by {@link #getKey}, from oldest to newest.
+   */
+  private final LinkedHashMap<Integer, Long> messagesToTime;
+
+  public RoutedMessageFilter() {
+    this.messagesToTime = new LinkedHashMap<Integer, Long>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+        return size() > MAX_MESSAGES;
+      }
+    };
+  }
+
+  /**
+   * Records a message.
+   *
+   * @return whether the message had not been seen recently
+   */
+  public synchronized boolean add(int origin, int messageId) {
+    long now = System.nanoTime();
+    int key = getKey(origin, messageId);
+
+    Long time = messagesToTime.remove(key);
+    messagesToTime.put(key, now);
+
+    return (time == null) || (now - time > TIMEOUT);
+  }
+
+  private static int getKey(int origin, int messageId) {
+    return (origin << 8) | messageId;
+  }
+}
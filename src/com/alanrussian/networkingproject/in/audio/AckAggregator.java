@@ -0,0 +1,280 @@
+package com.alanrussian.networkingproject.in.audio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.common.SharedExecutors;
+
+/**
+ * Keeps track of the data frames received from each source so that repeated frames can be dropped,
+ * and gathers their ACKs so that one ACK frame covers every frame that a sender sent in a row.
+ *
+ * <p>An ACK is held back for {@link LinkProfile#getAckDelay} after a data frame in case the sender
+ * is about to send another one. It is held back further while a frame is being received. A pending
+ * ACK can also be taken early to send it along with data going back to the sender.
+ *
+ * <p>A sender marks its frames as starting the sequence numbers over until it hears an ACK after it
+ * starts or gives up on frames, and what is known about that sender is forgotten at the first of
+ * them. Each time it starts over it picks a new session, so a repeated start frame is told from the
+ * start frame of a sender that restarted by whether its session is the one being received.
+ */
+class AckAggregator {
+
+  /**
+   * Listener for {@link AckAggregator}.
+   */
+  public interface Listener {
+
+    /**
+     * Triggered when an ACK frame should be sent.
+     *
+     * @param acknowledgedSequences a mask with bit {@code n} set if sequence number {@code n} is
+     *     acknowledged
+     */
+    void onAckReady(int target, int acknowledgedSequences);
+
+    /**
+     * Triggered when {@code source} starts its sequence numbers over in a new session, which it
+     * does after it restarts or gives up on frames. Anything it sent before may have been lost.
+     */
+    void onSourceRestarted(int source);
+  }
+
+  /**
+   * Nanoseconds without a frame from a source after which its sequence numbers are forgotten, in
+   * case it has restarted.
+   */
+  private static final long SOURCE_TIMEOUT = TimeUnit.MINUTES.toNanos(1);
+
+  /**
+   * What is known about the frames from a single source.
+   */
+  private static class Source {
+
+    /**
+     * The oldest sequence number that has not been received yet.
+     */
+    private int base;
+
+    /**
+     * Bit {@code n} is set if sequence number {@code n} has been received. The {@link
+     * Constants#AUDIO_FRAME_WINDOW} sequence numbers from {@link #base} are the ones that may be
+     * sent next and the ones before it are the ones that may be repeated.
+     */
+    private int receivedSequences;
+    private long lastFrameTime;
+
+    /**
+     * The session that the last frame received started the sequence numbers over in, or -1 if it
+     * did not start them over.
+     */
+    private int session = -1;
+
+    /**
+     * The first sequence number of the ACK that is waiting to be sent, or -1 if there is none.
+     */
+    private int pendingBase = -1;
+    
+    /**
+     * The sequence numbers acknowledged by the ACK that is waiting to be sent, as a mask.
+     */
+    private int pendingSequences;
+  }
+
+  private final LinkProfile profile;
+  private final Listener listener;
+  private final Map<Integer, Source> sources;
+
+  private final Runnable sendAcksRunnable = new Runnable() {
+    @Override
+    public void run() {
+      sendAcks();
+    }
+  };
+
+  private ScheduledFuture<?> sendAcksFuture;
+
+  public AckAggregator(LinkProfile profile, Listener listener) {
+    this.profile = profile;
+    this.listener = listener;
+    this.sources = new HashMap<>();
+  }
+
+  /**
+   * Adds a data frame that was sent to us and schedules its ACK.
+   *
+   * @param session the session that the sender starts its sequence numbers over in with this
+   *     frame, or -1 if it does not start them over
+   * @return whether the frame is new, as opposed to being repeated because its ACK was lost
+   */
+  public boolean addDataFrame(int source, int sequence, int session) {
+    List<int[]> acks = new ArrayList<>();
+    boolean isNew;
+    boolean isRestarted;
+
+    synchronized (this) {
+      long now = System.nanoTime();
+
+      Source state = sources.get(source);
+      isRestarted = (session != -1) && ((state == null) || (session != state.session));
+      if ((state == null) || isRestarted || (now - state.lastFrameTime > SOURCE_TIMEOUT)) {
+        // The pending ACK is dropped too since its sequence numbers may now mean other frames.
+        state = new Source();
+        state.base = sequence;
+        sources.put(source, state);
+      }
+      state.lastFrameTime = now;
+      state.session = session;
+
+      isNew = markReceived(state, sequence);
+
+      if (state.pendingBase != -1) {
+        int offset = getOffset(state.pendingBase, sequence);
+        if (offset >= Constants.AUDIO_FRAME_WINDOW) {
+          // This frame does not fit in the pending ACK, so that one goes out first.
+          acks.add(new int[] {source, state.pendingSequences});
+          state.pendingBase = -1;
+        }
+      }
+
+      if (state.pendingBase == -1) {
+        state.pendingBase = sequence;
+        state.pendingSequences = 0;
+      }
+      state.pendingSequences |= 1 << sequence;
+
+      scheduleAcks(profile.getAckDelay());
+    }
+
+    if (isRestarted) {
+      listener.onSourceRestarted(source);
+    }
+    notifyAcks(acks);
+
+    return isNew;
+  }
+
+  /**
+   * Takes the ACK that is waiting to be sent to {@code source} so that it can be sent some other
+   * way.
+   *
+   * @return a mask with bit {@code n} set if sequence number {@code n} should be acknowledged, or
+   *     zero if no ACK is waiting
+   */
+  public synchronized int takePendingAck(int source) {
+    Source state = sources.get(source);
+    if ((state == null) || (state.pendingBase == -1)) {
+      return 0;
+    }
+    
+    state.pendingBase = -1;
+
+    return state.pendingSequences;
+  }
+
+  /**
+   * Handles the start of a frame, which delays any pending ACKs until that frame would be over.
+   */
+  public synchronized void handleFrameStart() {
+    if ((sendAcksFuture != null) && !sendAcksFuture.isDone()) {
+      scheduleAcks(profile.getFrameMaxDuration() + profile.getAckDelay());
+    }
+  }
+
+  /**
+   * Stops sending ACKs.
+   */
+  public synchronized void close() {
+    if (sendAcksFuture != null) {
+      sendAcksFuture.cancel(false);
+    }
+    sources.clear();
+  }
+
+  /**
+   * Marks {@code sequence} as received and moves the window past every received sequence number.
+   *
+   * @return whether {@code sequence} had not been received yet
+   */
+  private static boolean markReceived(Source state, int sequence) {
+    int sequenceBit = 1 << sequence;
+
+    if (getOffset(state.base, sequence) >= Constants.AUDIO_FRAME_WINDOW) {
+      if ((state.receivedSequences & sequenceBit) != 0) {
+        return false;
+      }
+
+      // The sender gave up on frames that we never received. Start over from this one.
+      state.base = sequence;
+      state.receivedSequences = 0;
+    } else if ((state.receivedSequences & sequenceBit) != 0) {
+      return false;
+    }
+
+    state.receivedSequences |= sequenceBit;
+
+    while ((state.receivedSequences & (1 << state.base)) != 0) {
+      state.base = (state.base + 1) % Constants.AUDIO_FRAME_SEQUENCES;
+
+      // The sequence number that just entered the window was last received a whole cycle ago.
+      int newest = (state.base + Constants.AUDIO_FRAME_WINDOW - 1)
+          % Constants.AUDIO_FRAME_SEQUENCES;
+      state.receivedSequences &= ~(1 << newest);
+    }
+
+    return true;
+  }
+
+  private void scheduleAcks(long delay) {
+    if (sendAcksFuture != null) {
+      sendAcksFuture.cancel(false);
+    }
+
+    sendAcksFuture = SharedExecutors.getInstance().getScheduler().schedule(
+        sendAcksRunnable,
+        delay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends every pending ACK.
+   */
+  private void sendAcks() {
+    List<int[]> acks = new ArrayList<>();
+
+    synchronized (this) {
+      for (Map.Entry<Integer, Source> entry : sources.entrySet()) {
+        Source state = entry.getValue();
+        if (state.pendingBase != -1) {
+          acks.add(new int[] {entry.getKey(), state.pendingSequences});
+          state.pendingBase = -1;
+        }
+      }
+    }
+
+    notifyAcks(acks);
+  }
+
+  /**
+   * Passes ACKs to the listener. This is done outside of the lock since sending an ACK waits on the
+   * encoder.
+   */
+  private void notifyAcks(List<int[]> acks) {
+    for (int[] ack : acks) {
+      listener.onAckReady(ack[0], ack[1]);
+    }
+  }
+
+  /**
+   * Returns how many sequence numbers {@code sequence} is after {@code base}.
+   */
+  private static int getOffset(int base, int sequence) {
+    return (sequence - base + Constants.AUDIO_FRAME_SEQUENCES) % Constants.AUDIO_FRAME_SEQUENCES;
+  }
+}
@@ -1,8 +1,13 @@
 package com.alanrussian.networkingproject.in.audio;
 
-import java.util.Arrays;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import javax.sound.sampled.AudioFormat;
@@ -10,22 +15,39 @@ import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.TargetDataLine;
 
-import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.DispatchQueue;
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.common.SharedExecutors;
+import com.alanrussian.networkingproject.common.SoundFormat;
 import com.alanrussian.networkingproject.in.audio.frame.FrameWatcher;
-import com.alanrussian.networkingproject.in.audio.math.RunningAverage;
-import com.alanrussian.networkingproject.in.audio.math.SoundMath;
-import com.alanrussian.networkingproject.in.audio.math.Statistics;
+import com.alanrussian.networkingproject.in.audio.math.EchoCanceller;
 import com.alanrussian.networkingproject.out.Output;
 
 /**
  * Listens to the microphone and tries to detect data sent by other devices. Sends an ACK when
- * frames are received.
+ * frames are received, covering several frames with one ACK where it can. Frames to the broadcast
+ * address and to joined multicast groups are received too, but are not acknowledged.
+ *
+ * <p>With echo cancellation on, the sound that we play is removed from what is recorded before it
+ * is processed, so that other computers can be heard while sending.
+ *
+ * <p>The listener and {@link Output} are called through a {@link DispatchQueue}, in the order that
+ * frames are found, so that a slow listener never holds up processing sound.
+ *
+ * <p>Sound is processed in double precision by default. Single precision halves the memory that
+ * processing moves and fits twice as many samples in each vector instruction where the JIT
+ * compiler uses them, at the cost of magnitudes that are off by about a millionth of how loud the
+ * sound is.
+ *
+ * <p>Recording starts right away, but sound is only processed once the decoder is ready, which it
+ * gets in the background. Sound recorded until then waits in the line, so a frame that starts
+ * while getting ready is still found, and the first frames are processed as fast as the rest.
  */
 public class AudioDecoder {
 
   /**
-   * Listener for changes to {@link Input}.
-   *
+   * Listener for frames found by the {@link AudioDecoder}. It is called one at a time, in the order
+   * that frames are found, but not on the thread that processes sound.
    */
   public static interface Listener {
 
@@ -36,60 +58,136 @@ public class AudioDecoder {
     
     /**
      * Triggered when an ACK is received.
+     *
+     * @param acknowledgedSequences a mask with bit {@code n} set if the data frame with sequence
+     *     number {@code n} was acknowledged
+     */
+    void onAckReceived(int source, int acknowledgedSequences);
+    
+    /**
+     * Triggered when any frame from {@code source} is heard, whoever it is for.
+     */
+    void onFrameHeard(int source);
+    
+    /**
+     * Triggered when {@code source} is heard acknowledging frames from {@code target}, which shows
+     * that {@code target} is in range of {@code source}. ACKs for this computer are not included.
      */
-    void onAckReceived(int source);
+    void onAckHeard(int source, int target);
+    
+    /**
+     * Triggered when {@code source} starts its frames over after it restarted or gave up on
+     * frames, before any data that it sends after. Data that it sent before may have been lost.
+     */
+    void onSourceRestarted(int source);
   }
 
   /**
-   * The number of partitions per {@link Constants#BIT_DURATION} to evaluate.
+   * The number of partitions per bit to evaluate.
    */
   private static final int SOUND_PARTITIONS = 16;
   
   /**
-   * The number of {@link Constants#BIT_DURATION}s to listen to for measuring each isLineActive.
+   * Millaseconds of echo that the {@link EchoCanceller} models after where sound that is played is
+   * expected to be heard.
+   */
+  private static final long ECHO_FILTER_DURATION = 10;
+  
+  /**
+   * The most millaseconds that the {@link EchoCanceller} looks for sound that is played to be heard
+   * after where it is expected, which covers the latency of common sound cards.
    */
-  private static final int LINE_ACTIVE_COUNT = 3;
+  private static final long MAX_ECHO_DELAY = 250;
   
-  private static final AudioFormat AUDIO_FORMAT = new AudioFormat(
-        Constants.SAMPLE_RATE,
-        8 /* sampleSizeInBits */,
-        1, /* channels */
-        true, /* signed */ 
-        true /* bigEndian */);
+  /**
+   * The most calls to the listener, or ACKs to {@link Output}, that may wait to be made. Frames
+   * arrive slowly, so this is only reached if a listener is stuck.
+   */
+  private static final int DISPATCH_QUEUE_CAPACITY = 256;
+  
+  /**
+   * Millaseconds of sound that the line holds until it is read, which covers getting ready.
+   */
+  private static final long LINE_BUFFER_DURATION = 2000;
+  
+  /**
+   * The number of bits of silence measured while getting ready, which is enough for the measuring
+   * code to be compiled.
+   */
+  private static final int WARM_UP_BITS = 256;
   
   private final int computerId;
+  private final LinkProfile profile;
+  private final SoundFormat format;
+  
+  /**
+   * The number of samples in each partition. Partitions always cover the same amount of time so
+   * that the {@link AudioSignalParser} can recover the bit timing from them.
+   */
+  private final int samplesPerPartition;
+  
+  /**
+   * The number of bytes in each partition.
+   */
+  private final int partitionLength;
+  
   private final Listener listener;
   private final TargetDataLine line;
-  private final FrameWatcher frameWatcher;
-  private final AudioSignalParser audioSignalParser;
-
-  private final RunningAverage offRunningAverage;
-  private final RunningAverage onRunningAverage;
+  private final Map<LinkProfile.Band, BandDecoder> bandDecoders;
+  private final AckAggregator ackAggregator;
+  private final EchoCanceller echoCanceller;
   
   /**
-   * Line activity is measured every partition and averaged with a 1 being on and a 0 being off.
+   * Calls the listener. Only the thread processing sound queues calls, so it can tell whether a
+   * call will fit before making a frame's data one that has to be delivered.
    */
-  private final RunningAverage lineActivity;
+  private final DispatchQueue dispatchQueue;
+  
+  /**
+   * Sends ACKs, apart from the listener so that a slow listener does not hold them back until the
+   * sender gives up waiting.
+   */
+  private final DispatchQueue ackDispatchQueue;
+  
+  /**
+   * The multicast group addresses that frames are received for.
+   */
+  private final Set<Integer> multicastAddresses;
   
   private final FrameWatcher.Listener frameWatcherListener = new FrameWatcher.Listener() {
     @Override
-    public void onDataFrameFound(int source, int target, byte[] data) {
-      handleFrameFound(source, target, data);
+    public void onFrameStartFound(double confidence) {
+      handleFrameStartFound(confidence);
+    }
+
+    @Override
+    public void onDataFrameFound(
+        int source,
+        int target,
+        int sequence,
+        int session,
+        int acknowledgedSequences,
+        byte[] data) {
+      handleFrameFound(source, target, sequence, session, acknowledgedSequences, data);
     }
     
     @Override
-    public void onAckFrameFound(int source, int target) {
-      handleAckFound(source, target);
+    public void onAckFrameFound(int source, int target, int acknowledgedSequences) {
+      handleAckFound(source, target, acknowledgedSequences);
     }
   };
   
-  private final AudioSignalParser.Listener audioSignalParserListener =
-      new AudioSignalParser.Listener() {
-        @Override
-        public void onBitReceived(boolean value) {
-          handleBitReceived(value);
-        }
-      };
+  private final AckAggregator.Listener ackAggregatorListener = new AckAggregator.Listener() {
+    @Override
+    public void onAckReady(int target, int acknowledgedSequences) {
+      handleAckReady(target, acknowledgedSequences);
+    }
+
+    @Override
+    public void onSourceRestarted(int source) {
+      notifySourceRestarted(source);
+    }
+  };
   
   private final Runnable runnable = new Runnable() {
     @Override
@@ -98,28 +196,94 @@ public class AudioDecoder {
     }
   };
   
+  private final Runnable prepareRunnable = new Runnable() {
+    @Override
+    public void run() {
+      prepare();
+    }
+  };
+  
+  private final CompletableFuture<Void> readyFuture;
+  
+  /**
+   * Null until ready. Guarded by {@code this}.
+   */
+  private ScheduledFuture<?> processSoundFuture;
+  
+  /**
+   * Guarded by {@code this}.
+   */
+  private boolean isClosed;
+  
   private boolean isEnabled;
+  private double lastFrameStartConfidence;
+  private volatile boolean isEchoCancellationEnabled;
+  private volatile boolean isSinglePrecisionEnabled;
   
-  public AudioDecoder(int computerId, Listener listener) throws LineUnavailableException {
+  /**
+   * The number of samples between when sound starts being played and when it is heard, beyond
+   * what is waiting in the line.
+   */
+  private volatile int echoDelaySamples;
+  
+  /**
+   * The number of samples read from the line so far. Guarded by {@code this}.
+   */
+  private long samplesRead;
+  
+  /**
+   * @param profile how sound carries frames over the link
+   */
+  public AudioDecoder(int computerId, LinkProfile profile, Listener listener)
+      throws LineUnavailableException {
     this.computerId = computerId;
+    this.profile = profile;
+    this.format = profile.getSoundFormat();
+    this.samplesPerPartition =
+        format.getSampleCount(profile.getBitDuration()) / SOUND_PARTITIONS;
+    this.partitionLength = samplesPerPartition * format.getFrameSize();
     this.listener = listener;
 
-    this.line = AudioSystem.getTargetDataLine(AUDIO_FORMAT);
-    line.open(AUDIO_FORMAT);
+    AudioFormat audioFormat = format.toAudioFormat();
+    this.line = AudioSystem.getTargetDataLine(audioFormat);
+    line.open(
+        audioFormat,
+        format.getSampleCount(LINE_BUFFER_DURATION) * format.getFrameSize());
 
     line.start();
     
-    this.frameWatcher = new FrameWatcher(frameWatcherListener);
-    this.audioSignalParser = new AudioSignalParser(SOUND_PARTITIONS, audioSignalParserListener);
+    this.bandDecoders = new EnumMap<>(LinkProfile.Band.class);
+    for (LinkProfile.Band band : profile.getBands()) {
+      bandDecoders.put(
+          band,
+          new BandDecoder(
+              profile,
+              band,
+              SOUND_PARTITIONS,
+              samplesPerPartition,
+              frameWatcherListener));
+    }
     
-    this.offRunningAverage = new RunningAverage(SOUND_PARTITIONS);
-    this.onRunningAverage = new RunningAverage(SOUND_PARTITIONS);
-
-    this.lineActivity = new RunningAverage(LINE_ACTIVE_COUNT);
+    this.ackAggregator = new AckAggregator(profile, ackAggregatorListener);
+    this.dispatchQueue = new DispatchQueue(DISPATCH_QUEUE_CAPACITY);
+    this.ackDispatchQueue = new DispatchQueue(DISPATCH_QUEUE_CAPACITY);
+    this.echoCanceller = new EchoCanceller(
+        format.getSampleCount(ECHO_FILTER_DURATION),
+        format.getSampleCount(profile.getBitDuration() * profile.getFrameStart().size()),
+        format.getSampleCount(MAX_ECHO_DELAY));
+    this.multicastAddresses = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
     
     isEnabled = true;
     
-    scheduleTasks();
+    this.readyFuture =
+        CompletableFuture.runAsync(prepareRunnable, SharedExecutors.getInstance().getWorkers());
+  }
+  
+  /**
+   * Returns a future that completes once sound is being processed.
+   */
+  public CompletableFuture<Void> whenReady() {
+    return readyFuture;
   }
   
   /**
@@ -129,23 +293,179 @@ public class AudioDecoder {
     this.isEnabled = isEnabled;
     
     if (isEnabled) {
-      lineActivity.clear();
+      for (BandDecoder bandDecoder : bandDecoders.values()) {
+        bandDecoder.setEnabled(true);
+      }
+    }
+  }
+  
+  /**
+   * Sets whether frames on {@code band} are looked for. Sound is still read while a band is
+   * disabled, so that what was sent on it while it was disabled is never processed.
+   */
+  public void setBandEnabled(LinkProfile.Band band, boolean isEnabled) {
+    bandDecoders.get(band).setEnabled(isEnabled);
+  }
+  
+  /**
+   * Sets whether the sound that we play is removed from what is recorded. This is disabled by
+   * default.
+   */
+  public void setEchoCancellationEnabled(boolean isEchoCancellationEnabled) {
+    this.isEchoCancellationEnabled = isEchoCancellationEnabled;
+  }
+  
+  public boolean isEchoCancellationEnabled() {
+    return isEchoCancellationEnabled;
+  }
+  
+  /**
+   * Sets whether sound is processed in single precision instead of double precision. Echo
+   * cancellation needs double precision, so sound is processed in double precision while it is
+   * enabled either way. This is disabled by default.
+   */
+  public void setSinglePrecisionEnabled(boolean isSinglePrecisionEnabled) {
+    this.isSinglePrecisionEnabled = isSinglePrecisionEnabled;
+  }
+  
+  public boolean isSinglePrecisionEnabled() {
+    return isSinglePrecisionEnabled;
+  }
+  
+  /**
+   * Sets the fewest millaseconds that it may take the sound card to start playing sound and the
+   * microphone to record it, beyond the sound already waiting to be read. How long it really takes,
+   * up to {@value #MAX_ECHO_DELAY} millaseconds more, is found from the first frame that is sent
+   * after a silence, so this only needs to be set if the sound card is slower than that. It is zero
+   * by default.
+   */
+  public void setEchoDelay(long delay) {
+    this.echoDelaySamples = format.getSampleCount(delay);
+  }
+  
+  /**
+   * Handles {@code sound} in the link's format starting to be played, so that it can be removed
+   * from what is recorded.
+   */
+  public void handleSoundPlaying(byte[] sound) {
+    if (!isEchoCancellationEnabled) {
+      return;
+    }
+    
+    int count = sound.length / format.getFrameSize();
+    double[] samples = new double[count];
+    format.toSamples(sound, 0, samples, count);
+    
+    long position;
+    synchronized (this) {
+      position = samplesRead + line.available() / format.getFrameSize();
+    }
+    
+    echoCanceller.addReference(position + echoDelaySamples, samples);
+  }
+  
+  /**
+   * Stops processing sound and releases the microphone.
+   */
+  public void close() {
+    synchronized (this) {
+      isClosed = true;
+      
+      if (processSoundFuture != null) {
+        processSoundFuture.cancel(false);
+      }
     }
+    ackAggregator.close();
+
+    line.stop();
+    line.close();
+  }
+  
+  /**
+   * Returns how closely the start of the last frame found matched the expected preamble, from
+   * {@link LinkProfile#getFrameStartThreshold} to 1.0, or 0.0 if no frame has been found yet.
+   */
+  public double getLastFrameStartConfidence() {
+    return lastFrameStartConfidence;
+  }
+  
+  /**
+   * Takes the ACK that is waiting to be sent to {@code source} so that it can be sent along with
+   * data.
+   *
+   * @return a mask with bit {@code n} set if sequence number {@code n} should be acknowledged, or
+   *     zero if no ACK is waiting
+   */
+  public int takePendingAck(int source) {
+    return ackAggregator.takePendingAck(source);
+  }
+  
+  /**
+   * Starts receiving frames sent to the multicast group with {@code address}.
+   */
+  public void joinGroup(int address) {
+    multicastAddresses.add(address);
+  }
+  
+  /**
+   * Stops receiving frames sent to the multicast group with {@code address}.
+   */
+  public void leaveGroup(int address) {
+    multicastAddresses.remove(address);
   }
   
   /**
    * Returns whether all listened to frequencies are clear.
    */
   public boolean isLineClear() {
-    return lineActivity.haveAverage() && (lineActivity.getAverage() < 0.5);
+    for (BandDecoder bandDecoder : bandDecoders.values()) {
+      if (!bandDecoder.isLineClear()) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Returns whether the frequencies of {@code band} are clear.
+   */
+  public boolean isLineClear(LinkProfile.Band band) {
+    return bandDecoders.get(band).isLineClear();
+  }
+  
+  /**
+   * Gets ready to process sound by measuring silence, so that the code that processes sound is
+   * loaded and compiled, and then starts processing sound.
+   */
+  private void prepare() {
+    byte[] silence = new byte[partitionLength * SOUND_PARTITIONS];
+    double[] samples = new double[samplesPerPartition * SOUND_PARTITIONS];
+    float[] singleSamples = new float[samples.length];
+    
+    // Both precisions are warmed up since either may be switched to at any time.
+    for (int i = 0; i < WARM_UP_BITS; i++) {
+      format.toSamples(silence, 0, samples, samples.length);
+      format.toSamples(silence, 0, singleSamples, singleSamples.length);
+      
+      for (BandDecoder bandDecoder : bandDecoders.values()) {
+        bandDecoder.warmUp(samples, SOUND_PARTITIONS);
+        bandDecoder.warmUp(singleSamples, SOUND_PARTITIONS);
+      }
+    }
+    
+    synchronized (this) {
+      if (!isClosed) {
+        scheduleTasks();
+      }
+    }
   }
   
   private void scheduleTasks() {
-    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
-    executor.scheduleAtFixedRate(
+    processSoundFuture = SharedExecutors.getInstance().getSoundScheduler().scheduleAtFixedRate(
         runnable,
         0 /* initialDelay */,
-        Constants.BIT_DURATION,
+        profile.getBitDuration(),
         TimeUnit.MILLISECONDS);
   }
   
@@ -157,149 +477,201 @@ public class AudioDecoder {
       return;
     }
 
-    Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+    // Only read whole partitions. The rest is left in the line for the next run.
+    byte[] data;
+    long position;
+    synchronized (this) {
+      int available = line.available();
+      data = new byte[available - (available % partitionLength)];
+      if (data.length == 0) {
+        return;
+      }
 
-    byte[] data = new byte[line.available()];
-    if (data.length == 0) {
-      return;
-    }
+      line.read(data, 0, data.length);
 
-    line.read(data, 0, data.length);
-    
-    double[][] partitionedAndTransformedData =
-        getPartitionedAndTransformedData(SOUND_PARTITIONS, data);
-    
-    double[] offMagnitudes = getPartitionedFrequencyMagnitudes(
-        Constants.FREQUENCY_OFF,
-        partitionedAndTransformedData,
-        Constants.SAMPLE_RATE);
-    double[] offOffsetMagnitudes = getPartitionedFrequencyMagnitudes(
-        Constants.FREQUENCY_OFF + Constants.FREQUENCY_SECOND_OFFSET,
-        partitionedAndTransformedData,
-        Constants.SAMPLE_RATE);
-    double[] onMagnitudes = getPartitionedFrequencyMagnitudes(
-        Constants.FREQUENCY_ON,
-        partitionedAndTransformedData,
-        Constants.SAMPLE_RATE);
-    double[] onOffsetMagnitudes = getPartitionedFrequencyMagnitudes(
-        Constants.FREQUENCY_ON + Constants.FREQUENCY_SECOND_OFFSET,
-        partitionedAndTransformedData,
-        Constants.SAMPLE_RATE);
+      position = samplesRead;
+      samplesRead += data.length / format.getFrameSize();
+    }
     
-    double offMagnitudeSum = 0.0;
-    double onMagnitudeSum = 0.0;
+    int sampleCount = data.length / format.getFrameSize();
+    int partitions = sampleCount / samplesPerPartition;
     
-    for (int i = 0; i < SOUND_PARTITIONS; i++) {
-      double offMagnitude = offMagnitudes[i] + offOffsetMagnitudes[i];
-      double onMagnitude = onMagnitudes[i] + onOffsetMagnitudes[i];
-      
-      offMagnitudeSum += offMagnitude;
-      onMagnitudeSum += onMagnitude;
+    if (isEchoCancellationEnabled || !isSinglePrecisionEnabled) {
+      double[] samples = new double[sampleCount];
+      format.toSamples(data, 0, samples, sampleCount);
       
-//      System.out.printf("%.2f %.2f%n", offMagnitude, onMagnitude);
-
-      boolean value = onMagnitude > offMagnitude;
+      if (isEchoCancellationEnabled) {
+        echoCanceller.process(samples, sampleCount, position);
+      }
       
-      audioSignalParser.addSignal(value);
+      for (BandDecoder bandDecoder : bandDecoders.values()) {
+        bandDecoder.process(samples, partitions);
+      }
+    } else {
+      float[] samples = new float[sampleCount];
+      format.toSamples(data, 0, samples, sampleCount);
       
-      if (value) {
-        offRunningAverage.add(offMagnitude);
-      } else {
-        onRunningAverage.add(onMagnitude);
+      for (BandDecoder bandDecoder : bandDecoders.values()) {
+        bandDecoder.process(samples, partitions);
       }
     }
-
-    if (offRunningAverage.haveAverage() && onRunningAverage.haveAverage()) {
-      double offMagnitudeAverage = offMagnitudeSum / SOUND_PARTITIONS;
-      double onMagnitudeAverage = onMagnitudeSum / SOUND_PARTITIONS;
-
-      boolean isLineFree = 
-          Statistics.isWithinAverage(
-              onMagnitudeAverage,
-              onRunningAverage.getAverage(),
-              onRunningAverage.getStandardDeviation(),
-              3 /* deviations */)
-          && Statistics.isWithinAverage(
-              offMagnitudeAverage,
-              offRunningAverage.getAverage(),
-              offRunningAverage.getStandardDeviation(),
-              3 /* deviations */);
-      lineActivity.add(isLineFree ? 0 : 1);
-    }
   }
   
   /**
-   * Splits up a sound into chunks and applies the FFT to the chunks.
+   * Handles the start of a frame found by the {@link FrameWatcher}.
    */
-  private double[][] getPartitionedAndTransformedData(int partitions, byte[] soundData) {
-    double[][] transformedData = new double[partitions][];
+  private void handleFrameStartFound(double confidence) {
+    lastFrameStartConfidence = confidence;
     
-    int partitionSize = soundData.length / partitions;
-    for (int i = 0; i < partitions; i++) {
-      int partitionSizeHere = partitionSize;
-      if (i == (partitions - 1)) {
-        partitionSizeHere += soundData.length % partitions;
-      }
-
-      int start = partitionSize * i;
-      byte[] partitionSoundData =
-          Arrays.copyOfRange(soundData, start, start + partitionSizeHere);
-      
-      transformedData[i] = SoundMath.applyFft(partitionSoundData);
-    }
-    
-    return transformedData;
+    ackAggregator.handleFrameStart();
   }
   
   /**
-   * Returns the frequency magnitudes of chunks of FFT transformed data.
+   * Handles a frame with data found by the {@link FrameWatcher}. Frames to a group are passed on
+   * right away since they are never repeated.
    */
-  private double[] getPartitionedFrequencyMagnitudes(
-      double frequency,
-      double[][] partitionedAndTransformedData,
-      int sampleRate) {
+  private void handleFrameFound(
+      int source,
+      int target,
+      int sequence,
+      int session,
+      int acknowledgedSequences,
+      byte[] data) {
+    handleFrameHeard(source);
 
-    double[] magnitudes = new double[partitionedAndTransformedData.length];
+    if ((target == profile.getBroadcastAddress()) || multicastAddresses.contains(target)) {
+      if (source != computerId) {
+        notifyDataReceived(source, data);
+      }
+      return;
+    }
     
-    for (int i = 0; i < magnitudes.length; i++) {
-      magnitudes[i] = SoundMath.getMagnitudeOfFrequency(
-          frequency,
-          partitionedAndTransformedData[i],
-          sampleRate);
+    if (target != computerId) {
+      if (acknowledgedSequences != 0) {
+        handleAckHeard(source, target);
+      }
+      return;
     }
     
-    return magnitudes;
+    if (acknowledgedSequences != 0) {
+      notifyAckReceived(source, acknowledgedSequences);
+    }
+
+    // A frame is only ACKed if its data, and the restart that it may start, can be passed on.
+    // Otherwise the sender sends it again later.
+    if (!dispatchQueue.hasRoomFor(2)) {
+      System.err.printf("Not acknowledging a frame from %d since listeners are not keeping up.%n",
+          source);
+      return;
+    }
+
+    if (ackAggregator.addDataFrame(source, sequence, session)) {
+      notifyDataReceived(source, data);
+    }
   }
   
   /**
-   * Handles a frame with data found by the {@link FrameWatcher}.
+   * Handles an ACK frame being found by the {@link FrameWatcher}.
    */
-  private void handleFrameFound(int source, int target, byte[] data) {
+  private void handleAckFound(int source, int target, int acknowledgedSequences) {
+    handleFrameHeard(source);
+
     if (target != computerId) {
+      handleAckHeard(source, target);
       return;
     }
 
-    Output.getInstance(computerId).sendAck(source);
-    listener.onDataReceived(source, data);
-    
-    System.err.printf("Sending ACK to %d.%n", target);
+    notifyAckReceived(source, acknowledgedSequences);
   }
   
   /**
-   * Handles an ACK frame being found by the {@link FrameWatcher}.
+   * Handles any frame being heard, which shows that {@code source} is in range.
    */
-  private void handleAckFound(int source, int target) {
-    if (target != computerId) {
+  private void handleFrameHeard(final int source) {
+    if (source == computerId) {
+      return;
+    }
+
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        listener.onFrameHeard(source);
+      }
+    });
+  }
+  
+  /**
+   * Handles an ACK from {@code source} to another computer being heard, which shows that {@code
+   * target} is in range of {@code source}.
+   */
+  private void handleAckHeard(final int source, final int target) {
+    if ((source == computerId) || !profile.isComputerId(target)) {
       return;
     }
 
-    listener.onAckReceived(source);
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        listener.onAckHeard(source, target);
+      }
+    });
+  }
+  
+  /**
+   * Handles the {@link AckAggregator} deciding to send an ACK.
+   */
+  private void handleAckReady(final int target, final int acknowledgedSequences) {
+    try {
+      ackDispatchQueue.execute(new Runnable() {
+        @Override
+        public void run() {
+          Output.getInstance(computerId, profile).sendAck(target, acknowledgedSequences);
+
+          System.err.printf("Sending ACK to %d.%n", target);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The sender sends the frames again.
+      System.err.println("Dropping an ACK since the encoder is not keeping up.");
+    }
+  }
+  
+  private void notifyDataReceived(final int source, final byte[] data) {
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        listener.onDataReceived(source, data);
+      }
+    });
+  }
+  
+  private void notifySourceRestarted(final int source) {
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        listener.onSourceRestarted(source);
+      }
+    });
+  }
+  
+  private void notifyAckReceived(final int source, final int acknowledgedSequences) {
+    dispatch(new Runnable() {
+      @Override
+      public void run() {
+        listener.onAckReceived(source, acknowledgedSequences);
+      }
+    });
   }
   
   /**
-   * Handles a bit received from the {@link AudioSignalParser}.
+   * Queues a call to the listener, dropping it if too many are waiting. Received data is never
+   * dropped here since frames are not ACKed while there is no room for it.
    */
-  private void handleBitReceived(boolean value) {
-    frameWatcher.addBit(value);
+  private void dispatch(Runnable task) {
+    try {
+      dispatchQueue.execute(task);
+    } catch (RejectedExecutionException e) {
+      System.err.println("Dropping an event since listeners are not keeping up.");
+    }
   }
 }
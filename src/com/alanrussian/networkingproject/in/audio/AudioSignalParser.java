@@ -1,139 +1,144 @@
 package com.alanrussian.networkingproject.in.audio;
 
-import java.util.LinkedList;
-import java.util.List;
-
-import com.google.common.collect.ImmutableList;
-
 /**
- * Parses the interpreted sound-on / sound-off signals by smoothing them and returns bits found from
- * within them.
+ * Parses the interpreted sound-on / sound-off signals and returns bits found from within them.
+ *
+ * <p>Bit timing is recovered with a zero-crossing phase-locked loop: every transition between on
+ * and off signals is expected to fall on a bit boundary, so the distance between a transition and
+ * the boundary we predicted is used to nudge both the phase and the period of our bit clock. This
+ * keeps us locked onto the sender even if its clock runs slightly faster or slower than ours.
  */
 class AudioSignalParser {
-  
+
   /**
    * Listener for {@link AudioSignalParser}.
    */
   public interface Listener {
-    
+
     /**
      * Triggered when a bit value is found from the provided audio signals.
+     *
+     * @param value whether the bit is on
+     * @param onFraction the fraction of the bit's signals that were on, from 0.0 to 1.0
      */
-    void onBitReceived(boolean value);
+    void onBitReceived(boolean value, double onFraction);
   }
-  
+
+  /**
+   * Fraction of the phase error that is corrected on every transition.
+   */
+  private static final double PHASE_GAIN = 0.2;
+
+  /**
+   * Fraction of the phase error that is applied to the period on every transition.
+   */
+  private static final double PERIOD_GAIN = 0.01;
+
   /**
-   * Threshold of signals being the same in order to consider a bit present.
+   * The largest phase error, as a fraction of the period, that a single transition may report. This
+   * keeps noise in the middle of a bit from yanking the clock around.
    */
-  private static final double SIGNAL_THRESHOLD = 0.75;
+  private static final double MAX_ERROR = 0.25;
 
   /**
-   * The number of signals that will be sent per bit.
+   * The largest fraction that the period may drift from {@link #nominalPeriod}.
    */
-  private final int signalsPerActualBit;
-  
+  private static final double MAX_PERIOD_DEVIATION = 0.1;
+
+  /**
+   * The number of signals that are expected per actual bit.
+   */
+  private final double nominalPeriod;
+
   private final Listener listener;
-  private final LinkedList<Boolean> signals;
+
+  /**
+   * The current estimate of the number of signals per actual bit.
+   */
+  private double period;
+
+  /**
+   * The number of signals since the start of the current bit.
+   */
+  private double phase;
+
+  private int onsInBit;
+  private int signalsInBit;
+
+  /**
+   * The last two raw signals, used to remove single-signal glitches.
+   */
+  private boolean secondLastSignal;
+  private boolean lastSignal;
+  private int rawSignalCount;
+
+  private boolean lastFilteredSignal;
 
   public AudioSignalParser(int signalsPerActualBit, Listener listener) {
-    this.signalsPerActualBit = signalsPerActualBit;
+    this.nominalPeriod = signalsPerActualBit;
     this.listener = listener;
-    this.signals = new LinkedList<>();
+
+    period = nominalPeriod;
+    phase = 0.0;
   }
-  
+
   /**
-   * Adds a signal. One of {@link #signalsPerActualBit} signals from an actual bit.
-   * 
+   * Adds a signal. Signals must each span the same amount of time, with about {@link
+   * #nominalPeriod} signals per actual bit.
+   *
    * @param isOn whether the signal was interpreted as on.
    */
   public void addSignal(boolean isOn) {
 //    System.out.print(isOn ? 1 : 0);
-    signals.add(isOn);
-    
-    parseSignals();
+    rawSignalCount++;
+
+    if (rawSignalCount >= 3) {
+      // A signal that disagrees with both of its neighbors is treated as a glitch.
+      boolean filteredSignal = (secondLastSignal == isOn) ? isOn : lastSignal;
+
+      addFilteredSignal(filteredSignal);
+    }
+
+    secondLastSignal = lastSignal;
+    lastSignal = isOn;
   }
-  
+
   /**
-   * Parses the signals we have and tries to find bits. This works by looking at one and a half
-   * signals times more than are in an actual bit to handle if there were a few less or more signals
-   * than expected.
+   * Adds a signal that has passed through the glitch filter, adjusting the bit clock on transitions
+   * and emitting a bit every time the clock passes a bit boundary.
    */
-  private void parseSignals() {
-    if (signals.size() != 1.5 * signalsPerActualBit) {
-      return;
+  private void addFilteredSignal(boolean isOn) {
+    if ((rawSignalCount > 3) && (isOn != lastFilteredSignal)) {
+      handleTransition();
     }
-    
-    List<Boolean> smoothSignals = createSmoothenedArray(signals);
-    
-    int ons = 0;
-    for (int i = 0; i < signalsPerActualBit; i++) {
-      ons += smoothSignals.get(i) ? 1 : 0;
-    }
-    
-    double percentage = Math.round((double) ons / (double) signalsPerActualBit);
-
-    if (Math.max(percentage, 1.0 - percentage) >= SIGNAL_THRESHOLD) {
-      boolean value = percentage >= 0.5;
-      listener.onBitReceived(value);
-      
-      // Find where the signal changed.
-      int i = signals.size() - 1;
-      for (; i >= signals.size() - 1 - ((double) signalsPerActualBit); i--) {
-        if (smoothSignals.get(i) == value) {
-          i = Math.min(i, signalsPerActualBit - 1);
-          break;
-        }
-      }
-      
-      for (int j = 0; j < i + 1; j++) {
-        signals.removeFirst();
-      }
-    } else {
-      signals.removeFirst();
+    lastFilteredSignal = isOn;
+
+    onsInBit += isOn ? 1 : 0;
+    signalsInBit++;
+    phase += 1.0;
+
+    if (phase >= period) {
+      double onFraction = (double) onsInBit / (double) signalsInBit;
+      listener.onBitReceived(onFraction >= 0.5, onFraction);
+
+      phase -= period;
+      onsInBit = 0;
+      signalsInBit = 0;
     }
   }
-  
+
   /**
-   * Replaces elements with two opposite values adjacent to it with the opposite value and replaces
-   * the start and end if the next/previous two values are opposite.
+   * Handles a transition, which should have happened right on a bit boundary. A positive error
+   * means our bit started early and a negative error means it started late.
    */
-  private List<Boolean> createSmoothenedArray(List<Boolean> signals) {
-    int size = signals.size();
-    if (size < 3) {
-      return ImmutableList.copyOf(signals);
-    }
-    
-    ImmutableList.Builder<Boolean> builder = ImmutableList.<Boolean>builder();
-    
-    // Compare start against next two.
-    if ((signals.get(0) != signals.get(1)) && (signals.get(1) == signals.get(2))) {
-      builder.add(signals.get(1));
-    } else {
-      builder.add(signals.get(0));
-    }
-    
-    // Compare middle values against both adjacent values.
-    for (int i = 1; i < size - 1; i++) {
-      boolean previousValue = signals.get(i - 1);
-      boolean value = signals.get(i);
-      boolean nextValue = signals.get(i + 1);
-      
-      boolean newValue = value;
-      if ((previousValue == nextValue) && (value != previousValue)) {
-        newValue = previousValue;
-      }
-      
-      builder.add(newValue);
-    }
-    
-    // Compare end against previous two.
-    if ((signals.get(size - 1) != signals.get(size - 2))
-        && (signals.get(size - 2) == signals.get(size - 3))) {
-      builder.add(signals.get(size - 2));
-    } else {
-      builder.add(signals.get(size - 1));
-    }
-     
-    return builder.build();
+  private void handleTransition() {
+    double error = (phase < period / 2) ? phase : phase - period;
+    error = Math.max(-period * MAX_ERROR, Math.min(period * MAX_ERROR, error));
+
+    phase -= PHASE_GAIN * error;
+
+    double minimumPeriod = nominalPeriod * (1.0 - MAX_PERIOD_DEVIATION);
+    double maximumPeriod = nominalPeriod * (1.0 + MAX_PERIOD_DEVIATION);
+    period = Math.max(minimumPeriod, Math.min(maximumPeriod, period + PERIOD_GAIN * error));
   }
 }
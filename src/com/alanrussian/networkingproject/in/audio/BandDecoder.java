@@ -0,0 +1,240 @@
+package com.alanrussian.networkingproject.in.audio;
+
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.in.audio.frame.FrameWatcher;
+import com.alanrussian.networkingproject.in.audio.math.RunningAverage;
+import com.alanrussian.networkingproject.in.audio.math.Statistics;
+import com.alanrussian.networkingproject.in.audio.math.ToneDetector;
+
+/**
+ * Finds frames sent on one {@link LinkProfile.Band} of a link in sound that has already been
+ * partitioned and transformed, and keeps track of whether anyone is sending on the band.
+ */
+class BandDecoder {
+
+  /**
+   * The number of bits to listen to for measuring each isLineActive.
+   */
+  private static final int LINE_ACTIVE_COUNT = 3;
+
+  private final ToneDetector offDetector;
+  private final ToneDetector offOffsetDetector;
+  private final ToneDetector onDetector;
+  private final ToneDetector onOffsetDetector;
+
+  private final FrameWatcher frameWatcher;
+  private final AudioSignalParser audioSignalParser;
+
+  private final RunningAverage offRunningAverage;
+  private final RunningAverage onRunningAverage;
+
+  /**
+   * Line activity is measured every partition and averaged with a 1 being on and a 0 being off.
+   */
+  private final RunningAverage lineActivity;
+
+  private final AudioSignalParser.Listener audioSignalParserListener =
+      new AudioSignalParser.Listener() {
+        @Override
+        public void onBitReceived(boolean value, double onFraction) {
+          frameWatcher.addSoftBit(onFraction);
+        }
+      };
+
+  private volatile boolean isEnabled;
+
+  /**
+   * @param signalsPerBit the number of partitions that each bit is split into
+   * @param samplesPerPartition the number of samples in each partition
+   */
+  public BandDecoder(
+      LinkProfile profile,
+      LinkProfile.Band band,
+      int signalsPerBit,
+      int samplesPerPartition,
+      FrameWatcher.Listener listener) {
+
+    int sampleRate = profile.getSoundFormat().getSampleRate();
+    double secondOffset = profile.getFrequencySecondOffset();
+
+    this.offDetector =
+        new ToneDetector(profile.getFrequencyOff(band), samplesPerPartition, sampleRate);
+    this.offOffsetDetector = new ToneDetector(
+        profile.getFrequencyOff(band) + secondOffset, samplesPerPartition, sampleRate);
+    this.onDetector =
+        new ToneDetector(profile.getFrequencyOn(band), samplesPerPartition, sampleRate);
+    this.onOffsetDetector = new ToneDetector(
+        profile.getFrequencyOn(band) + secondOffset, samplesPerPartition, sampleRate);
+
+    this.frameWatcher = new FrameWatcher(profile, listener);
+    this.audioSignalParser = new AudioSignalParser(signalsPerBit, audioSignalParserListener);
+
+    this.offRunningAverage = new RunningAverage(signalsPerBit);
+    this.onRunningAverage = new RunningAverage(signalsPerBit);
+
+    this.lineActivity = new RunningAverage(LINE_ACTIVE_COUNT);
+
+    isEnabled = true;
+  }
+
+  /**
+   * Sets whether sound is processed. The line is measured afresh once this is enabled again.
+   */
+  public synchronized void setEnabled(boolean isEnabled) {
+    if (isEnabled && !this.isEnabled) {
+      lineActivity.clear();
+    }
+
+    this.isEnabled = isEnabled;
+  }
+
+  /**
+   * Returns whether nobody seems to be sending on the band.
+   */
+  public synchronized boolean isLineClear() {
+    return lineActivity.haveAverage() && (lineActivity.getAverage() < 0.5);
+  }
+
+  /**
+   * Measures the band's frequencies in {@code partitions} partitions of {@code samples} without
+   * processing them, so that the measuring code is loaded and compiled before sound arrives.
+   */
+  public void warmUp(double[] samples, int partitions) {
+    warmUp(partitionsOf(samples, partitions));
+  }
+
+  /**
+   * Measures the band's frequencies in single precision {@code samples} without processing them.
+   *
+   * @see #warmUp(double[], int)
+   */
+  public void warmUp(float[] samples, int partitions) {
+    warmUp(partitionsOf(samples, partitions));
+  }
+
+  /**
+   * Processes {@code partitions} consecutive partitions of {@code samples}.
+   */
+  public void process(double[] samples, int partitions) {
+    process(partitionsOf(samples, partitions));
+  }
+
+  /**
+   * Processes {@code partitions} consecutive partitions of single precision {@code samples}.
+   */
+  public void process(float[] samples, int partitions) {
+    process(partitionsOf(samples, partitions));
+  }
+
+  private void warmUp(Partitions partitions) {
+    getMagnitudes(offDetector, offOffsetDetector, partitions);
+    getMagnitudes(onDetector, onOffsetDetector, partitions);
+  }
+
+  private void process(Partitions partitions) {
+    if (!isEnabled) {
+      return;
+    }
+
+    processMagnitudes(
+        getMagnitudes(offDetector, offOffsetDetector, partitions),
+        getMagnitudes(onDetector, onOffsetDetector, partitions));
+  }
+
+  /**
+   * Processes the magnitudes of the off and on frequencies in consecutive partitions.
+   */
+  private void processMagnitudes(double[] offMagnitudes, double[] onMagnitudes) {
+    int partitions = offMagnitudes.length;
+
+    double offMagnitudeSum = 0.0;
+    double onMagnitudeSum = 0.0;
+
+    for (int i = 0; i < partitions; i++) {
+      double offMagnitude = offMagnitudes[i];
+      double onMagnitude = onMagnitudes[i];
+
+      offMagnitudeSum += offMagnitude;
+      onMagnitudeSum += onMagnitude;
+
+      boolean value = onMagnitude > offMagnitude;
+
+      audioSignalParser.addSignal(value);
+
+      if (value) {
+        offRunningAverage.add(offMagnitude);
+      } else {
+        onRunningAverage.add(onMagnitude);
+      }
+    }
+
+    if (offRunningAverage.haveAverage() && onRunningAverage.haveAverage()) {
+      double offMagnitudeAverage = offMagnitudeSum / partitions;
+      double onMagnitudeAverage = onMagnitudeSum / partitions;
+
+      boolean isLineFree =
+          Statistics.isWithinAverage(
+              onMagnitudeAverage,
+              onRunningAverage.getAverage(),
+              onRunningAverage.getStandardDeviation(),
+              3 /* deviations */)
+          && Statistics.isWithinAverage(
+              offMagnitudeAverage,
+              offRunningAverage.getAverage(),
+              offRunningAverage.getStandardDeviation(),
+              3 /* deviations */);
+
+      synchronized (this) {
+        lineActivity.add(isLineFree ? 0 : 1);
+      }
+    }
+  }
+
+  /**
+   * Returns the combined magnitude of the frequencies of {@code detector} and {@code
+   * offsetDetector} in each partition.
+   */
+  private static double[] getMagnitudes(
+      ToneDetector detector,
+      ToneDetector offsetDetector,
+      Partitions partitions) {
+
+    double[] magnitudes = partitions.getMagnitudes(detector);
+    double[] offsetMagnitudes = partitions.getMagnitudes(offsetDetector);
+    for (int i = 0; i < magnitudes.length; i++) {
+      magnitudes[i] += offsetMagnitudes[i];
+    }
+
+    return magnitudes;
+  }
+
+  /**
+   * Consecutive partitions of sound in either precision, so that the two are measured and
+   * processed the same way.
+   */
+  private static interface Partitions {
+
+    /**
+     * Returns the magnitude of the frequency of {@code detector} in each partition.
+     */
+    double[] getMagnitudes(ToneDetector detector);
+  }
+
+  private static Partitions partitionsOf(final double[] samples, final int partitions) {
+    return new Partitions() {
+      @Override
+      public double[] getMagnitudes(ToneDetector detector) {
+        return detector.getMagnitudes(samples, partitions);
+      }
+    };
+  }
+
+  private static Partitions partitionsOf(final float[] samples, final int partitions) {
+    return new Partitions() {
+      @Override
+      public double[] getMagnitudes(ToneDetector detector) {
+        return detector.getMagnitudes(samples, partitions);
+      }
+    };
+  }
+}
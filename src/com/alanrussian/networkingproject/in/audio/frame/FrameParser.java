@@ -3,6 +3,7 @@ package com.alanrussian.networkingproject.in.audio.frame;
 import java.util.List;
 
 import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.LinkProfile;
 import com.alanrussian.networkingproject.in.audio.frame.ManchesterParser.ManchesterEncodingException;
 import com.google.common.base.Optional;
 
@@ -21,26 +22,63 @@ class FrameParser {
     private static final long serialVersionUID = 1L;
   }
   
+  private final List<Boolean> checksum;
+  private final List<Boolean> end;
+
   private final ManchesterParser sourceIdParser;
   private final ManchesterParser targetParser;
   private final ManchesterParser sizeParser;
-  private final ManchesterParser dataParser;
+  private final ManchesterParser sequenceParser;
+  private final ManchesterParser startFlagParser;
+  private final ManchesterParser sessionParser;
+  private final ManchesterParser ackFlagParser;
+  private final ManchesterParser ackBaseParser;
+  private final ManchesterParser ackBitmapParser;
+  
+  /**
+   * Parser for the data part of the frame. This is only created once the size is known.
+   */
+  private ManchesterParser dataParser;
   
   private Optional<Integer> source;
   private Optional<Integer> target;
   private Optional<Integer> size;
+  private Optional<Integer> sequence;
+  private Optional<Boolean> isStart;
+  private Optional<Integer> session;
+  private Optional<Boolean> hasAck;
+  
+  /**
+   * The first sequence number acknowledged by a data frame. ACK frames use {@link #sequence}.
+   */
+  private Optional<Integer> ackBase;
+  private Optional<Integer> ackBitmap;
   private int checksumIndex;
   private int endIndex;
 
-  public FrameParser() {
-    this.sourceIdParser = new ManchesterParser();
-    this.targetParser = new ManchesterParser();
-    this.sizeParser = new ManchesterParser();
-    this.dataParser = new ManchesterParser();
+  public FrameParser(LinkProfile profile) {
+    this.checksum = profile.getFrameChecksum();
+    this.end = profile.getFrameEnd();
+
+    this.sourceIdParser = new ManchesterParser(profile.getAddressBits());
+    this.targetParser = new ManchesterParser(profile.getAddressBits());
+    this.sizeParser = new ManchesterParser(Constants.AUDIO_FRAME_SIZE_BITS);
+    this.sequenceParser = new ManchesterParser(Constants.AUDIO_FRAME_SEQUENCE_BITS);
+    this.startFlagParser = new ManchesterParser(1);
+    this.sessionParser = new ManchesterParser(Constants.AUDIO_FRAME_SESSION_BITS);
+    this.ackFlagParser = new ManchesterParser(1);
+    this.ackBaseParser = new ManchesterParser(Constants.AUDIO_FRAME_SEQUENCE_BITS);
+    this.ackBitmapParser = new ManchesterParser(Constants.AUDIO_FRAME_WINDOW);
 
     source = Optional.absent();
     target = Optional.absent();
     size = Optional.absent();
+    sequence = Optional.absent();
+    isStart = Optional.absent();
+    session = Optional.absent();
+    hasAck = Optional.absent();
+    ackBase = Optional.absent();
+    ackBitmap = Optional.absent();
     checksumIndex = 0;
     endIndex = 0;
   }
@@ -78,14 +116,77 @@ class FrameParser {
       return false;
     }
     
+    if (!sequence.isPresent()) {
+      try {
+        handleNewSequenceBit(value);
+      } catch (ManchesterEncodingException e) {
+        throw new FrameLossException("Misinterpreted sequence encoding");
+      }
+      return false;
+    }
+    
     // Handle ACK case.
     if (size.get() == 0) {
+      if (!ackBitmap.isPresent()) {
+        try {
+          handleNewAckBitmapBit(value);
+        } catch (ManchesterEncodingException e) {
+          throw new FrameLossException("Misinterpreted ACK bitmap encoding");
+        }
+        return false;
+      }
+
       handleNewFrameEndBit(value);
 
       return isFrameFinished();
     }
     
-    if (dataParser.size() != size.get() * 8 /* bits in byte */) {
+    if (!isStart.isPresent()) {
+      try {
+        handleNewStartFlagBit(value);
+      } catch (ManchesterEncodingException e) {
+        throw new FrameLossException("Misinterpreted start flag encoding");
+      }
+      return false;
+    }
+    
+    if (isStart.get() && !session.isPresent()) {
+      try {
+        handleNewSessionBit(value);
+      } catch (ManchesterEncodingException e) {
+        throw new FrameLossException("Misinterpreted session encoding");
+      }
+      return false;
+    }
+    
+    if (!hasAck.isPresent()) {
+      try {
+        handleNewAckFlagBit(value);
+      } catch (ManchesterEncodingException e) {
+        throw new FrameLossException("Misinterpreted ACK flag encoding");
+      }
+      return false;
+    }
+    
+    if (hasAck.get() && !ackBase.isPresent()) {
+      try {
+        handleNewAckBaseBit(value);
+      } catch (ManchesterEncodingException e) {
+        throw new FrameLossException("Misinterpreted ACK base encoding");
+      }
+      return false;
+    }
+    
+    if (hasAck.get() && !ackBitmap.isPresent()) {
+      try {
+        handleNewAckBitmapBit(value);
+      } catch (ManchesterEncodingException e) {
+        throw new FrameLossException("Misinterpreted ACK bitmap encoding");
+      }
+      return false;
+    }
+    
+    if (!dataParser.isFull()) {
       try {
         handleNewDataBit(value);
       } catch (ManchesterEncodingException e) {
@@ -94,7 +195,7 @@ class FrameParser {
       return false;
     }
     
-    if (checksumIndex != Constants.AUDIO_FRAME_CHECKSUM.size()) {
+    if (checksumIndex != checksum.size()) {
       handleNewChecksumBit(value);
       return false;
     }
@@ -131,11 +232,67 @@ class FrameParser {
   }
   
   /**
-   * Returns the data as a list of booleans.
+   * Returns the sequence number of a data frame.
+   * 
+   * @throws IllegalStateException if the frame has not yet ended
+   */
+  public int getSequence() {
+    if (!isFrameFinished()) {
+      throw new IllegalStateException();
+    }
+    
+    return sequence.get();
+  }
+  
+  /**
+   * Returns the session that a data frame starts the sequence numbers over in, or -1 if it does not
+   * start them over.
+   * 
+   * @throws IllegalStateException if the frame has not yet ended
+   */
+  public int getSession() {
+    if (!isFrameFinished()) {
+      throw new IllegalStateException();
+    }
+    
+    return session.or(-1);
+  }
+  
+  /**
+   * Returns the sequence numbers acknowledged by an ACK frame, or by the ACK carried in a data
+   * frame, as a bit mask with bit {@code i} set if sequence number {@code i} is acknowledged. This
+   * is zero for a data frame that does not carry an ACK.
+   * 
+   * @throws IllegalStateException if the frame has not yet ended
+   */
+  public int getAcknowledgedSequences() {
+    if (!isFrameFinished()) {
+      throw new IllegalStateException();
+    }
+    
+    if (!isAckFrame() && !hasAck.get()) {
+      return 0;
+    }
+    
+    int base = isAckFrame() ? sequence.get() : ackBase.get();
+    
+    // The first bit of the bitmap is the base sequence number itself.
+    int acknowledgedSequences = 0;
+    for (int i = 0; i < Constants.AUDIO_FRAME_WINDOW; i++) {
+      if ((ackBitmap.get() & (1 << (Constants.AUDIO_FRAME_WINDOW - 1 - i))) != 0) {
+        acknowledgedSequences |= 1 << ((base + i) % Constants.AUDIO_FRAME_SEQUENCES);
+      }
+    }
+    
+    return acknowledgedSequences;
+  }
+  
+  /**
+   * Returns the data, which is exactly as long as the size in the frame.
    * 
    * @throws IllegalStateException if the frame has not yet ended
    */
-  public List<Boolean> getData() {
+  public byte[] getData() {
     if (!isFrameFinished()) {
       throw new IllegalStateException();
     }
@@ -162,11 +319,11 @@ class FrameParser {
   private void handleNewSourceBit(boolean value) throws ManchesterEncodingException {
     sourceIdParser.addBit(value);
     
-    if (sourceIdParser.size() != Constants.COMPUTER_ID_BITS) {
+    if (!sourceIdParser.isFull()) {
       return;
     }
 
-    source = Optional.of(convertBooleansToNumber(sourceIdParser.getData()));
+    source = Optional.of(sourceIdParser.getNumber());
   }
   
   /**
@@ -175,11 +332,11 @@ class FrameParser {
   private void handleNewTargetBit(boolean value) throws ManchesterEncodingException {
     targetParser.addBit(value);
     
-    if (targetParser.size() != Constants.COMPUTER_ID_BITS) {
+    if (!targetParser.isFull()) {
       return;
     }
 
-    target = Optional.of(convertBooleansToNumber(targetParser.getData()));
+    target = Optional.of(targetParser.getNumber());
   }
   
   /**
@@ -188,11 +345,91 @@ class FrameParser {
   private void handleNewSizeBit(boolean value) throws ManchesterEncodingException {
     sizeParser.addBit(value);
     
-    if (sizeParser.size() != Constants.AUDIO_FRAME_SIZE_BITS) {
+    if (!sizeParser.isFull()) {
       return;
     }
 
-    size = Optional.of(convertBooleansToNumber(sizeParser.getData()));
+    size = Optional.of(sizeParser.getNumber());
+    dataParser = new ManchesterParser(size.get() * 8 /* bits in byte */);
+  }
+  
+  /**
+   * Handles a new bit while in the sequence part of the frame.
+   */
+  private void handleNewSequenceBit(boolean value) throws ManchesterEncodingException {
+    sequenceParser.addBit(value);
+    
+    if (!sequenceParser.isFull()) {
+      return;
+    }
+
+    sequence = Optional.of(sequenceParser.getNumber());
+  }
+  
+  /**
+   * Handles a new bit while in the part of a data frame saying whether it starts the sequence
+   * numbers over.
+   */
+  private void handleNewStartFlagBit(boolean value) throws ManchesterEncodingException {
+    startFlagParser.addBit(value);
+    
+    if (!startFlagParser.isFull()) {
+      return;
+    }
+
+    isStart = Optional.of(startFlagParser.getNumber() == 1);
+  }
+  
+  /**
+   * Handles a new bit while in the session part of a data frame.
+   */
+  private void handleNewSessionBit(boolean value) throws ManchesterEncodingException {
+    sessionParser.addBit(value);
+    
+    if (!sessionParser.isFull()) {
+      return;
+    }
+
+    session = Optional.of(sessionParser.getNumber());
+  }
+  
+  /**
+   * Handles a new bit while in the part of a data frame saying whether it carries an ACK.
+   */
+  private void handleNewAckFlagBit(boolean value) throws ManchesterEncodingException {
+    ackFlagParser.addBit(value);
+    
+    if (!ackFlagParser.isFull()) {
+      return;
+    }
+
+    hasAck = Optional.of(ackFlagParser.getNumber() == 1);
+  }
+  
+  /**
+   * Handles a new bit while in the ACK base part of a data frame.
+   */
+  private void handleNewAckBaseBit(boolean value) throws ManchesterEncodingException {
+    ackBaseParser.addBit(value);
+    
+    if (!ackBaseParser.isFull()) {
+      return;
+    }
+
+    ackBase = Optional.of(ackBaseParser.getNumber());
+  }
+  
+  /**
+   * Handles a new bit while in the ACK bitmap part of the frame.
+   */
+  private void handleNewAckBitmapBit(boolean value) throws ManchesterEncodingException {
+    ackBitmapParser.addBit(value);
+    
+    if (!ackBitmapParser.isFull()) {
+      return;
+    }
+
+    ackBitmap = Optional.of(ackBitmapParser.getNumber());
   }
   
   /**
@@ -206,7 +443,7 @@ class FrameParser {
    * Handles a new bit while in the checksum part of the frame.
    */
   private void handleNewChecksumBit(boolean value) throws FrameLossException {
-    if (Constants.AUDIO_FRAME_CHECKSUM.get(checksumIndex) != value) {
+    if (checksum.get(checksumIndex) != value) {
       throw new FrameLossException("Bad checksum");
     }
     
@@ -217,32 +454,17 @@ class FrameParser {
    * Handles a new bit while in the end part of the frame.
    */
   private void handleNewFrameEndBit(boolean value) throws FrameLossException {
-    if (Constants.AUDIO_FRAME_END.get(endIndex) != value) {
+    if (end.get(endIndex) != value) {
       throw new FrameLossException("Bad end");
     }
     
     endIndex++;
   }
   
-  /**
-   * Converts a list of booleans into the number it represents.
-   */
-  private static int convertBooleansToNumber(List<Boolean> booleans) {
-    int number = 0;
-    
-    for (int i = 0; i < booleans.size(); i++) {
-      if (booleans.get(i)) {
-        number += Math.pow(2, booleans.size() - i - 1);
-      }
-    }
-
-    return number;
-  }
-  
   /**
    * Returns whether a frame has ended.
    */
   private boolean isFrameFinished() {
-    return endIndex == Constants.AUDIO_FRAME_END.size();
+    return endIndex == end.size();
   }
 }
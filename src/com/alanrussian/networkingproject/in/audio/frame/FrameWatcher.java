@@ -1,53 +1,111 @@
 package com.alanrussian.networkingproject.in.audio.frame;
 
-import java.util.BitSet;
-import java.util.LinkedList;
 import java.util.List;
 
-import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.LinkProfile;
 import com.alanrussian.networkingproject.in.audio.AudioDecoder;
 import com.alanrussian.networkingproject.in.audio.frame.FrameParser.FrameLossException;
-import com.google.common.collect.Iterables;
 
 /**
  * Listens for new bits from {@link AudioDecoder} and tries to construct a frame from them.
+ *
+ * <p>The start of a frame is found by correlating the last bits received against a preamble rather
+ * than by comparing them exactly, so a frame is still found if one of its preamble bits was
+ * misheard.
  */
 public class FrameWatcher {
   
   public interface Listener {
     
+    /**
+     * Triggered when the start of a frame has been found.
+     *
+     * @param confidence the correlation with the preamble, from the threshold up to 1.0
+     */
+    void onFrameStartFound(double confidence);
+    
     /**
      * Triggered when a frame of data has been received.
+     *
+     * @param session the session that the sender starts its sequence numbers over in with this
+     *     frame, or -1 if it does not start them over
+     * @param acknowledgedSequences a mask with bit {@code n} set if sequence number {@code n} was
+     *     acknowledged by the frame, or zero if it does not carry an ACK
      */
-    void onDataFrameFound(int source, int target, byte[] data);
+    void onDataFrameFound(
+        int source,
+        int target,
+        int sequence,
+        int session,
+        int acknowledgedSequences,
+        byte[] data);
     
     /**
      * Triggered when an ACK frame has been received.
+     *
+     * @param acknowledgedSequences a mask with bit {@code n} set if sequence number {@code n} was
+     *     acknowledged
      */
-    void onAckFrameFound(int source, int target);
+    void onAckFrameFound(int source, int target, int acknowledgedSequences);
   }
 
+  private final LinkProfile profile;
   private final Listener listener;
-  private final LinkedList<Boolean> frameStartTracker;
+  
+  /**
+   * The preamble as +1.0 for on bits and -1.0 for off bits.
+   */
+  private final double[] preamble;
+  private final double threshold;
+  
+  /**
+   * Circular buffer of the last bits received as values from -1.0 (surely off) to 1.0 (surely on).
+   */
+  private final double[] frameStartTracker;
+  private int frameStartTrackerIndex;
+  private int frameStartTrackerSize;
   
   private boolean isInFrame;
   private FrameParser frameParser;
   
-  public FrameWatcher(Listener listener) {
+  /**
+   * @param profile the link whose frames to look for, which gives the preamble and the correlation
+   *     with it at or above which a frame is considered to have started
+   */
+  public FrameWatcher(LinkProfile profile, Listener listener) {
+    this.profile = profile;
     this.listener = listener;
+    this.threshold = profile.getFrameStartThreshold();
+    
+    List<Boolean> preamble = profile.getFrameStart();
     
-    this.frameStartTracker = new LinkedList<>();
+    this.preamble = new double[preamble.size()];
+    for (int i = 0; i < preamble.size(); i++) {
+      this.preamble[i] = preamble.get(i) ? 1.0 : -1.0;
+    }
+    
+    this.frameStartTracker = new double[preamble.size()];
   }
   
   /**
    * Handles a new bit.
    */
   public void addBit(boolean value) {
-//    System.out.print(value ? 1 : 0);
+    addSoftBit(value ? 1.0 : 0.0);
+  }
+  
+  /**
+   * Handles a new bit given how sure we are of its value.
+   * 
+   * @param onFraction how much of the bit was heard as on, from 0.0 to 1.0. The bit is considered
+   *     on if this is at least 0.5.
+   */
+  public void addSoftBit(double onFraction) {
+//    System.out.print(onFraction >= 0.5 ? 1 : 0);
     if (isInFrame) {
-      handleNewBitWhileInFrame(value);
+      handleNewBitWhileInFrame(onFraction);
     } else {
-      handleNewBitWhileNotInFrame(value);
+      handleNewBitWhileNotInFrame(onFraction);
     }
   }
   
@@ -66,22 +124,33 @@ public class FrameWatcher {
   /**
    * Handles a new bit while not inside a frame.
    */
-  private void handleNewBitWhileNotInFrame(boolean value) {
-      boolean isTrackerFull = addValueToTracker(value);
-      
-      if (isTrackerFull
-          && Iterables.elementsEqual(frameStartTracker, Constants.AUDIO_FRAME_START)) {
-        isInFrame = true;
-        frameParser = new FrameParser();
+  private void handleNewBitWhileNotInFrame(double onFraction) {
+    boolean isTrackerFull = addValueToTracker(onFraction);
+    if (!isTrackerFull) {
+      return;
+    }
+    
+    double correlation = getFrameStartCorrelation();
+    if (correlation < threshold) {
+      return;
+    }
 
-//        System.out.println("Frame start");
-      }
+    isInFrame = true;
+    frameParser = new FrameParser(profile);
+    
+    // Start over so that the bits of this frame cannot be mistaken for the start of another.
+    frameStartTrackerSize = 0;
+
+//    System.out.println("Frame start");
+    listener.onFrameStartFound(correlation);
   }
   
   /**
    * Handles a new bit while inside a frame.
    */
-  private void handleNewBitWhileInFrame(boolean value) {
+  private void handleNewBitWhileInFrame(double onFraction) {
+    boolean value = onFraction >= 0.5;
+
     try {
       if (!frameParser.addBit(value)) {
         return;
@@ -90,7 +159,7 @@ public class FrameWatcher {
 //      System.err.println("Frame loss (" + e.getMessage() + ")");
       
       isInFrame = false;
-      addValueToTracker(value);
+      addValueToTracker(onFraction);
 
       return;
     }
@@ -100,39 +169,52 @@ public class FrameWatcher {
     isInFrame = false;
     
     if (frameParser.isAckFrame()) {
-      listener.onAckFrameFound(frameParser.getSource(), frameParser.getTarget());
+      listener.onAckFrameFound(
+          frameParser.getSource(),
+          frameParser.getTarget(),
+          frameParser.getAcknowledgedSequences());
       
       return;
     }
     
-    List<Boolean> data = frameParser.getData();
-
-    BitSet bitSet = new BitSet(data.size());
-    for (int i = 0; i < data.size(); i++) {
-      bitSet.set(i, data.get(i));
-    }
-
+    // The parser is not reused, so its data can be handed over without a copy.
     listener.onDataFrameFound(
         frameParser.getSource(),
         frameParser.getTarget(),
-        bitSet.toByteArray());
+        frameParser.getSequence(),
+        frameParser.getSession(),
+        frameParser.getAcknowledgedSequences(),
+        frameParser.getData());
   }
   
   /**
-   * Adds a value to the tracker. Makes sure that the tracker size does not exceed the size of the
-   * constant.
+   * Adds a value to the tracker, overwriting the oldest value once the tracker is full.
    * 
    * @return whether the tracker is full.
    */
-  private boolean addValueToTracker(boolean value) {
-
-    int sizeDifference = Constants.AUDIO_FRAME_START.size() - frameStartTracker.size();
-    if (sizeDifference == 0) {
-      frameStartTracker.removeFirst();
+  private boolean addValueToTracker(double onFraction) {
+    frameStartTracker[frameStartTrackerIndex] = 2.0 * onFraction - 1.0;
+    frameStartTrackerIndex = (frameStartTrackerIndex + 1) % frameStartTracker.length;
+    
+    if (frameStartTrackerSize < frameStartTracker.length) {
+      frameStartTrackerSize++;
     }
     
-    frameStartTracker.addLast(value);
+    return frameStartTrackerSize == frameStartTracker.length;
+  }
+  
+  /**
+   * Returns the normalized correlation, from -1.0 to 1.0, between the full tracker and the
+   * preamble.
+   */
+  private double getFrameStartCorrelation() {
+    double sum = 0.0;
+
+    // The oldest value is at the current index.
+    for (int i = 0; i < preamble.length; i++) {
+      sum += preamble[i] * frameStartTracker[(frameStartTrackerIndex + i) % preamble.length];
+    }
     
-    return sizeDifference <= 1;
+    return sum / preamble.length;
   }
 }
@@ -1,12 +1,10 @@
 package com.alanrussian.networkingproject.in.audio.frame;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 
 /**
  * Listens to a bits parsed from a Manchester Encoded audio signal and tries to find data from it.
+ * Decoded bits are shifted straight into a byte array sized for the expected number of bits.
  */
 class ManchesterParser {
   
@@ -18,41 +16,78 @@ class ManchesterParser {
     private static final long serialVersionUID = 1L;
   }
   
-  private final List<Boolean> data;
+  private final int capacity;
+  private final byte[] data;
   
-  private Optional<Boolean> lastValue;
+  private int size;
+  private int number;
+  private boolean hasLastValue;
+  private boolean lastValue;
   
-  public ManchesterParser() {
-    this.data = new ArrayList<>();
+  /**
+   * @param capacity the number of decoded bits to expect
+   */
+  public ManchesterParser(int capacity) {
+    Preconditions.checkArgument(capacity >= 0);
 
-    lastValue = Optional.absent();
+    this.capacity = capacity;
+    this.data = new byte[(capacity + 7) / 8];
   }
 
+  /**
+   * Adds an encoded bit.
+   *
+   * @throws IllegalStateException if {@link #capacity} bits have already been decoded
+   */
   public void addBit(boolean value) throws ManchesterEncodingException {
-    if (!lastValue.isPresent()) {
-      lastValue = Optional.of(value);
+    Preconditions.checkState(size < capacity, "Parser is full");
+
+    if (!hasLastValue) {
+      lastValue = value;
+      hasLastValue = true;
       return;
     }
 
-    if (lastValue.get() == value) {
+    if (lastValue == value) {
       throw new ManchesterEncodingException();
-    } else {
-      data.add(lastValue.get());
-      lastValue = Optional.absent();
     }
+
+    if (lastValue) {
+      data[size / 8] |= 1 << (size % 8);
+    }
+    number = (number << 1) | (lastValue ? 1 : 0);
+
+    size++;
+    hasLastValue = false;
   }
   
   /**
-   * Returns the decoded data.
+   * Returns the decoded data, where decoded bit {@code i} is bit {@code i % 8} of byte {@code i /
+   * 8}. This is the same layout as {@link java.util.BitSet#toByteArray}, except that the array is
+   * always sized for {@link #capacity} bits.
    */
-  public List<Boolean> getData() {
+  public byte[] getData() {
     return data;
   }
+  
+  /**
+   * Returns the decoded bits as a number with the first bit being the most significant.
+   */
+  public int getNumber() {
+    return number;
+  }
 
   /**
    * Returns the size of the decoded data.
    */
-  public Integer size() {
-    return data.size();
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Returns whether {@link #capacity} bits have been decoded.
+   */
+  public boolean isFull() {
+    return size == capacity;
   }
 }
@@ -0,0 +1,432 @@
+package com.alanrussian.networkingproject.in.audio.math;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Removes the sound that we play ourselves from recorded sound with an NLMS (normalized least mean
+ * squares) adaptive filter, so that sound can be received while sending.
+ *
+ * <p>Each sample played is a reference, placed at the position of the recorded sample that it is
+ * expected to be heard in. The filter learns how the speaker, the room and the microphone delay
+ * and color the references and subtracts its estimate of them from each recorded sample. It costs
+ * two multiplications per filter tap per sample, and nothing while no reference has been played
+ * for a filter length.
+ *
+ * <p>Other computers send the same tones as us, so the filter would learn to remove them too. It
+ * therefore only trains freely at the start of the sound that we play, when nobody else is sending
+ * since the line was clear, and afterwards stops adapting whenever the sound left over jumps, which
+ * means that someone else started sending.
+ *
+ * <p>The filter is short, so references have to be placed close to where they are heard. Until it
+ * is known how much later than that they are heard, the start of the sound that we play is used to
+ * find out: how loud the references are is cross-correlated with how loud the recorded sound is, a
+ * block of samples at a time, and the references are moved by the lag that fits best.
+ */
+public class EchoCanceller {
+
+  /**
+   * How much of the error each update corrects, from 0.0 to 2.0.
+   */
+  private static final double STEP_SIZE = 0.1;
+
+  /**
+   * Added to the reference energy so that quiet references do not cause huge updates.
+   */
+  private static final double REGULARIZATION = 1e-6;
+
+  /**
+   * How quickly {@link #fastErrorPower} and {@link #slowErrorPower} follow the sound left over.
+   */
+  private static final double FAST_SMOOTHING = 0.01;
+  private static final double SLOW_SMOOTHING = 0.0005;
+
+  /**
+   * How many times more power the sound left over has recently than it had before while someone
+   * else is sending.
+   */
+  private static final double DOUBLE_TALK_RATIO = 2.0;
+
+  /**
+   * The number of blocks that loudness is measured in per filter length while finding the delay.
+   * The delay that is found is off by up to a block, which the filter covers.
+   */
+  private static final int DELAY_BLOCKS_PER_FILTER = 8;
+
+  /**
+   * How well the loudness of the references has to correlate with that of the recorded sound,
+   * from 0.0 to 1.0, for the lag that fits best to be taken as the delay.
+   */
+  private static final double DELAY_MIN_CORRELATION = 0.5;
+
+  /**
+   * Sound that was played, starting at the position of a recorded sample.
+   */
+  private static class Reference {
+
+    private final long startPosition;
+    private final double[] samples;
+
+    private Reference(long startPosition, double[] samples) {
+      this.startPosition = startPosition;
+      this.samples = samples;
+    }
+
+    private long getEndPosition() {
+      return startPosition + samples.length;
+    }
+  }
+
+  private final int filterLength;
+  private final int trainingLength;
+  private final double[] weights;
+
+  /**
+   * The number of samples in each block that loudness is measured in while finding the delay.
+   */
+  private final int blockLength;
+
+  /**
+   * The most blocks that references may be heard after where they are placed.
+   */
+  private final int maxDelayBlocks;
+
+  /**
+   * The number of blocks of the start of the sound that we play that the delay is found from.
+   */
+  private final int trainingBlocks;
+
+  /**
+   * The loudness of the last blocks of references and of recorded sound, indexed by block number
+   * modulo their length.
+   */
+  private final double[] referenceBlocks;
+  private final double[] recordedBlocks;
+
+  /**
+   * The last {@link #filterLength} reference samples, newest first from {@link #historyIndex}.
+   * Every sample is stored twice, {@link #filterLength} apart, so the filter never wraps around.
+   */
+  private final double[] history;
+
+  private final ArrayDeque<Reference> references;
+
+  private int historyIndex;
+  private double historyEnergy;
+
+  /**
+   * The number of samples processed since the last nonzero reference sample.
+   */
+  private int silentSamples;
+
+  /**
+   * The number of samples processed since the references started after being silent.
+   */
+  private int echoSamples;
+
+  private double fastErrorPower;
+  private double slowErrorPower;
+
+  /**
+   * The number of samples that references are moved later by, which is a little less than how much
+   * later they are heard than where they are placed, or -1 until that has been found.
+   */
+  private int delay;
+
+  /**
+   * The delay that references are moved later by once none are being heard, or -1 if it has not
+   * been found.
+   */
+  private int foundDelay;
+
+  private long blockCount;
+  private int blockSamples;
+  private double referenceBlockEnergy;
+  private double recordedBlockEnergy;
+  private int silentBlocks;
+
+  /**
+   * The block that the sound that the delay is being found from started in, or -1 if it has not
+   * started.
+   */
+  private long trainingStartBlock;
+
+  /**
+   * @param filterLength the number of samples of echo to model, which should cover how long the
+   *     room echoes
+   * @param trainingLength the number of samples at the start of the sound that we play during which
+   *     nobody else is expected to be sending
+   * @param maxDelay the most samples that references may be heard after where they are placed
+   */
+  public EchoCanceller(int filterLength, int trainingLength, int maxDelay) {
+    Preconditions.checkArgument(filterLength > 0, "Filter length must be positive");
+    Preconditions.checkArgument(maxDelay >= 0, "Max delay cannot be negative");
+
+    this.filterLength = filterLength;
+    this.trainingLength = trainingLength;
+    this.weights = new double[filterLength];
+    this.history = new double[filterLength * 2];
+    this.references = new ArrayDeque<>();
+    this.blockLength = Math.max(1, filterLength / DELAY_BLOCKS_PER_FILTER);
+    this.maxDelayBlocks = maxDelay / blockLength;
+    this.trainingBlocks = Math.max(1, trainingLength / blockLength);
+    this.referenceBlocks = new double[maxDelayBlocks * 2 + trainingBlocks];
+    this.recordedBlocks = new double[referenceBlocks.length];
+
+    historyIndex = 0;
+    historyEnergy = 0.0;
+    silentSamples = filterLength;
+    delay = (maxDelayBlocks == 0) ? 0 : -1;
+    foundDelay = -1;
+    // Nothing was played before the first sample.
+    silentBlocks = maxDelayBlocks;
+    trainingStartBlock = -1;
+  }
+
+  /**
+   * Returns the number of samples that references are moved later by, or -1 if how much later they
+   * are heard has not been found yet.
+   */
+  int getDelay() {
+    return delay;
+  }
+
+  /**
+   * Adds sound that is being played, which is expected to be heard from the recorded sample at
+   * {@code startPosition} on.
+   *
+   * @param samples samples from -1.0 to 1.0
+   */
+  public synchronized void addReference(long startPosition, double[] samples) {
+    references.addLast(new Reference(startPosition, samples));
+  }
+
+  /**
+   * Removes the echo from recorded samples in place.
+   *
+   * @param position the position of the first sample in {@code samples}, counting every recorded
+   *     sample
+   */
+  public void process(double[] samples, int count, long position) {
+    if ((foundDelay != -1) && (silentSamples >= filterLength)) {
+      // Nothing is being heard, so the filter can move without losing track of an echo.
+      moveFilter(foundDelay);
+    }
+
+    double[] reference;
+    if (delay == -1) {
+      // References are kept for as long as the filter may need them once the delay is found.
+      long oldestPosition = position - maxDelayBlocks * blockLength - filterLength;
+      reference = getReference(position, count, oldestPosition);
+      if (foundDelay == -1) {
+        foundDelay = findDelay(samples, reference, count);
+      }
+    } else {
+      reference = getReference(position - delay, count, position - delay);
+    }
+
+    for (int i = 0; i < count; i++) {
+      double x = reference[i];
+
+      if (x != 0.0) {
+        if (silentSamples >= filterLength) {
+          echoSamples = 0;
+        }
+        silentSamples = 0;
+      } else if (silentSamples >= filterLength) {
+        // The whole history is zero, so there is no echo to remove.
+        continue;
+      } else {
+        silentSamples++;
+      }
+
+      samples[i] = filter(x, samples[i]);
+    }
+  }
+
+  /**
+   * Measures how loud the references and the recorded samples are, a block at a time, and finds
+   * the delay once a whole start of the sound that we play has been recorded.
+   *
+   * @return the delay, or -1 if it has not been found
+   */
+  private int findDelay(double[] samples, double[] reference, int count) {
+    for (int i = 0; i < count; i++) {
+      referenceBlockEnergy += reference[i] * reference[i];
+      recordedBlockEnergy += samples[i] * samples[i];
+
+      blockSamples++;
+      if (blockSamples < blockLength) {
+        continue;
+      }
+
+      int index = getBlockIndex(blockCount);
+      referenceBlocks[index] = referenceBlockEnergy;
+      recordedBlocks[index] = recordedBlockEnergy;
+
+      if (referenceBlockEnergy == 0.0) {
+        silentBlocks++;
+      } else {
+        // The start of the sound has to follow silence so that the lag can be told from it.
+        if ((trainingStartBlock == -1) && (silentBlocks >= maxDelayBlocks)) {
+          trainingStartBlock = blockCount;
+        }
+        silentBlocks = 0;
+      }
+
+      blockCount++;
+      blockSamples = 0;
+      referenceBlockEnergy = 0.0;
+      recordedBlockEnergy = 0.0;
+
+      if ((trainingStartBlock != -1)
+          && (blockCount == trainingStartBlock + trainingBlocks + maxDelayBlocks)) {
+        int delayBlocks = getBestLag();
+        trainingStartBlock = -1;
+
+        if (delayBlocks != -1) {
+          // Start the filter a little early since the lag is only known to within a block.
+          return Math.max(0, delayBlocks * blockLength - filterLength / 4);
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Moves references {@code delay} samples later while none are in the history. What the filter
+   * has learned moves with them.
+   */
+  private void moveFilter(int delay) {
+    int kept = Math.max(0, filterLength - delay);
+    System.arraycopy(weights, filterLength - kept, weights, 0, kept);
+    Arrays.fill(weights, kept, filterLength, 0.0);
+
+    this.delay = delay;
+    foundDelay = -1;
+  }
+
+  /**
+   * Returns the lag in blocks at which the loudness of the references around the start of the sound
+   * correlates best with that of the recorded sound, or -1 if none correlates well enough.
+   */
+  private int getBestLag() {
+    long firstBlock = trainingStartBlock - maxDelayBlocks;
+    int length = maxDelayBlocks + trainingBlocks;
+
+    double[] x = new double[length];
+    double meanX = 0.0;
+    for (int b = 0; b < length; b++) {
+      x[b] = referenceBlocks[getBlockIndex(firstBlock + b)];
+      meanX += x[b] / length;
+    }
+
+    double energyX = 0.0;
+    for (int b = 0; b < length; b++) {
+      x[b] -= meanX;
+      energyX += x[b] * x[b];
+    }
+
+    int bestLag = -1;
+    double bestCorrelation = DELAY_MIN_CORRELATION;
+    for (int lag = 0; lag <= maxDelayBlocks; lag++) {
+      double sum = 0.0;
+      double sumSquares = 0.0;
+      double product = 0.0;
+      for (int b = 0; b < length; b++) {
+        double d = recordedBlocks[getBlockIndex(firstBlock + b + lag)];
+        sum += d;
+        sumSquares += d * d;
+        product += x[b] * d;
+      }
+
+      // Subtracting the mean of x already removes the mean of d from the product.
+      double energyD = sumSquares - sum * sum / length;
+      double correlation = product / Math.sqrt(energyX * energyD + REGULARIZATION);
+      if (correlation > bestCorrelation) {
+        bestCorrelation = correlation;
+        bestLag = lag;
+      }
+    }
+
+    return bestLag;
+  }
+
+  /**
+   * Returns the index of {@code block} in {@link #referenceBlocks} and {@link #recordedBlocks}.
+   * Blocks before the first one are silent.
+   */
+  private int getBlockIndex(long block) {
+    return (int) Math.floorMod(block, (long) referenceBlocks.length);
+  }
+
+  /**
+   * Adds reference sample {@code x} to the history, returns the recorded sample {@code d} without
+   * its estimated echo and updates the filter.
+   */
+  private double filter(double x, double d) {
+    historyIndex = (historyIndex == 0) ? (filterLength - 1) : (historyIndex - 1);
+
+    double oldest = history[historyIndex];
+    historyEnergy = Math.max(0.0, historyEnergy + x * x - oldest * oldest);
+
+    history[historyIndex] = x;
+    history[historyIndex + filterLength] = x;
+
+    double estimate = 0.0;
+    for (int k = 0, j = historyIndex; k < filterLength; k++, j++) {
+      estimate += weights[k] * history[j];
+    }
+
+    double error = d - estimate;
+
+    fastErrorPower += FAST_SMOOTHING * (error * error - fastErrorPower);
+
+    if (echoSamples < trainingLength) {
+      echoSamples++;
+      slowErrorPower = fastErrorPower;
+    } else if (fastErrorPower > DOUBLE_TALK_RATIO * slowErrorPower) {
+      return error;
+    } else {
+      slowErrorPower += SLOW_SMOOTHING * (error * error - slowErrorPower);
+    }
+
+    double step = STEP_SIZE * error / (historyEnergy + REGULARIZATION);
+    for (int k = 0, j = historyIndex; k < filterLength; k++, j++) {
+      weights[k] += step * history[j];
+    }
+
+    return error;
+  }
+
+  /**
+   * Returns the reference samples for the {@code count} recorded samples from {@code position},
+   * forgetting the references that end before {@code oldestPosition}.
+   */
+  private synchronized double[] getReference(long position, int count, long oldestPosition) {
+    double[] reference = new double[count];
+    long endPosition = position + count;
+
+    Iterator<Reference> iterator = references.iterator();
+    while (iterator.hasNext()) {
+      Reference next = iterator.next();
+
+      if (next.getEndPosition() <= oldestPosition) {
+        iterator.remove();
+        continue;
+      }
+
+      long start = Math.max(position, next.startPosition);
+      long end = Math.min(endPosition, next.getEndPosition());
+      for (long p = start; p < end; p++) {
+        reference[(int) (p - position)] += next.samples[(int) (p - next.startPosition)];
+      }
+    }
+
+    return reference;
+  }
+}
@@ -0,0 +1,27 @@
+package com.alanrussian.networkingproject.in.audio.math;
+
+/**
+ * Measures tones with the plain loops in {@link SoundMath}, which run on any Java version.
+ */
+class ScalarToneKernel implements ToneKernel {
+
+  @Override
+  public void getMagnitudes(
+      double[] samples,
+      int partitions,
+      double[] cosines,
+      double[] sines,
+      double[] magnitudes) {
+    SoundMath.getMagnitudes(samples, partitions, cosines, sines, magnitudes);
+  }
+
+  @Override
+  public void getMagnitudes(
+      float[] samples,
+      int partitions,
+      float[] cosines,
+      float[] sines,
+      double[] magnitudes) {
+    SoundMath.getMagnitudes(samples, partitions, cosines, sines, magnitudes);
+  }
+}
@@ -1,47 +1,169 @@
 package com.alanrussian.networkingproject.in.audio.math;
 
-import org.jtransforms.fft.DoubleFFT_1D;
-
 /**
  * Various math functions for interpreting sound.
  */
 public class SoundMath {
   
   /**
-   * Does an FFT on data.
+   * Returns the index of the FFT bin that {@code frequency} falls in, for an FFT of {@code count}
+   * samples.
+   * 
+   * @see http://stackoverflow.com/a/7675171
    */
-  public static double[] applyFft(byte[] soundData) {
-    int dataLength = soundData.length;
-    double[] data = new double[dataLength * 2];
+  public static int getIndexOfFrequency(double frequency, int count, int sampleRate) {
+    return (int) (frequency * (double) count / (double) sampleRate);
+  }
 
-    for (int i = 0; i < dataLength; i++) {
-      data[i] = (double) soundData[i];
+  /**
+   * Computes the absolute magnitude of one FFT bin of {@code cosines.length} of {@code samples},
+   * starting at {@code offset}, by correlating the samples with the bin's cosine and sine waves.
+   * This is exactly the magnitude that an FFT gives the bin.
+   */
+  public static double getMagnitude(
+      double[] samples,
+      int offset,
+      double[] cosines,
+      double[] sines) {
+    
+    double real = 0.0;
+    double imaginary = 0.0;
+    for (int i = 0; i < cosines.length; i++) {
+      double sample = samples[offset + i];
+      real += sample * cosines[i];
+      imaginary += sample * sines[i];
     }
     
-    DoubleFFT_1D transformation = new DoubleFFT_1D(dataLength);
-    transformation.realForwardFull(data);
+    return Math.sqrt(real * real + imaginary * imaginary);
+  }
+
+  /**
+   * Computes {@link #getMagnitude} for each of {@code partitions} consecutive partitions of {@code
+   * samples}, each {@code cosines.length} long, into {@code magnitudes}.
+   *
+   * <p>Partitions are measured two at a time, so each coefficient is loaded once for both and the
+   * processor can work on their sums side by side instead of waiting on one sum at a time.
+   */
+  public static void getMagnitudes(
+      double[] samples,
+      int partitions,
+      double[] cosines,
+      double[] sines,
+      double[] magnitudes) {
+    
+    int length = cosines.length;
+
+    int partition = 0;
+    for (; partition + 1 < partitions; partition += 2) {
+      int offset = length * partition;
+      int nextOffset = offset + length;
+      
+      double real = 0.0;
+      double imaginary = 0.0;
+      double nextReal = 0.0;
+      double nextImaginary = 0.0;
+      for (int i = 0; i < length; i++) {
+        double cosine = cosines[i];
+        double sine = sines[i];
+        double sample = samples[offset + i];
+        double nextSample = samples[nextOffset + i];
+        real += sample * cosine;
+        imaginary += sample * sine;
+        nextReal += nextSample * cosine;
+        nextImaginary += nextSample * sine;
+      }
+      
+      magnitudes[partition] = Math.sqrt(real * real + imaginary * imaginary);
+      magnitudes[partition + 1] = Math.sqrt(nextReal * nextReal + nextImaginary * nextImaginary);
+    }
     
-    return data;
+    if (partition < partitions) {
+      magnitudes[partition] = getMagnitude(samples, length * partition, cosines, sines);
+    }
   }
 
   /**
-   * Computes the absolute magnitude of a frequency.
-   * 
-   * @see http://stackoverflow.com/a/7675171
+   * Computes {@link #getMagnitude} in single precision. The magnitude is off by about a millionth
+   * of how loud the samples are, which is far below the noise in recorded sound.
    */
-  public static double getMagnitudeOfFrequency(
-      double frequency,
-      double[] transformedData,
-      int sampleRate) {
+  public static double getMagnitude(
+      float[] samples,
+      int offset,
+      float[] cosines,
+      float[] sines) {
     
-    int originalDataLength = transformedData.length / 2;
+    float real = 0.0f;
+    float imaginary = 0.0f;
+    for (int i = 0; i < cosines.length; i++) {
+      float sample = samples[offset + i];
+      real += sample * cosines[i];
+      imaginary += sample * sines[i];
+    }
     
-    int indexOfFrequency = (int) (frequency * (double) originalDataLength / (double) sampleRate);
+    return getMagnitude(real, imaginary);
+  }
+
+  /**
+   * Computes {@link #getMagnitudes} in single precision, which moves half as much memory.
+   *
+   * <p>Partitions are measured four at a time. A single precision sum takes as long as a double
+   * precision one, so it takes twice as many side by side to keep the processor as busy.
+   *
+   * @see #getMagnitude(float[], int, float[], float[])
+   */
+  public static void getMagnitudes(
+      float[] samples,
+      int partitions,
+      float[] cosines,
+      float[] sines,
+      double[] magnitudes) {
     
-    double real = transformedData[2 * indexOfFrequency];
-    double imaginary = transformedData[2 * indexOfFrequency + 1];
-    double magnitude = Math.sqrt(Math.pow(real, 2) + Math.pow(imaginary, 2));
+    int length = cosines.length;
+
+    int partition = 0;
+    for (; partition + 3 < partitions; partition += 4) {
+      int offset0 = length * partition;
+      int offset1 = offset0 + length;
+      int offset2 = offset1 + length;
+      int offset3 = offset2 + length;
+      
+      float real0 = 0.0f;
+      float imaginary0 = 0.0f;
+      float real1 = 0.0f;
+      float imaginary1 = 0.0f;
+      float real2 = 0.0f;
+      float imaginary2 = 0.0f;
+      float real3 = 0.0f;
+      float imaginary3 = 0.0f;
+      for (int i = 0; i < length; i++) {
+        float cosine = cosines[i];
+        float sine = sines[i];
+        float sample0 = samples[offset0 + i];
+        float sample1 = samples[offset1 + i];
+        float sample2 = samples[offset2 + i];
+        float sample3 = samples[offset3 + i];
+        real0 += sample0 * cosine;
+        imaginary0 += sample0 * sine;
+        real1 += sample1 * cosine;
+        imaginary1 += sample1 * sine;
+        real2 += sample2 * cosine;
+        imaginary2 += sample2 * sine;
+        real3 += sample3 * cosine;
+        imaginary3 += sample3 * sine;
+      }
+      
+      magnitudes[partition] = getMagnitude(real0, imaginary0);
+      magnitudes[partition + 1] = getMagnitude(real1, imaginary1);
+      magnitudes[partition + 2] = getMagnitude(real2, imaginary2);
+      magnitudes[partition + 3] = getMagnitude(real3, imaginary3);
+    }
     
-    return magnitude;
+    for (; partition < partitions; partition++) {
+      magnitudes[partition] = getMagnitude(samples, length * partition, cosines, sines);
+    }
+  }
+
+  private static double getMagnitude(float real, float imaginary) {
+    return Math.sqrt((double) real * real + (double) imaginary * imaginary);
   }
 }
@@ -0,0 +1,80 @@
+package com.alanrussian.networkingproject.in.audio.math;
+
+/**
+ * Measures how loud one frequency is in partitions of sound, giving the same magnitude as the FFT
+ * bin that the frequency falls in. The bin's cosine and sine waves are computed once, so each
+ * measurement is one pass of multiplications over the samples instead of a whole FFT.
+ *
+ * <p>Samples can be measured in double or single precision.
+ *
+ * <p>The work is done by a {@link ToneKernel}. {@code VectorToneKernel}, which uses the processor's
+ * vector instructions through the incubating Vector API, is used when it was built and the {@code
+ * jdk.incubator.vector} module is added to the runtime. Otherwise this falls back to {@link
+ * ScalarToneKernel}.
+ */
+public class ToneDetector {
+
+  private static final String VECTOR_KERNEL_CLASS =
+      "com.alanrussian.networkingproject.in.audio.math.VectorToneKernel";
+
+  private static final ToneKernel KERNEL = loadKernel();
+
+  private final double[] cosines;
+  private final double[] sines;
+  private final float[] singleCosines;
+  private final float[] singleSines;
+
+  /**
+   * @param count the number of samples in each partition
+   */
+  public ToneDetector(double frequency, int count, int sampleRate) {
+    int index = SoundMath.getIndexOfFrequency(frequency, count, sampleRate);
+
+    this.cosines = new double[count];
+    this.sines = new double[count];
+    this.singleCosines = new float[count];
+    this.singleSines = new float[count];
+    for (int i = 0; i < count; i++) {
+      // Reduce first so that the angle stays exact for long partitions.
+      double angle = 2.0 * Math.PI * (((long) index * i) % count) / count;
+      cosines[i] = Math.cos(angle);
+      sines[i] = Math.sin(angle);
+      singleCosines[i] = (float) cosines[i];
+      singleSines[i] = (float) sines[i];
+    }
+  }
+
+  /**
+   * Returns the magnitude of the frequency in each of {@code partitions} consecutive partitions of
+   * {@code samples}. This is faster than measuring the partitions one at a time.
+   */
+  public double[] getMagnitudes(double[] samples, int partitions) {
+    double[] magnitudes = new double[partitions];
+    KERNEL.getMagnitudes(samples, partitions, cosines, sines, magnitudes);
+
+    return magnitudes;
+  }
+
+  /**
+   * Returns the magnitude of the frequency in each of {@code partitions} consecutive partitions of
+   * single precision {@code samples}.
+   */
+  public double[] getMagnitudes(float[] samples, int partitions) {
+    double[] magnitudes = new double[partitions];
+    KERNEL.getMagnitudes(samples, partitions, singleCosines, singleSines, magnitudes);
+
+    return magnitudes;
+  }
+
+  /**
+   * Returns the vector kernel if it can be loaded, or the scalar one otherwise.
+   */
+  private static ToneKernel loadKernel() {
+    try {
+      return (ToneKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      // It was not built, the module is missing or the processor has no vector instructions.
+      return new ScalarToneKernel();
+    }
+  }
+}
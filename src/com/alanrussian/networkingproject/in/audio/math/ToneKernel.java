@@ -0,0 +1,32 @@
+package com.alanrussian.networkingproject.in.audio.math;
+
+/**
+ * Correlates partitions of sound with a frequency's cosine and sine waves for a {@link
+ * ToneDetector}. This is where nearly all of the time decoding sound goes.
+ *
+ * @see SoundMath#getMagnitudes(double[], int, double[], double[], double[])
+ */
+interface ToneKernel {
+
+  /**
+   * Computes the magnitude of each of {@code partitions} consecutive partitions of {@code samples},
+   * each {@code cosines.length} long, into {@code magnitudes}.
+   */
+  void getMagnitudes(
+      double[] samples,
+      int partitions,
+      double[] cosines,
+      double[] sines,
+      double[] magnitudes);
+
+  /**
+   * Computes the magnitudes of partitions like {@link #getMagnitudes(double[], int, double[],
+   * double[], double[])} in single precision.
+   */
+  void getMagnitudes(
+      float[] samples,
+      int partitions,
+      float[] cosines,
+      float[] sines,
+      double[] magnitudes);
+}
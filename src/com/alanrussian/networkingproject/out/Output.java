@@ -1,10 +1,20 @@
 package com.alanrussian.networkingproject.out;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.common.MessageCompression;
+import com.alanrussian.networkingproject.common.RoutingTable;
+import com.alanrussian.networkingproject.in.Input;
 import com.alanrussian.networkingproject.out.audio.AudioEncoder;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 
 /**
  * Sends data that can be read by an {@link Input}.
@@ -14,36 +24,416 @@ public class Output {
   private static Map<Integer, Output> computerIdsToInstance = new HashMap<>();
   
   private final int computerId;
+  private final LinkProfile profile;
   private final AudioEncoder encoder;
+  private final RoutingTable routingTable;
   
-  private Output(int computerId) {
+  /**
+   * The ID of the next message. IDs are shared by every target since a message to a group arrives
+   * at computers alongside the messages sent to them directly.
+   */
+  private int nextMessageId;
+  
+  /**
+   * The ID of the next routed message sent from this computer, which relays use to drop copies of
+   * it.
+   */
+  private int nextRoutedMessageId;
+  
+  private volatile boolean isCompressionEnabled;
+  
+  private Output(int computerId, LinkProfile profile) {
     this.computerId = computerId;
-    this.encoder = new AudioEncoder(computerId);
+    this.profile = profile;
+    this.encoder = new AudioEncoder(computerId, profile);
+    this.routingTable = RoutingTable.getInstance(computerId);
+    
+    isCompressionEnabled = true;
   }
   
   /**
-   * Returns the instance of the Output class.
+   * Returns the instance of the Output class for the given ID, creating it with {@link
+   * LinkProfile#BALANCED} if there is none.
    */
-  public static Output getInstance(int computerId) {
-    if (!computerIdsToInstance.containsKey(computerId)) {
-      computerIdsToInstance.put(computerId, new Output(computerId));
+  public static synchronized Output getInstance(int computerId) {
+    Output instance = computerIdsToInstance.get(computerId);
+    if (instance == null) {
+      instance = getInstance(computerId, LinkProfile.BALANCED);
     }
 
-    return computerIdsToInstance.get(computerId);
+    return instance;
   }
+  
+  /**
+   * Returns the instance of the Output class for the given ID, creating it with {@code profile} if
+   * there is none.
+   *
+   * @throws IllegalStateException if the instance already uses a different profile
+   */
+  public static synchronized Output getInstance(int computerId, LinkProfile profile) {
+    Output instance = computerIdsToInstance.get(computerId);
+    if (instance == null) {
+      instance = new Output(computerId, profile);
+      computerIdsToInstance.put(computerId, instance);
+    }
+    
+    Preconditions.checkState(
+        instance.profile == profile,
+        "Computer %s already uses the %s profile",
+        computerId,
+        instance.profile.getName());
 
+    return instance;
+  }
+  
   /**
-   * Sends some {@code data} to {@code target}.
+   * Returns the ID of this computer.
+   */
+  public int getComputerId() {
+    return computerId;
+  }
+  
+  /**
+   * Returns the profile of the link that this uses.
+   */
+  public LinkProfile getProfile() {
+    return profile;
+  }
+  
+  /**
+   * Returns a future that completes once frames can be sent without delay. Data sent before then
+   * waits to be sent.
+   */
+  public CompletableFuture<Void> whenReady() {
+    return encoder.whenReady();
+  }
+
+  /**
+   * Sends some {@code data} to {@code target} like {@link #sendDataAsync(int, byte[])}.
    * 
-   * @throws IllegalArgumentException if the target is the same as this device
+   * @throws IllegalArgumentException if the target is the same as this device or not an address
    */
   public void sendData(int target, byte[] data) {
-    Preconditions.checkArgument(target != computerId, "Cannot send message to self.");
+    sendDataAsync(target, data);
+  }
+  
+  /**
+   * Sends some {@code data} to {@code target} with {@code priority} like {@link
+   * #sendDataAsync(int, byte[], AudioEncoder.Priority)}.
+   * 
+   * @throws IllegalArgumentException if the target is the same as this device or not an address
+   */
+  public void sendData(int target, byte[] data, AudioEncoder.Priority priority) {
+    sendDataAsync(target, data, priority);
+  }
+  
+  /**
+   * Sends some {@code data} to {@code target} as a single message, which is split into fragments
+   * that are put back together before being given to the target's listeners. This blocks while the
+   * send queue is full if its policy is {@link AudioEncoder.OverflowPolicy#BLOCK}.
+   * 
+   * <p>Data longer than a message can hold, which is {@link Constants#MESSAGE_MAX_LENGTH} bytes or
+   * {@link Constants#ROUTE_HEADER_LENGTH} fewer if it is routed, is sent as several messages one
+   * after another. Each is given to the target's listeners on its own, so callers that need data
+   * to arrive whole must keep it within the limit.
+   * 
+   * <p>{@code target} may be a group address, such as {@link LinkProfile#getBroadcastAddress}, in
+   * which case the message is sent once for every member of the group to hear and is not ACKed.
+   * 
+   * <p>If the {@link RoutingTable} has a route to {@code target} through another computer, the
+   * message is routed: it is sent to that computer to be relayed, which costs {@link
+   * Constants#ROUTE_HEADER_LENGTH} bytes of the message.
+   * 
+   * @return a future that completes once all of {@code data} has been ACKed by {@code target}, or
+   *     by the next computer on its route, or sent if it is a group, or fails if it could not be
+   *     delivered
+   * @throws IllegalArgumentException if the target is the same as this device or not an address
+   */
+  public CompletableFuture<Void> sendDataAsync(int target, byte[] data) {
+    return sendDataAsync(target, data, AudioEncoder.Priority.NORMAL);
+  }
+  
+  /**
+   * Sends some {@code data} to {@code target} as a single message like {@link
+   * #sendDataAsync(int, byte[])}. It is sent after any queued data of the same or a higher {@code
+   * priority} and before any of a lower one.
+   */
+  public CompletableFuture<Void> sendDataAsync(
+      int target,
+      byte[] data,
+      AudioEncoder.Priority priority) {
+
+    checkTarget(target);
+    
+    int nextHop = profile.isGroupAddress(target) ? target : routingTable.getNextHop(target);
+    boolean isRouted = nextHop != target;
+    int maxLength = isRouted
+        ? Constants.MESSAGE_MAX_LENGTH - Constants.ROUTE_HEADER_LENGTH
+        : Constants.MESSAGE_MAX_LENGTH;
+    
+    if (data.length <= maxLength) {
+      return sendSingleMessage(nextHop, target, isRouted, data, priority);
+    }
+    
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (int offset = 0; offset < data.length; offset += maxLength) {
+      byte[] part = Arrays.copyOfRange(data, offset, Math.min(offset + maxLength, data.length));
+      futures.add(sendSingleMessage(nextHop, target, isRouted, part, priority));
+    }
+    
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+  }
+  
+  /**
+   * Sends {@code data}, which fits in a single message, to {@code target} through {@code nextHop}.
+   */
+  private CompletableFuture<Void> sendSingleMessage(
+      int nextHop,
+      int target,
+      boolean isRouted,
+      byte[] data,
+      AudioEncoder.Priority priority) {
+
+    if (isRouted) {
+      return sendRoutedMessage(
+          nextHop,
+          computerId,
+          target,
+          Constants.ROUTE_HOP_LIMIT,
+          getNextRoutedMessageId(),
+          data,
+          priority,
+          false /* isRelayed */);
+    }
+    
+    return sendMessage(target, data, 0 /* flags */, priority, false /* isRelayed */);
+  }
+  
+  /**
+   * Relays a routed message from {@code origin} on towards {@code destination} through {@code
+   * nextHop}. Relayed messages never wait for room in the send queue, so that they cannot hold up
+   * data sent from this computer. They fail instead. They have {@link
+   * AudioEncoder.Priority#NORMAL} priority.
+   *
+   * @param hopLimit the number of times that the message may still be relayed after this
+   * @param routedMessageId the ID given to the message by {@code origin}
+   * @return a future that completes once the message has been ACKed by {@code nextHop}, or fails if
+   *     it could not be delivered
+   */
+  public CompletableFuture<Void> relayMessage(
+      int nextHop,
+      int origin,
+      int destination,
+      int hopLimit,
+      int routedMessageId,
+      byte[] data) {
+
+    return sendRoutedMessage(
+        nextHop,
+        origin,
+        destination,
+        hopLimit,
+        routedMessageId,
+        data,
+        AudioEncoder.Priority.NORMAL,
+        true /* isRelayed */);
+  }
+  
+  /**
+   * Returns the routes used to reach computers that are out of range.
+   */
+  public RoutingTable getRoutingTable() {
+    return routingTable;
+  }
+  
+  private CompletableFuture<Void> sendRoutedMessage(
+      int nextHop,
+      int origin,
+      int destination,
+      int hopLimit,
+      int routedMessageId,
+      byte[] data,
+      AudioEncoder.Priority priority,
+      boolean isRelayed) {
+
+    Preconditions.checkArgument(
+        data.length <= Constants.MESSAGE_MAX_LENGTH - Constants.ROUTE_HEADER_LENGTH,
+        "Routed data cannot be longer than "
+            + (Constants.MESSAGE_MAX_LENGTH - Constants.ROUTE_HEADER_LENGTH)
+            + " bytes.");
+
+    byte[] header = new byte[] {
+        (byte) origin,
+        (byte) destination,
+        (byte) hopLimit,
+        (byte) routedMessageId};
+    
+    return sendMessage(
+        nextHop,
+        createPayload(header, data, 0, data.length),
+        Constants.PAYLOAD_ROUTED_FLAG,
+        priority,
+        isRelayed);
+  }
+  
+  /**
+   * Splits {@code data} into the fragments of a single message and queues them.
+   *
+   * @param flags the flags to set in the header of every fragment
+   */
+  private CompletableFuture<Void> sendMessage(
+      int target,
+      byte[] data,
+      int flags,
+      AudioEncoder.Priority priority,
+      boolean isRelayed) {
+
+    int messageId = getNextMessageId();
+    List<byte[]> payloads = new ArrayList<>();
+    
+    if (isCompressionEnabled) {
+      byte[] compressedData = MessageCompression.compress(data);
+      if (compressedData != null) {
+        data = compressedData;
+        flags |= Constants.PAYLOAD_COMPRESSED_FLAG;
+      }
+    }
+
+    // Always send at least one fragment so that empty messages arrive too.
+    int offset = 0;
+    do {
+      int length = Math.min(Constants.MESSAGE_MAX_FRAGMENT_LENGTH, data.length - offset);
+      boolean isLast = offset + length == data.length;
+      
+      byte[] header = new byte[] {
+          (byte) ((isLast ? Constants.PAYLOAD_LAST_FRAGMENT_FLAG : 0) | flags | messageId),
+          (byte) payloads.size()};
+      payloads.add(createPayload(header, data, offset, length));
+
+      offset += length;
+    } while (offset < data.length);
+
+    return encoder.sendFrames(target, payloads, priority, isRelayed);
+  }
+  
+  /**
+   * Sends a single segment of a stream to {@code target}.
+   * 
+   * @param session the session from {@link #getSession} that the stream is sent in. The segment
+   *     fails instead of being sent in another one.
+   * @param sequence the sequence number of the segment, below {@link
+   *     Constants#STREAM_SEQUENCE_NUMBERS}
+   * @param length the number of bytes of {@code data} to send, at most {@link
+   *     Constants#STREAM_MAX_SEGMENT_LENGTH}
+   * @return a future that completes once the segment has been ACKed by {@code target}, or sent if
+   *     it is a group, or fails if it could not be delivered
+   * @throws IllegalArgumentException if the target is the same as this device or not an address
+   */
+  public CompletableFuture<Void> sendStreamSegment(
+      int target,
+      int session,
+      int sequence,
+      byte[] data,
+      int offset,
+      int length) {
+
+    checkTarget(target);
+    Preconditions.checkArgument((sequence >= 0) && (sequence < Constants.STREAM_SEQUENCE_NUMBERS));
+    Preconditions.checkArgument(length <= Constants.STREAM_MAX_SEGMENT_LENGTH);
+    
+    byte[] header = new byte[] {(byte) (Constants.PAYLOAD_STREAM_FLAG | sequence)};
+    byte[] payload = createPayload(header, data, offset, length);
+
+    return encoder.sendFrames(target, ImmutableList.of(payload), session);
+  }
+  
+  /**
+   * Returns the session that data to {@code target} is sent in. It changes whenever data to the
+   * target is given up on, after which the target forgets what it received before, so a stream
+   * cannot go on across a change.
+   */
+  public int getSession(int target) {
+    return encoder.getSession(target);
+  }
+  
+  /**
+   * Sets whether messages are compressed before they are sent. A message is only sent compressed
+   * if that makes it shorter. This is enabled by default.
+   */
+  public void setCompressionEnabled(boolean isCompressionEnabled) {
+    this.isCompressionEnabled = isCompressionEnabled;
+  }
+  
+  /**
+   * Sets how many frames of data of each priority can wait to be sent and what happens to new data
+   * once they are.
+   */
+  public void setQueuePolicy(int capacity, AudioEncoder.OverflowPolicy policy) {
+    encoder.setQueuePolicy(capacity, policy);
+  }
+  
+  /**
+   * Acknowledges data frames from {@code target}.
+   *
+   * @param acknowledgedSequences a mask with bit {@code n} set if the data frame with sequence
+   *     number {@code n} is acknowledged
+   */
+  public void sendAck(int target, int acknowledgedSequences) {
+    encoder.sendAck(target, acknowledgedSequences);
+  }
+  
+  /**
+   * Stops sending and drops any unsent data. A later call to {@link #getInstance} creates a new
+   * instance.
+   */
+  public void close() {
+    synchronized (Output.class) {
+      computerIdsToInstance.remove(computerId);
+    }
 
-    encoder.sendData(target, data);
+    encoder.close();
   }
   
-  public void sendAck(int target) {
-    encoder.sendAck(target);
+  /**
+   * Returns the ID to use for the next message to {@code target}. IDs go up by one for every
+   * message so that the target can tell a repeated fragment from a new message.
+   */
+  private synchronized int getNextMessageId() {
+    int messageId = nextMessageId;
+    nextMessageId = (nextMessageId + 1) % Constants.MESSAGE_IDS;
+    
+    return messageId;
+  }
+  
+  private synchronized int getNextRoutedMessageId() {
+    int routedMessageId = nextRoutedMessageId;
+    nextRoutedMessageId = (nextRoutedMessageId + 1) % Constants.ROUTED_MESSAGE_IDS;
+    
+    return routedMessageId;
+  }
+  
+  /**
+   * @throws IllegalArgumentException if {@code target} is this device or not an address
+   */
+  private void checkTarget(int target) {
+    Preconditions.checkArgument(target != computerId, "Cannot send message to self.");
+    Preconditions.checkArgument(
+        (target >= Constants.SMALLEST_COMPUTER_ID) && (target <= profile.getBroadcastAddress()),
+        "Target must be between %s and %s.",
+        Constants.SMALLEST_COMPUTER_ID,
+        profile.getBroadcastAddress());
+  }
+  
+  /**
+   * Returns the data of a frame made of {@code header} followed by {@code length} bytes of {@code
+   * data}.
+   */
+  private static byte[] createPayload(byte[] header, byte[] data, int offset, int length) {
+    byte[] payload = new byte[header.length + length];
+
+    System.arraycopy(header, 0, payload, 0, header.length);
+    System.arraycopy(data, offset, payload, header.length, length);
+    
+    return payload;
   }
 }
@@ -1,17 +1,32 @@
 package com.alanrussian.networkingproject.out;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.SharedExecutors;
+import com.alanrussian.networkingproject.out.audio.AudioEncoder;
 
 /**
  * Redirects data from an {@link InputStream} to an {@link Output}. Data must be in the format of
- * "ComputerId: Message".
+ * "Address: Message", where the address is a computer ID, a multicast group address or "*" for
+ * everyone. Lines starting with "!" are sent with {@link AudioEncoder.Priority#URGENT} priority.
+ *
+ * <p>Consecutive lines to the same address and with the same priority are joined into one message,
+ * one line after another, as long as the message stays under {@link #MAX_LINE_LENGTH} bytes and no
+ * line waits more than {@link #BATCH_DELAY} millaseconds. This way many short lines fill frames
+ * instead of each paying for the headers of its own. Urgent lines do not wait, but are joined with
+ * urgent lines that are already read.
  */
 public class OutputRedirector {
   
@@ -22,60 +37,237 @@ public class OutputRedirector {
     public enum InputError {
       FORMAT,
       OUT_OF_RANGE_TARGET,
-      MESSAGE_TO_SELF
+      MESSAGE_TO_SELF,
+      MESSAGE_TOO_LONG
     };
 
     void onBadInput(InputError error);
   }
   
+  private static final Pattern LINE_PATTERN = Pattern.compile("(!)?(\\d+|\\*): ?(.+)");
+  
+  private static final String BROADCAST_TARGET = "*";
+  
+  /**
+   * The number of bytes read from the stream at once.
+   */
+  private static final int READ_BUFFER_SIZE = 8 * 1024;
+  
+  /**
+   * The most lines read but not yet sent. Reading waits once there are this many.
+   */
+  private static final int MAX_PENDING_LINES = 1024;
+  
+  /**
+   * The most bytes of a line's message, and of lines joined into one message, which leaves room
+   * for it to be routed.
+   */
+  public static final int MAX_LINE_LENGTH =
+      Constants.MESSAGE_MAX_LENGTH - Constants.ROUTE_HEADER_LENGTH;
+  
   /**
-   * Period in millaseconds in which the input is read.
+   * Millaseconds that the first line of a message waits for more lines to join it.
    */
-  private static final long PERIOD = 100;
+  private static final long BATCH_DELAY = 500;
   
-  private static final Pattern LINE_PATTERN = Pattern.compile("(\\d+): ?(.+)");
+  private static final byte LINE_SEPARATOR = '\n';
+  
+  /**
+   * A line that has been read and parsed.
+   */
+  private static class Line {
+
+    private final int target;
+    private final AudioEncoder.Priority priority;
+    private final byte[] message;
+
+    private Line(int target, AudioEncoder.Priority priority, byte[] message) {
+      this.target = target;
+      this.priority = priority;
+      this.message = message;
+    }
+
+    /**
+     * Returns whether {@code other} can be sent in the same message as this line.
+     */
+    private boolean canJoin(Line other) {
+      return (other.target == target) && (other.priority == priority);
+    }
+  }
   
   private final Output out;
-  private final Scanner scanner;
+  private final ReadableByteChannel channel;
   private final Listener listener;
+  private final BlockingQueue<Line> pendingLines;
+  
+  private Future<?> readFuture;
+  private Future<?> sendFuture;
   
-  private final TimerTask redirectTask = new TimerTask() {
+  private final Runnable readRunnable = new Runnable() {
     @Override
     public void run() {
-      while (true) {
-        Matcher lineMatcher = LINE_PATTERN.matcher(scanner.nextLine());
-
-        if (!lineMatcher.matches()) {
-          listener.onBadInput(Listener.InputError.FORMAT);
-          return;
-        }
-        
-        int target = Integer.valueOf(lineMatcher.group(1));
-        String message = lineMatcher.group(2);
-        
-        if ((target > Constants.LARGEST_COMPUTER_ID) || (target < Constants.SMALLEST_COMPUTER_ID)) {
-          listener.onBadInput(Listener.InputError.OUT_OF_RANGE_TARGET);
-          return;
-        }
-
-        try {
-          out.sendData(target, message.getBytes(Constants.CHARSET));
-        } catch (IllegalArgumentException e) {
-          listener.onBadInput(Listener.InputError.MESSAGE_TO_SELF);
-        }
+      try {
+        readLines();
+      } catch (IOException e) {
+        // The stream has been closed.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  };
+  
+  private final Runnable sendRunnable = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        sendLines();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
     }
   };
 
   public OutputRedirector(Output out, InputStream in, Listener listener) {
     this.out = out;
-    this.scanner = new Scanner(in);
+    this.channel = Channels.newChannel(in);
     this.listener = listener;
+    this.pendingLines = new LinkedBlockingQueue<>(MAX_PENDING_LINES);
     
     scheduleTasks();
   }
   
+  /**
+   * Stops redirecting. Lines that have been read but not sent yet are dropped, and since reading
+   * is interrupted the stream is closed.
+   */
+  public void close() {
+    readFuture.cancel(true /* mayInterruptIfRunning */);
+    sendFuture.cancel(true /* mayInterruptIfRunning */);
+  }
+  
   private void scheduleTasks() {
-    new Timer().scheduleAtFixedRate(redirectTask, 0, PERIOD);
+    // Reading and sending both block, so each runs on a worker for as long as there is input.
+    readFuture = SharedExecutors.getInstance().getWorkers().submit(readRunnable);
+    sendFuture = SharedExecutors.getInstance().getWorkers().submit(sendRunnable);
+  }
+  
+  /**
+   * Reads the stream in large chunks and queues each complete line, until the stream ends. A last
+   * line without a line separator is queued too.
+   */
+  private void readLines() throws IOException, InterruptedException {
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    while (channel.read(buffer) != -1) {
+      buffer.flip();
+
+      byte[] data = buffer.array();
+      int start = 0;
+      for (int i = 0; i < buffer.limit(); i++) {
+        if (data[i] == LINE_SEPARATOR) {
+          line.write(data, start, i - start);
+          handleLine(line.toByteArray());
+          line.reset();
+          start = i + 1;
+        }
+      }
+      line.write(data, start, buffer.limit() - start);
+
+      buffer.clear();
+    }
+
+    if (line.size() > 0) {
+      handleLine(line.toByteArray());
+    }
+  }
+  
+  /**
+   * Parses a line and queues it to be sent, or reports it as bad input.
+   */
+  private void handleLine(byte[] lineBytes) throws InterruptedException {
+    String text = new String(lineBytes, Constants.CHARSET);
+    if (text.endsWith("\r")) {
+      text = text.substring(0, text.length() - 1);
+    }
+
+    Matcher lineMatcher = LINE_PATTERN.matcher(text);
+    if (!lineMatcher.matches()) {
+      listener.onBadInput(Listener.InputError.FORMAT);
+      return;
+    }
+
+    AudioEncoder.Priority priority = (lineMatcher.group(1) != null)
+        ? AudioEncoder.Priority.URGENT
+        : AudioEncoder.Priority.NORMAL;
+    int target;
+    try {
+      target = lineMatcher.group(2).equals(BROADCAST_TARGET)
+          ? out.getProfile().getBroadcastAddress()
+          : Integer.parseInt(lineMatcher.group(2));
+    } catch (NumberFormatException e) {
+      // Too many digits for an int.
+      listener.onBadInput(Listener.InputError.OUT_OF_RANGE_TARGET);
+      return;
+    }
+    byte[] message = lineMatcher.group(3).getBytes(Constants.CHARSET);
+
+    if ((target > out.getProfile().getBroadcastAddress())
+        || (target < Constants.SMALLEST_COMPUTER_ID)) {
+      listener.onBadInput(Listener.InputError.OUT_OF_RANGE_TARGET);
+      return;
+    }
+
+    if (target == out.getComputerId()) {
+      listener.onBadInput(Listener.InputError.MESSAGE_TO_SELF);
+      return;
+    }
+
+    if (message.length > MAX_LINE_LENGTH) {
+      listener.onBadInput(Listener.InputError.MESSAGE_TOO_LONG);
+      return;
+    }
+
+    pendingLines.put(new Line(target, priority, message));
+  }
+  
+  /**
+   * Sends queued lines, joining the ones that follow each other into one message where they can.
+   */
+  private void sendLines() throws InterruptedException {
+    Line nextLine = null;
+
+    while (true) {
+      Line firstLine = (nextLine != null) ? nextLine : pendingLines.take();
+      nextLine = null;
+
+      ByteArrayOutputStream message = new ByteArrayOutputStream();
+      message.write(firstLine.message, 0, firstLine.message.length);
+
+      long batchDelay = (firstLine.priority == AudioEncoder.Priority.URGENT) ? 0 : BATCH_DELAY;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelay);
+      while (true) {
+        Line line = pendingLines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (line == null) {
+          break;
+        }
+
+        if (!firstLine.canJoin(line)
+            || (message.size() + 1 + line.message.length > MAX_LINE_LENGTH)) {
+          nextLine = line;
+          break;
+        }
+
+        message.write(LINE_SEPARATOR);
+        message.write(line.message, 0, line.message.length);
+      }
+
+      try {
+        out.sendData(firstLine.target, message.toByteArray(), firstLine.priority);
+      } catch (IllegalArgumentException e) {
+        // Lines are checked as they are read, so this is not expected.
+        System.err.println("Could not send redirected lines: " + e.getMessage());
+      }
+    }
   }
 }
@@ -1,14 +1,35 @@
 package com.alanrussian.networkingproject.out.audio;
 
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sound.sampled.LineUnavailableException;
 
 import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.common.SharedExecutors;
 import com.alanrussian.networkingproject.in.Input;
 import com.alanrussian.networkingproject.out.audio.frame.AckFrame;
 import com.alanrussian.networkingproject.out.audio.frame.DataFrame;
@@ -16,49 +37,214 @@ import com.alanrussian.networkingproject.out.audio.frame.Frame;
 import com.alanrussian.networkingproject.out.audio.wave.MixedWave;
 import com.alanrussian.networkingproject.out.audio.wave.SineWave;
 import com.alanrussian.networkingproject.out.audio.wave.Wave;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 
 /**
- * Encodes and sends data over audio. This also implements the stop and wait mechanism.
+ * Encodes and sends data over audio. This also implements a sliding window: up to {@link
+ * Constants#AUDIO_FRAME_WINDOW} data frames to the same target are sent before waiting for an ACK,
+ * the target acknowledges them together and only the frames it missed are sent again.
+ *
+ * <p>Frames can be queued from any thread. ACKs have their own queue and are always sent before
+ * data, even while data frames are waiting for their ACK. An ACK owed to the target of the next
+ * data frame is sent as part of that frame instead of on its own. Data is queued by {@link
+ * Priority}, each with its own bounded queue, and what happens when a queue is full is decided by
+ * the {@link OverflowPolicy}.
+ *
+ * <p>Data of a higher priority is always sent first. Frames of lower priority that have entered the
+ * window but never been sent are put back in their queue when higher priority data is queued, so
+ * that it only waits for the frame that is playing and for the ACK of frames already sent.
+ *
+ * <p>Only the band being sent on stops being listened to while a frame plays, so on a full duplex
+ * link ACKs and data sent back to us are still heard.
+ *
+ * <p>Frames to a group address are heard by every member with a single transmission. Nobody ACKs
+ * them, so each is sent once and counts as delivered as soon as it has been played.
+ *
+ * <p>The sound of the waves is rendered in the background when the encoder is created and frames
+ * are only sent once it and the {@link Input} are ready, so the first frame is not held up. ACKs
+ * are rendered as they are queued, so they start playing as soon as the line is clear.
  */
 public class AudioEncoder {
   
   /**
-   * The time it takes to send the largest possible frame (in millaseconds).
+   * How urgently data is sent, from highest to lowest.
+   */
+  public enum Priority {
+    
+    /**
+     * Short data that should get through even while a lot of other data is waiting, such as
+     * commands.
+     */
+    URGENT,
+    
+    NORMAL,
+    
+    /**
+     * Large transfers that may wait for everything else.
+     */
+    BULK
+  }
+  
+  /**
+   * What to do with new data when its data queue is full.
+   */
+  public enum OverflowPolicy {
+    
+    /**
+     * Wait until there is room in the queue.
+     */
+    BLOCK,
+    
+    /**
+     * Fail the new data with a {@link RejectedExecutionException} unless all of it fits.
+     */
+    REJECT,
+    
+    /**
+     * Make room by failing the oldest queued data of the same priority that has not started being
+     * sent with a {@link CancellationException}. Data that has started is never dropped, so the
+     * target never gets only part of it, and waits for room instead.
+     */
+    DROP_OLDEST
+  }
+  
+  /**
+   * Time buffer for the ACK timeout (in bits). Note the high number is due to the slow decoding
+   * process.
+   */
+  private static final int ACK_TIME_BUFFER_BITS = 8;
+  
+  /**
+   * The number of times the data frames in the window are sent without any of them being ACKed
+   * before their data is failed.
+   */
+  private static final int MAX_SEND_ATTEMPTS = 6;
+  
+  /**
+   * The default number of data frames of each priority that can be queued.
+   */
+  private static final int DEFAULT_QUEUE_CAPACITY = 64;
+  
+  /**
+   * The fraction of the queue that relayed frames may fill, which leaves the rest for frames sent
+   * from this computer.
    */
-  private static final long MAX_FRAME_DURATION =
-      Constants.BIT_DURATION * (Constants.AUDIO_FRAME_START.size()
-          + (Constants.COMPUTER_ID_BITS * 2 /* Manchester encoded */ * 2 /* source and target */)
-          + (Constants.AUDIO_FRAME_SIZE_BITS * 2 /* Manchester encoded */)
-          + (Constants.AUDIO_FRAME_MAX_DATA_LENGTH
-              * 8 /* bits in byte */
-              * 2 /* Manchester encoded */)
-          + Constants.AUDIO_FRAME_CHECKSUM.size()
-          + Constants.AUDIO_FRAME_END.size());
+  private static final double RELAYED_QUEUE_SHARE = 0.5;
   
   /**
-   * The time it takes to send an ACK frame (in millaseconds).
+   * Frames passed to a single {@link #sendFrames} call, which are delivered once all of them are
+   * ACKed.
    */
-  private static final long ACK_FRAME_DURATION =
-      Constants.BIT_DURATION * (Constants.AUDIO_FRAME_START.size()
-          + (Constants.COMPUTER_ID_BITS * 2 /* Manchester encoded */ * 2 /* source and target */)
-          + (Constants.AUDIO_FRAME_SIZE_BITS * 2 /* Manchester encoded */)
-          + Constants.AUDIO_FRAME_END.size());
+  private static class Message {
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final Priority priority;
+    
+    /**
+     * The only session that the frames may be sent in, or -1 if they may be sent in any.
+     */
+    private final int session;
+    
+    private int unacknowledgedFrames;
+    
+    /**
+     * Whether any of the frames has entered the window. Guarded by {@code queueLock}.
+     */
+    private boolean isStarted;
+    
+    private Message(Priority priority, int session) {
+      this.priority = priority;
+      this.session = session;
+    }
+  }
   
   /**
-   * Time buffer for the ACK timeout (in millaseconds). Note the high number is due to the slow
-   * decoding process.
+   * The data of a frame along with the message it belongs to. The frame itself is only created once
+   * it enters the window, since that is when it gets its sequence number.
    */
-  private static final long ACK_TIME_BUFFER = Constants.BIT_DURATION * 8;
+  private static class QueuedFrame {
+
+    private final int target;
+    private final byte[] payload;
+    private final Message message;
+    private DataFrame frame;
+    
+    /**
+     * Whether the frame has been sent since it entered the window or was last found to be lost.
+     */
+    private boolean isSent;
+    
+    /**
+     * Whether the frame has not been sent at all, so that the target cannot have seen its sequence
+     * number yet.
+     */
+    private boolean isNew;
+    
+    private QueuedFrame(int target, byte[] payload, Message message) {
+      this.target = target;
+      this.payload = payload;
+      this.message = message;
+    }
+  }
   
   private final int computerId;
+  private final LinkProfile profile;
   
-  private final Wave waveOff;
-  private final Wave waveOn;
+  /**
+   * Renders the frames sent on each band.
+   */
+  private final Map<LinkProfile.Band, SignalRenderer> bandRenderers;
+  
+  /**
+   * Millaseconds after sending a data frame to wait for an ACK, which the target holds back for
+   * {@link LinkProfile#getAckDelay} in case more frames follow.
+   */
+  private final long ackTimeout;
   
   private final Input input;
-  private final LinkedList<Frame> frameQueue;
+  
+  /**
+   * Plays every frame, one at a time.
+   */
+  private final AudioPlayer player;
+  private final Queue<AckFrame> ackQueue;
   private final ScheduledExecutorService executor;
+  private final ExecutorService workers;
+  
+  /**
+   * Guards {@link #dataQueues}, {@link #queueCapacity} and {@link #overflowPolicy}.
+   */
+  private final ReentrantLock queueLock;
+  private final Condition queueNotFull;
+  private final Map<Priority, Deque<QueuedFrame>> dataQueues;
+  private int queueCapacity;
+  private OverflowPolicy overflowPolicy;
+  
+  /**
+   * The data frames that have entered the window and are not ACKed yet, oldest first. These are
+   * always to the same target.
+   */
+  private final Deque<QueuedFrame> window;
+  
+  /**
+   * The sequence number to give the next data frame to each target.
+   */
+  private final Map<Integer, Integer> targetsToNextSequence;
+  
+  /**
+   * The targets that have ACKed a frame since this computer started or last gave up on frames to
+   * them. Frames to any other target start its sequence numbers over.
+   */
+  private final Set<Integer> synchronizedTargets;
+  
+  /**
+   * The session that frames to each target start the sequence numbers over in. This starts out
+   * random so that a restarted computer is unlikely to reuse the session it had before, and changes
+   * each time this computer gives up on frames to the target.
+   */
+  private final Map<Integer, Integer> targetsToSession;
+  private final Random random;
   
   private final Input.Listener inputListener = new Input.Listener() {
     @Override
@@ -67,8 +253,8 @@ public class AudioEncoder {
     }
 
     @Override
-    public void onAckReceived(int source) {
-      handleAckReceived(source);
+    public void onAckReceived(int source, int acknowledgedSequences) {
+      handleAckReceived(source, acknowledgedSequences);
     }
   };
   
@@ -86,6 +272,13 @@ public class AudioEncoder {
     }
   };
     
+  private final AudioPlayer.Listener playerListener = new AudioPlayer.Listener() {
+    @Override
+    public void onSoundPlaying(byte[] sound) {
+      input.handleSoundPlaying(sound);
+    }
+  };
+    
   private final Callable<Void> timeoutRunnable = new Callable<Void>() {
     @Override
     public Void call() {
@@ -94,146 +287,875 @@ public class AudioEncoder {
       return null;
     }};
     
-  private boolean isFrameSending;
+  private final Runnable retryRunnable = new Runnable() {
+    @Override
+    public void run() {
+      handleRetry();
+    }
+  };
+  
+  private final Runnable prepareRunnable = new Runnable() {
+    @Override
+    public void run() {
+      prepare();
+    }
+  };
+  
+  private final CompletableFuture<Void> readyFuture;
+  
+  private volatile boolean isClosed;
+  
+  /**
+   * The frame that is currently playing, or null if none is.
+   */
+  private Frame sendingFrame;
+  
+  /**
+   * The band that {@link #sendingFrame} is playing on, which is not listened to until it is over.
+   */
+  private LinkProfile.Band sendingBand;
+  
+  /**
+   * Whether no data frames are sent because of an ACK timeout.
+   */
+  private boolean isBackingOff;
+
   private int exponentialBackoffNumber;
   private ScheduledFuture<Void> timeoutFuture;
+  private ScheduledFuture<?> retryFuture;
+  private ScheduledFuture<?> lineClearFuture;
   
-  public AudioEncoder(int computerId) {
+  /**
+   * @param profile how sound carries frames over the link
+   */
+  public AudioEncoder(int computerId, LinkProfile profile) {
     this.computerId = computerId;
+    this.profile = profile;
     
-    this.waveOff = new MixedWave(ImmutableList.of(
-        new SineWave(Constants.FREQUENCY_OFF),
-        new SineWave(Constants.FREQUENCY_OFF + Constants.FREQUENCY_SECOND_OFFSET)));
-    this.waveOn = new MixedWave(ImmutableList.of(
-        new SineWave(Constants.FREQUENCY_ON),
-        new SineWave(Constants.FREQUENCY_ON + Constants.FREQUENCY_SECOND_OFFSET)));
+    this.bandRenderers = new EnumMap<>(LinkProfile.Band.class);
+    for (LinkProfile.Band band : profile.getBands()) {
+      Wave waveOff = new MixedWave(ImmutableList.of(
+          new SineWave(profile.getFrequencyOff(band)),
+          new SineWave(profile.getFrequencyOff(band) + profile.getFrequencySecondOffset())));
+      Wave waveOn = new MixedWave(ImmutableList.of(
+          new SineWave(profile.getFrequencyOn(band)),
+          new SineWave(profile.getFrequencyOn(band) + profile.getFrequencySecondOffset())));
+      bandRenderers.put(band, new SignalRenderer(profile, waveOff, waveOn));
+    }
     
-    this.input = Input.getInstance(computerId);
-    this.frameQueue = new LinkedList<>();
-    this.executor = Executors.newSingleThreadScheduledExecutor();
+    this.ackTimeout = profile.getAckDelay()
+        + profile.getAckFrameDuration()
+        + (long) profile.getBitDuration() * ACK_TIME_BUFFER_BITS;
     
+    this.input = Input.getInstance(computerId, profile);
+    
+    try {
+      this.player = new AudioPlayer(profile.getSoundFormat(), playerListener);
+    } catch (LineUnavailableException e) {
+      // TODO: Handle error.
+      e.printStackTrace();
+      
+      throw new RuntimeException("Could not initialize audio player.");
+    }
+    
+    this.ackQueue = new ConcurrentLinkedQueue<>();
+    this.executor = SharedExecutors.getInstance().getScheduler();
+    this.workers = SharedExecutors.getInstance().getWorkers();
+    
+    this.queueLock = new ReentrantLock();
+    this.queueNotFull = queueLock.newCondition();
+    this.dataQueues = new EnumMap<>(Priority.class);
+    for (Priority priority : Priority.values()) {
+      dataQueues.put(priority, new ArrayDeque<QueuedFrame>());
+    }
+    this.queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    this.overflowPolicy = OverflowPolicy.BLOCK;
+    
+    this.window = new ArrayDeque<>();
+    this.targetsToNextSequence = new HashMap<>();
+    this.synchronizedTargets = new HashSet<>();
+    this.targetsToSession = new HashMap<>();
+    this.random = new Random();
+    this.exponentialBackoffNumber = 1;
+    
+    this.readyFuture = CompletableFuture.allOf(
+        CompletableFuture.runAsync(prepareRunnable, workers),
+        input.whenReady());
+    readyFuture.thenRun(sendNextFrameRunnable);
+    
+    // Last, since an ACK can arrive as soon as this is added.
     input.addListener(inputListener);
   }
   
   /**
-   * Sends {@code data} over audio.
+   * Returns a future that completes once frames are sent. Frames queued before then wait.
+   */
+  public CompletableFuture<Void> whenReady() {
+    return readyFuture;
+  }
+  
+  /**
+   * Sets how many data frames of each priority can be queued and what happens to new data once
+   * they are. Frames that are already queued are kept even if there are more than {@code
+   * capacity}.
    */
-  public void sendData(int target, byte[] data) {
+  public void setQueuePolicy(int capacity, OverflowPolicy policy) {
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+
+    queueLock.lock();
     try {
-      int offset = 0;
+      queueCapacity = capacity;
+      overflowPolicy = policy;
       
-      while (offset < data.length) {
-        int length = Math.min(Constants.AUDIO_FRAME_MAX_DATA_LENGTH, data.length - offset + 1);
+      queueNotFull.signalAll();
+    } finally {
+      queueLock.unlock();
+    }
+  }
+  
+  /**
+   * Sends one frame over audio for each of {@code payloads}, in order. This may be called from any
+   * thread, but blocks while the queue is full if the {@link OverflowPolicy} is {@link
+   * OverflowPolicy#BLOCK}.
+   *
+   * @param payloads the data of each frame, each at most {@link
+   *     Constants#AUDIO_FRAME_MAX_DATA_LENGTH} bytes
+   * @return a future that completes once every frame is ACKed, or played if {@code target} is a
+   *     group address, or fails if the frames are not ACKed after {@link #MAX_SEND_ATTEMPTS}
+   *     attempts, the frames cannot be queued or the encoder is closed
+   */
+  public CompletableFuture<Void> sendFrames(int target, List<byte[]> payloads) {
+    return sendFrames(target, payloads, Priority.NORMAL, false /* isRelayed */, -1 /* session */);
+  }
+  
+  /**
+   * Sends frames like {@link #sendFrames(int, List)}, but only in {@code session}. The frames fail
+   * with a {@link CancellationException} instead of being sent once frames to {@code target} are
+   * in another session, since the target then forgot the frames before them.
+   *
+   * @param session a session returned by {@link #getSession}
+   */
+  public CompletableFuture<Void> sendFrames(int target, List<byte[]> payloads, int session) {
+    return sendFrames(target, payloads, Priority.NORMAL, false /* isRelayed */, session);
+  }
+  
+  /**
+   * Sends frames like {@link #sendFrames(int, List)}. Relayed frames are only queued if their queue
+   * stays within {@link #RELAYED_QUEUE_SHARE} of its capacity and fail with a {@link
+   * RejectedExecutionException} otherwise, whatever the {@link OverflowPolicy}, so that frames
+   * passing through never block or displace frames sent from this computer.
+   *
+   * @param priority the priority of the frames, which are sent after any queued frames of the same
+   *     or a higher priority
+   * @param isRelayed whether the frames are from another computer
+   */
+  public CompletableFuture<Void> sendFrames(
+      int target,
+      List<byte[]> payloads,
+      Priority priority,
+      boolean isRelayed) {
+
+    return sendFrames(target, payloads, priority, isRelayed, -1 /* session */);
+  }
+  
+  private CompletableFuture<Void> sendFrames(
+      int target,
+      List<byte[]> payloads,
+      Priority priority,
+      boolean isRelayed,
+      int session) {
+
+    Message message = new Message(priority, session);
+    List<QueuedFrame> frames = new ArrayList<>();
+
+    for (byte[] payload : payloads) {
+      if (payload.length > Constants.AUDIO_FRAME_MAX_DATA_LENGTH) {
+        message.future.completeExceptionally(new IllegalArgumentException(
+            "Data must be less than " + Constants.AUDIO_FRAME_MAX_DATA_LENGTH + " bytes."));
+        return message.future;
+      }
+
+      frames.add(new QueuedFrame(target, payload, message));
+    }
+    
+    if (frames.isEmpty()) {
+      message.future.complete(null);
+      return message.future;
+    }
+    
+    message.unacknowledgedFrames = frames.size();
+    
+    List<Message> droppedMessages;
+    try {
+      droppedMessages = enqueue(frames, priority, isRelayed);
+    } catch (RejectedExecutionException e) {
+      message.future.completeExceptionally(e);
+      return message.future;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      removeQueuedFrames(message);
+      message.future.completeExceptionally(e);
+      return message.future;
+    }
+    
+    for (Message droppedMessage : droppedMessages) {
+      droppedMessage.future.completeExceptionally(
+          new CancellationException("Dropped from send queue"));
+    }
+    
+    sendNextFrame();
+
+    return message.future;
+  }
+  
+  /**
+   * Sends an ACK over audio ahead of any data. This may be called from any thread.
+   *
+   * @param acknowledgedSequences a mask with bit {@code n} set if the data frame with sequence
+   *     number {@code n} is acknowledged
+   */
+  public void sendAck(int target, int acknowledgedSequences) {
+    AckFrame frame = new AckFrame(computerId, target, acknowledgedSequences, getRenderer(target));
+    frame.prerender();
+    ackQueue.add(frame);
+    
+    sendNextFrame();
+  }
+  
+  /**
+   * Stops sending frames and drops every frame that has not been sent. A frame that is currently
+   * playing finishes playing. Data that has not been ACKed fails with a {@link
+   * CancellationException}.
+   */
+  public void close() {
+    List<Message> cancelledMessages = new ArrayList<>();
+
+    synchronized (this) {
+      isClosed = true;
+      
+      cancel(timeoutFuture);
+      cancel(retryFuture);
+      cancel(lineClearFuture);
+      
+      for (QueuedFrame queuedFrame : window) {
+        cancelledMessages.add(queuedFrame.message);
+      }
+      window.clear();
+      
+      ackQueue.clear();
+      input.removeListener(inputListener);
+      
+      if (sendingFrame == null) {
+        player.close();
+      }
+    }
+    
+    queueLock.lock();
+    try {
+      for (Deque<QueuedFrame> dataQueue : dataQueues.values()) {
+        for (QueuedFrame queuedFrame : dataQueue) {
+          cancelledMessages.add(queuedFrame.message);
+        }
+        dataQueue.clear();
+      }
+      
+      queueNotFull.signalAll();
+    } finally {
+      queueLock.unlock();
+    }
+    
+    for (Message message : cancelledMessages) {
+      message.future.completeExceptionally(new CancellationException("Encoder closed"));
+    }
+  }
+  
+  /**
+   * Adds the frames of a message to the data queue of {@code priority} according to the {@link
+   * OverflowPolicy}.
+   *
+   * @return the messages that have been dropped and should be failed, which includes the new
+   *     message if it is larger than the queue or the encoder was closed
+   * @throws RejectedExecutionException if the frames do not fit and the policy is {@link
+   *     OverflowPolicy#REJECT} or they are relayed
+   */
+  private List<Message> enqueue(List<QueuedFrame> frames, Priority priority, boolean isRelayed)
+      throws InterruptedException {
+    Message message = frames.get(0).message;
+    List<Message> droppedMessages = new ArrayList<>();
+
+    queueLock.lock();
+    try {
+      Deque<QueuedFrame> dataQueue = dataQueues.get(priority);
+
+      if (isRelayed
+          && (dataQueue.size() + frames.size() > queueCapacity * RELAYED_QUEUE_SHARE)) {
+        throw new RejectedExecutionException("Send queue has no room for relayed frames");
+      }
+      
+      if ((overflowPolicy == OverflowPolicy.REJECT)
+          && (dataQueue.size() + frames.size() > queueCapacity)) {
+        throw new RejectedExecutionException("Send queue is full");
+      }
+      
+      for (QueuedFrame frame : frames) {
+        while (!isClosed
+            && !droppedMessages.contains(message)
+            && (dataQueue.size() >= queueCapacity)) {
+          if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+            Message droppableMessage = getDroppableMessage(dataQueue, message);
+            if (droppableMessage != null) {
+              removeQueuedFrames(droppableMessage);
+              droppedMessages.add(droppableMessage);
+              continue;
+            }
+          }
+
+          queueNotFull.await();
+        }
         
-        DataFrame frame = new DataFrame(
-            computerId,
-            target,
-            waveOff,
-            waveOn,
-            Arrays.copyOfRange(data, offset, offset + length));
-        frameQueue.add(frame);
+        if (isClosed) {
+          droppedMessages.add(message);
+        }
         
-        offset += length;
+        if (droppedMessages.contains(message)) {
+          break;
+        }
+
+        dataQueue.addLast(frame);
       }
-    } catch (Exception e) {
-      // TODO: Handle error.
-      e.printStackTrace();
-      return;
+    } finally {
+      queueLock.unlock();
     }
     
-    sendNextFrame();
+    return droppedMessages;
   }
   
   /**
-   * Sends an ACK over audio.
+   * Returns the oldest message in {@code dataQueue} none of whose frames have entered the window,
+   * so that failing it cannot leave the target with part of it. This is {@code newMessage} only if
+   * nothing else is queued. Returns null if nothing can be dropped, in which case the queue empties
+   * as its frames are sent.
    */
-  public void sendAck(int target) {
-    AckFrame frame = new AckFrame(computerId, target, waveOff, waveOn);
+  private static Message getDroppableMessage(Deque<QueuedFrame> dataQueue, Message newMessage) {
+    boolean isOnlyNewMessage = true;
+    for (QueuedFrame frame : dataQueue) {
+      if (frame.message == newMessage) {
+        continue;
+      }
+      
+      isOnlyNewMessage = false;
+      if (!frame.message.isStarted) {
+        return frame.message;
+      }
+    }
     
-    // Must maintain the currently sending frame as the first item in the queue.
-    frameQueue.add(isFrameSending ? 1 : 0, frame);
+    return (isOnlyNewMessage && !newMessage.isStarted) ? newMessage : null;
+  }
+  
+  /**
+   * Removes every queued frame belonging to {@code message}.
+   */
+  private void removeQueuedFrames(Message message) {
+    queueLock.lock();
+    try {
+      Iterator<QueuedFrame> iterator = dataQueues.get(message.priority).iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().message == message) {
+          iterator.remove();
+        }
+      }
+      
+      queueNotFull.signalAll();
+    } finally {
+      queueLock.unlock();
+    }
+  }
+  
+  /**
+   * Takes the oldest frame of the highest priority that has any queued if it is to {@code target},
+   * or to any target if {@code target} is null. Returns null otherwise, so that frames of a lower
+   * priority never enter the window ahead of it.
+   */
+  private QueuedFrame pollDataQueue(Integer target) {
+    queueLock.lock();
+    try {
+      for (Deque<QueuedFrame> dataQueue : dataQueues.values()) {
+        QueuedFrame frame = dataQueue.peekFirst();
+        if (frame == null) {
+          continue;
+        }
+        
+        if ((target != null) && (frame.target != target)) {
+          return null;
+        }
+        
+        dataQueue.pollFirst();
+        frame.message.isStarted = true;
+        queueNotFull.signalAll();
+
+        return frame;
+      }
+      
+      return null;
+    } finally {
+      queueLock.unlock();
+    }
+  }
+  
+  /**
+   * Returns the highest priority that has frames queued, or null if none are queued.
+   */
+  private Priority getWaitingPriority() {
+    queueLock.lock();
+    try {
+      for (Map.Entry<Priority, Deque<QueuedFrame>> entry : dataQueues.entrySet()) {
+        if (!entry.getValue().isEmpty()) {
+          return entry.getKey();
+        }
+      }
+      
+      return null;
+    } finally {
+      queueLock.unlock();
+    }
+  }
+  
+  /**
+   * Puts the newest frames in the window back at the front of their queue while they have never
+   * been sent and have a lower priority than queued frames. Their sequence numbers are taken back,
+   * which is safe since the target has never seen them.
+   */
+  private void preemptWindow() {
+    Priority waitingPriority = getWaitingPriority();
+    if (waitingPriority == null) {
+      return;
+    }
     
-    sendNextFrame();
+    while (!window.isEmpty()) {
+      QueuedFrame newestFrame = window.peekLast();
+      if (!newestFrame.isNew || (newestFrame.message.priority.compareTo(waitingPriority) <= 0)) {
+        return;
+      }
+      
+      window.pollLast();
+      targetsToNextSequence.put(newestFrame.target, newestFrame.frame.getSequence());
+      newestFrame.frame = null;
+
+      queueLock.lock();
+      try {
+        dataQueues.get(newestFrame.message.priority).addFirst(newestFrame);
+      } finally {
+        queueLock.unlock();
+      }
+    }
+  }
+  
+  /**
+   * Moves frames from the data queue into the window while there is room. The window only takes
+   * frames to one target at a time and never spans more than {@link Constants#AUDIO_FRAME_WINDOW}
+   * sequence numbers, so that the target can tell a new frame from a repeated one.
+   */
+  private void fillWindow() {
+    while (window.size() < Constants.AUDIO_FRAME_WINDOW) {
+      QueuedFrame oldestFrame = window.peekFirst();
+      Integer target = null;
+
+      if (oldestFrame != null) {
+        target = oldestFrame.target;
+        
+        int span = getNextSequence(target) - oldestFrame.frame.getSequence();
+        if ((span + Constants.AUDIO_FRAME_SEQUENCES) % Constants.AUDIO_FRAME_SEQUENCES
+            >= Constants.AUDIO_FRAME_WINDOW) {
+          return;
+        }
+      }
+      
+      QueuedFrame frame = pollDataQueue(target);
+      if (frame == null) {
+        return;
+      }
+      
+      if ((frame.message.session != -1) && (frame.message.session != getSession(frame.target))) {
+        failExpiredMessage(frame.message);
+        continue;
+      }
+      
+      int sequence = getNextSequence(frame.target);
+      targetsToNextSequence.put(frame.target, (sequence + 1) % Constants.AUDIO_FRAME_SEQUENCES);
+
+      frame.frame = new DataFrame(
+          computerId,
+          frame.target,
+          sequence,
+          getStartSession(frame.target),
+          0 /* acknowledgedSequences */,
+          getRenderer(frame.target),
+          frame.payload);
+      frame.isNew = true;
+      window.addLast(frame);
+    }
+  }
+  
+  /**
+   * Fails a message that may only be sent in a session that has ended, along with the rest of its
+   * frames. The future is completed on a worker since this is called within the lock.
+   */
+  private void failExpiredMessage(final Message message) {
+    removeQueuedFrames(message);
+    
+    workers.execute(new Runnable() {
+      @Override
+      public void run() {
+        message.future.completeExceptionally(
+            new CancellationException("Frames to the target were given up on"));
+      }
+    });
+  }
+  
+  /**
+   * Renders the sound of the waves on every band, and an ACK on each so that the code that renders
+   * frames is loaded and compiled before the first one is sent.
+   */
+  private void prepare() {
+    for (SignalRenderer renderer : bandRenderers.values()) {
+      renderer.prepare();
+      AckFrame frame = new AckFrame(
+          computerId,
+          profile.getBroadcastAddress(),
+          1 /* acknowledgedSequences */,
+          renderer);
+      frame.prerender();
+    }
+  }
+  
+  /**
+   * Returns the renderer for the band that frames to {@code target} are sent on.
+   */
+  private SignalRenderer getRenderer(int target) {
+    return bandRenderers.get(profile.getBand(computerId, target));
+  }
+  
+  /**
+   * Returns the session that frames to {@code target} start the sequence numbers over in, or -1 if
+   * they do not start them over since the target has ACKed a frame.
+   */
+  private int getStartSession(int target) {
+    return synchronizedTargets.contains(target) ? -1 : getSession(target);
+  }
+  
+  /**
+   * Returns the session that frames to {@code target} are sent in. It changes whenever frames to
+   * the target are given up on, after which the target forgets what it received before.
+   */
+  public synchronized int getSession(int target) {
+    Integer session = targetsToSession.get(target);
+    if (session == null) {
+      session = random.nextInt(Constants.AUDIO_FRAME_SESSIONS);
+      targetsToSession.put(target, session);
+    }
+    return session;
+  }
+  
+  private int getNextSequence(int target) {
+    Integer sequence = targetsToNextSequence.get(target);
+    return (sequence == null) ? 0 : sequence;
   }
   
   /**
-   * Sends the next frame in the queue.
+   * Sends the next frame, which is the oldest queued ACK or, if there are none, the oldest data
+   * frame in the window that has not been sent. No data frames are sent while backing off.
+   *
+   * <p>If the oldest queued ACK is to the target of that data frame, or an ACK to it is still being
+   * held back by the decoder, the data frame is sent with the ACK in it instead.
    */
-  private void sendNextFrame() {
-    if (isFrameSending || frameQueue.isEmpty()) {
+  private synchronized void sendNextFrame() {
+    if (isClosed || (sendingFrame != null) || !readyFuture.isDone()) {
       return;
     }
     
-    if (!input.isLineClear()) {
-      executor.schedule(sendNextFrameRunnable, Constants.BIT_DURATION / 2, TimeUnit.MILLISECONDS);
+    QueuedFrame nextDataFrame = null;
+    if (!isBackingOff) {
+      preemptWindow();
+      fillWindow();
+      
+      for (QueuedFrame frame : window) {
+        if (!frame.isSent) {
+          nextDataFrame = frame;
+          break;
+        }
+      }
+    }
+    
+    AckFrame nextAckFrame = ackQueue.peek();
+    boolean isAckPiggybacked = (nextAckFrame != null) && (nextDataFrame != null)
+        && (nextAckFrame.getTarget() == nextDataFrame.target);
+
+    Frame nextFrame = nextAckFrame;
+    if ((nextAckFrame == null) || isAckPiggybacked) {
+      if (nextDataFrame == null) {
+        return;
+      }
+      
+      nextFrame = nextDataFrame.frame;
+    }
+    
+    LinkProfile.Band band = profile.getBand(computerId, nextFrame.getTarget());
+    if (!input.isLineClear(band)) {
+      if ((lineClearFuture == null) || lineClearFuture.isDone()) {
+        lineClearFuture = executor.schedule(
+            sendNextFrameRunnable,
+            profile.getBitDuration() / 2,
+            TimeUnit.MILLISECONDS);
+      }
       return;
     }
+    
+    if (nextFrame instanceof AckFrame) {
+      ackQueue.poll();
+    } else {
+      int acknowledgedSequences = isAckPiggybacked
+          ? ackQueue.poll().getAcknowledgedSequences()
+          : input.takePendingAck(nextDataFrame.target);
+      
+      int session = getStartSession(nextDataFrame.target);
+      
+      if ((acknowledgedSequences != nextDataFrame.frame.getAcknowledgedSequences())
+          || (session != nextDataFrame.frame.getSession())) {
+        DataFrame frame = nextDataFrame.frame;
+        nextDataFrame.frame = new DataFrame(
+            computerId,
+            frame.getTarget(),
+            frame.getSequence(),
+            session,
+            acknowledgedSequences,
+            getRenderer(frame.getTarget()),
+            nextDataFrame.payload);
+        nextFrame = nextDataFrame.frame;
+      }
+      nextDataFrame.isSent = true;
+      nextDataFrame.isNew = false;
+      
+      // The timeout restarts once this frame is over.
+      cancel(timeoutFuture);
+    }
 
-    isFrameSending = true;
-    input.setEnabled(false);
-    exponentialBackoffNumber = 1;
+    sendingFrame = nextFrame;
+    sendingBand = band;
+    if (!input.isEchoCancellationEnabled()) {
+      input.setBandEnabled(band, false);
+    }
 
-    Frame nextFrame = frameQueue.getFirst();
-    nextFrame.send(onFrameSentRunnable);
+    nextFrame.send(workers, player, onFrameSentRunnable);
   }
   
   /**
-   * Handles a frame finishing being sent. This re-enables input and sends the next frame if it is
-   * an {@link AckFrame} or awaits for the ACK if it is another frame (e.g., {@link DataFrame}).
+   * Handles a frame finishing being sent. This re-enables input if it was disabled, awaits the ACK
+   * if it was a {@link DataFrame} to a computer and sends the next frame. A data frame to a group
+   * is done once it has been played.
    */
   private void handleFrameSent() {
-    isFrameSending = false;
-    input.setEnabled(true);
+    List<Message> deliveredMessages = new ArrayList<>();
 
-    Frame lastFrame = frameQueue.getFirst();
-    if (lastFrame instanceof AckFrame) {
-      frameQueue.removeFirst();
+    synchronized (this) {
+      Frame lastFrame = sendingFrame;
+
+      sendingFrame = null;
+      input.setBandEnabled(sendingBand, true);
+      
+      if (isClosed) {
+        player.close();
+        return;
+      }
+
+      if (lastFrame instanceof DataFrame) {
+        if (profile.isGroupAddress(lastFrame.getTarget())) {
+          removeFromWindow(lastFrame, deliveredMessages);
+        } else {
+          timeoutFuture = executor.schedule(timeoutRunnable, ackTimeout, TimeUnit.MILLISECONDS);
+        }
+      }
+      
       sendNextFrame();
-    } else {
-      timeoutFuture = executor.schedule(
-          timeoutRunnable,
-          ACK_FRAME_DURATION + ACK_TIME_BUFFER,
-          TimeUnit.MILLISECONDS);
+    }
+    
+    for (Message message : deliveredMessages) {
+      message.future.complete(null);
+    }
+  }
+  
+  /**
+   * Removes the window's entry for {@code frame}, adding its message to {@code deliveredMessages}
+   * if that was its last frame.
+   */
+  private void removeFromWindow(Frame frame, List<Message> deliveredMessages) {
+    Iterator<QueuedFrame> iterator = window.iterator();
+    while (iterator.hasNext()) {
+      QueuedFrame queuedFrame = iterator.next();
+      if (queuedFrame.frame != frame) {
+        continue;
+      }
+      
+      iterator.remove();
+
+      queuedFrame.message.unacknowledgedFrames--;
+      if (queuedFrame.message.unacknowledgedFrames == 0) {
+        deliveredMessages.add(queuedFrame.message);
+      }
+      return;
     }
   }
   
   /**
-   * Handles the receipt of an ACK.
+   * Handles the receipt of an ACK. Frames in the window that were sent before the newest frame that
+   * the ACK covers but are not covered themselves were lost, so they are sent again. Messages'
+   * futures are completed outside of the lock since they run the caller's callbacks.
    */
-  private synchronized void handleAckReceived(int source) {
+  private void handleAckReceived(int source, int acknowledgedSequences) {
     if (source == computerId) {
       System.err.println("It looks like someone else might have your computer ID.");
       return;
     }
     
-    if (frameQueue.isEmpty()) {
-      return;
-    }
+    List<Message> deliveredMessages = new ArrayList<>();
 
-    // Make sure it all lines up.
-    if (source != frameQueue.peek().getTarget()) {
-      return;
+    synchronized (this) {
+      // Make sure it all lines up.
+      QueuedFrame oldestFrame = window.peekFirst();
+      if ((oldestFrame == null) || (source != oldestFrame.target)) {
+        return;
+      }
+      
+      int newestAcknowledgedIndex = -1;
+      int index = 0;
+      for (QueuedFrame frame : window) {
+        if (isAcknowledged(frame, acknowledgedSequences)) {
+          newestAcknowledgedIndex = index;
+        }
+        index++;
+      }
+      
+      if (newestAcknowledgedIndex == -1) {
+        return;
+      }
+      
+      System.err.printf("ACK received from %d.%n", source);
+      synchronizedTargets.add(source);
+      
+      index = 0;
+      Iterator<QueuedFrame> iterator = window.iterator();
+      while (iterator.hasNext()) {
+        QueuedFrame frame = iterator.next();
+
+        if (isAcknowledged(frame, acknowledgedSequences)) {
+          iterator.remove();
+
+          frame.message.unacknowledgedFrames--;
+          if (frame.message.unacknowledgedFrames == 0) {
+            deliveredMessages.add(frame.message);
+          }
+        } else if (index < newestAcknowledgedIndex) {
+          frame.isSent = false;
+        }
+        
+        index++;
+      }
+      
+      cancel(retryFuture);
+      isBackingOff = false;
+      exponentialBackoffNumber = 1;
+      
+      boolean isAwaitingAck = false;
+      for (QueuedFrame frame : window) {
+        isAwaitingAck |= frame.isSent;
+      }
+      if (!isAwaitingAck) {
+        cancel(timeoutFuture);
+      }
+      
+      sendNextFrame();
     }
     
-    System.err.printf("ACK received from %d.%n", source);
+    for (Message message : deliveredMessages) {
+      message.future.complete(null);
+    }
+  }
+  
+  private static boolean isAcknowledged(QueuedFrame frame, int acknowledgedSequences) {
+    return frame.isSent && ((acknowledgedSequences & (1 << frame.frame.getSequence())) != 0);
+  }
+  
+  /**
+   * Handles a timeout occurring. This backs off before sending the window again, or fails the
+   * messages in the window if it has been sent too many times.
+   */
+  private void onTimeout() {
+    List<Message> failedMessages = new ArrayList<>();
+
+    synchronized (this) {
+      if (window.isEmpty()) {
+        return;
+      }
+      
+      if (exponentialBackoffNumber < MAX_SEND_ATTEMPTS) {
+        long exponentialBackoffMultiple =
+            (long) Math.floor(Math.random() * Math.pow(2, exponentialBackoffNumber));
     
-    timeoutFuture.cancel(false);
+        isBackingOff = true;
+        retryFuture = executor.schedule(
+            retryRunnable,
+            profile.getFrameMaxDuration() * exponentialBackoffMultiple,
+            TimeUnit.MILLISECONDS);
+        exponentialBackoffNumber++;
+        
+        return;
+      }
+      
+      for (QueuedFrame frame : window) {
+        if (!failedMessages.contains(frame.message)) {
+          failedMessages.add(frame.message);
+        }
+      }
+      // The target may have missed these frames, so it has to be told that they are skipped.
+      int target = window.peekFirst().target;
+      synchronizedTargets.remove(target);
+      targetsToSession.put(target, (getSession(target) + 1) % Constants.AUDIO_FRAME_SESSIONS);
+      window.clear();
+      exponentialBackoffNumber = 1;
+    }
+    
+    for (Message failedMessage : failedMessages) {
+      // The rest of the message is of no use to the target.
+      removeQueuedFrames(failedMessage);
+      failedMessage.future.completeExceptionally(new TimeoutException(
+          "Frames were not ACKed after " + MAX_SEND_ATTEMPTS + " attempts"));
+    }
     
-    frameQueue.removeFirst();
     sendNextFrame();
   }
   
   /**
-   * Handles a timeout occurring.
+   * Handles the backoff after a timeout elapsing by sending every frame in the window again. An ACK
+   * that arrives before this is still accepted.
    */
-  private synchronized void onTimeout() {
-    long exponentialBackoffMultiple =
-        (long) Math.floor(Math.random() * Math.pow(2, exponentialBackoffNumber));
+  private synchronized void handleRetry() {
+    // Cancelling does not stop a retry that is already waiting for the lock. If an ACK ended the
+    // backoff meanwhile, or a later timeout started another, the window is not sent again early.
+    if (!isBackingOff || (retryFuture.getDelay(TimeUnit.NANOSECONDS) > 0)) {
+      return;
+    }
+    
+    isBackingOff = false;
+    
+    for (QueuedFrame frame : window) {
+      frame.isSent = false;
+    }
 
-    executor.schedule(
-        sendNextFrameRunnable,
-        (long) MAX_FRAME_DURATION * exponentialBackoffMultiple,
-        TimeUnit.MILLISECONDS);
-    exponentialBackoffNumber++;
+    sendNextFrame();
+  }
+  
+  private static void cancel(ScheduledFuture<?> future) {
+    if (future != null) {
+      future.cancel(false);
+    }
   }
 }
@@ -1,57 +1,60 @@
 package com.alanrussian.networkingproject.out.audio;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 
-import com.alanrussian.networkingproject.common.Constants;
-import com.alanrussian.networkingproject.out.audio.wave.Wave;
+import com.alanrussian.networkingproject.common.SoundFormat;
 
 /**
- * Plays different waves.
+ * Plays rendered sound. The speaker's line is kept open between sounds, so that opening it does
+ * not delay each one.
  */
 public class AudioPlayer {
   
-  private final List<byte[]> waveBytes;
-  
-  private static final AudioFormat AUDIO_FORMAT = new AudioFormat(
-        Constants.SAMPLE_RATE,
-        8 /* sampleSizeInBits */,
-        1, /* channels */
-        true, /* signed */ 
-        true /* bigEndian */);
+  /**
+   * Listener for sound being played.
+   */
+  public static interface Listener {
+    
+    /**
+     * Triggered right before {@code sound} starts being written to the speaker.
+     */
+    void onSoundPlaying(byte[] sound);
+  }
   
   private final SourceDataLine line;
+  private final Listener listener;
   
-  public AudioPlayer() throws LineUnavailableException {
-    this.waveBytes = new ArrayList<>();
+  /**
+   * @param format the format that sound passed to {@link #play} is in
+   */
+  public AudioPlayer(SoundFormat format, Listener listener) throws LineUnavailableException {
+    this.listener = listener;
+
+    AudioFormat audioFormat = format.toAudioFormat();
 
-    line = AudioSystem.getSourceDataLine(AUDIO_FORMAT);
-    line.open(AUDIO_FORMAT, Constants.SAMPLE_RATE);
+    line = AudioSystem.getSourceDataLine(audioFormat);
+    line.open(audioFormat, format.getSampleRate() * format.getFrameSize() /* one second */);
     line.start();
   }
   
   /**
-   * Plays all waves that have been queued up.
+   * Plays {@code sound} in a single write and blocks until it has finished playing.
    */
-  public void play() throws LineUnavailableException {
-    for (byte[] data : waveBytes) {
-      line.write(data, 0, data.length);
-    }
+  public void play(byte[] sound) throws LineUnavailableException {
+    listener.onSoundPlaying(sound);
+
+    line.write(sound, 0, sound.length);
 
     line.drain();
-    
-    waveBytes.clear();
   }
   
   /**
-   * Adds a {@link Wave} to the play queue.
+   * Releases the speaker. Sound that is playing is cut off.
    */
-  public void add(Wave wave, int duration) {
-    waveBytes.add(wave.getData(Constants.SAMPLE_RATE, duration));
+  public void close() {
+    line.close();
   }
 }
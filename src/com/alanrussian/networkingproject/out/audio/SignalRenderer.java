@@ -0,0 +1,112 @@
+package com.alanrussian.networkingproject.out.audio;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.common.SoundFormat;
+import com.alanrussian.networkingproject.out.audio.wave.Wave;
+
+/**
+ * Renders on/off signals into a single contiguous block of sound. The sound of each wave is
+ * rendered once ahead of time and then copied in for every run of equal signals, so rendering a
+ * frame does not synthesize any waves. The sound is rendered by {@link #prepare}, or else when it
+ * is first needed.
+ */
+public class SignalRenderer {
+  
+  /**
+   * The number of signals that templates are initially rendered for. This covers the longest run of
+   * equal signals in the frames that are currently sent.
+   */
+  private static final int INITIAL_TEMPLATE_SIGNALS = 8;
+  
+  private final LinkProfile profile;
+  private final SoundFormat format;
+  private final Wave waveOff;
+  private final Wave waveOn;
+  
+  /**
+   * The number of samples of sound per signal.
+   */
+  private final int signalSamples;
+  
+  /**
+   * The number of bytes of sound per signal.
+   */
+  private final int signalLength;
+  
+  private byte[] offTemplate;
+  private byte[] onTemplate;
+
+  public SignalRenderer(LinkProfile profile, Wave waveOff, Wave waveOn) {
+    this.profile = profile;
+    this.format = profile.getSoundFormat();
+    this.waveOff = waveOff;
+    this.waveOn = waveOn;
+    this.signalSamples = format.getSampleCount(profile.getBitDuration());
+    this.signalLength = signalSamples * format.getFrameSize();
+  }
+  
+  /**
+   * Renders the sound of the waves ahead of time, if it has not been rendered yet.
+   */
+  public synchronized void prepare() {
+    if (onTemplate == null) {
+      renderTemplates(INITIAL_TEMPLATE_SIGNALS);
+    }
+  }
+  
+  /**
+   * Returns the profile of the link that sound is rendered for.
+   */
+  public LinkProfile getProfile() {
+    return profile;
+  }
+  
+  /**
+   * Returns the sound for {@code signals}, with each signal lasting the bit duration of the link. A
+   * run of equal signals is played as one uninterrupted wave.
+   */
+  public byte[] render(List<Boolean> signals) {
+    ByteBuffer sound = ByteBuffer.allocate(signals.size() * signalLength);
+    
+    int i = 0;
+    while (i < signals.size()) {
+      boolean value = signals.get(i);
+
+      int runLength = 1;
+      while ((i + runLength < signals.size()) && (signals.get(i + runLength) == value)) {
+        runLength++;
+      }
+      
+      sound.put(getTemplate(value, runLength), 0, runLength * signalLength);
+      i += runLength;
+    }
+    
+    return sound.array();
+  }
+  
+  /**
+   * Returns the template for a wave, rendering longer templates if it does not yet fit {@code
+   * runLength} signals.
+   */
+  private synchronized byte[] getTemplate(boolean isOn, int runLength) {
+    prepare();
+    if (onTemplate.length < runLength * signalLength) {
+      renderTemplates(runLength);
+    }
+    
+    return isOn ? onTemplate : offTemplate;
+  }
+  
+  /**
+   * Renders both templates to be {@code signals} long.
+   */
+  private synchronized void renderTemplates(int signals) {
+    int samples = signalSamples * signals;
+
+    offTemplate = format.toBytes(waveOff.getData(format.getSampleRate(), samples));
+    onTemplate = format.toBytes(waveOn.getData(format.getSampleRate(), samples));
+  }
+}
@@ -3,30 +3,50 @@ package com.alanrussian.networkingproject.out.audio.frame;
 import java.util.List;
 
 import com.alanrussian.networkingproject.common.Constants;
-import com.alanrussian.networkingproject.out.audio.wave.Wave;
+import com.alanrussian.networkingproject.out.audio.SignalRenderer;
 import com.google.common.collect.ImmutableList;
 
 /**
- * An ACK frame transmitted over audio.
+ * An ACK frame transmitted over audio. A single ACK frame can acknowledge up to {@link
+ * Constants#AUDIO_FRAME_WINDOW} data frames.
  */
 public class AckFrame extends Frame {
+  
+  private final int acknowledgedSequences;
 
-  public AckFrame(int source, int target, Wave waveOff, Wave waveOn) {
-    super(source, target, waveOff, waveOn);
+  /**
+   * @param acknowledgedSequences a mask with bit {@code n} set if sequence number {@code n} is
+   *     acknowledged
+   */
+  public AckFrame(int source, int target, int acknowledgedSequences, SignalRenderer renderer) {
+    super(source, target, renderer);
+    
+    this.acknowledgedSequences = acknowledgedSequences;
+  }
+  
+  /**
+   * Returns a mask with bit {@code n} set if sequence number {@code n} is acknowledged.
+   */
+  public int getAcknowledgedSequences() {
+    return acknowledgedSequences;
   }
 
   /**
-   * Returns the signal for an ACK, which are the start, size zero, and the end.
+   * Returns the signal for an ACK, which are the start, size zero, the acknowledged sequence
+   * numbers, and the end.
    */
   @Override
   protected List<Boolean> getSignals() {
     return ImmutableList.<Boolean>builder()
-        .addAll(Constants.AUDIO_FRAME_START)
-        .addAll(createOutput(createBooleanListFromNumber(source, Constants.COMPUTER_ID_BITS)))
-        .addAll(createOutput(createBooleanListFromNumber(target, Constants.COMPUTER_ID_BITS)))
+        .addAll(renderer.getProfile().getFrameStart())
+        .addAll(createOutput(
+            createBooleanListFromNumber(source, renderer.getProfile().getAddressBits())))
+        .addAll(createOutput(
+            createBooleanListFromNumber(target, renderer.getProfile().getAddressBits())))
         .addAll(createOutput(
             createBooleanListFromNumber(0, Constants.AUDIO_FRAME_SIZE_BITS)))
-        .addAll(Constants.AUDIO_FRAME_END)
+        .addAll(createAckOutput(acknowledgedSequences))
+        .addAll(renderer.getProfile().getFrameEnd())
         .build();
   }
 }
@@ -4,38 +4,107 @@ import java.util.BitSet;
 import java.util.List;
 
 import com.alanrussian.networkingproject.common.Constants;
-import com.alanrussian.networkingproject.out.audio.wave.Wave;
+import com.alanrussian.networkingproject.out.audio.SignalRenderer;
 import com.google.common.collect.ImmutableList;
 
 /**
- * A frame of data transmitted over audio.
+ * A frame of data transmitted over audio. A data frame can also acknowledge data frames sent the
+ * other way so that a separate ACK frame is not needed.
  */
 public class DataFrame extends Frame {
   
+  private final int sequence;
+  private final int session;
+  private final int acknowledgedSequences;
   private final byte[] data;
 
-  public DataFrame(int source, int target, Wave waveOff, Wave waveOn, byte[] data) {
-    super(source, target, waveOff, waveOn);
+  /**
+   * @param session the session that the frame starts the sequence numbers over in, or -1 if it
+   *     does not. A frame starts them over while {@code target} has not ACKed a frame since this
+   *     computer started or gave up on frames to it.
+   * @param acknowledgedSequences a mask with bit {@code n} set if the data frame from {@code
+   *     target} with sequence number {@code n} is acknowledged, or zero to not acknowledge
+   *     anything
+   */
+  public DataFrame(
+      int source,
+      int target,
+      int sequence,
+      int session,
+      int acknowledgedSequences,
+      SignalRenderer renderer,
+      byte[] data) {
+    super(source, target, renderer);
 
     if (data.length > Constants.AUDIO_FRAME_MAX_DATA_LENGTH) {
       throw new IllegalArgumentException(
           "Data must be less than " + Constants.AUDIO_FRAME_MAX_DATA_LENGTH + " bytes.");
     }
 
+    this.sequence = sequence;
+    this.session = session;
+    this.acknowledgedSequences = acknowledgedSequences;
     this.data = data;
   }
   
+  /**
+   * Returns the sequence number of the frame.
+   */
+  public int getSequence() {
+    return sequence;
+  }
+  
+  /**
+   * Returns whether the frame starts the sequence numbers over for its target.
+   */
+  public boolean isStart() {
+    return session != -1;
+  }
+  
+  /**
+   * Returns the session that the frame starts the sequence numbers over in, or -1 if it does not.
+   */
+  public int getSession() {
+    return session;
+  }
+  
+  /**
+   * Returns the sequence numbers acknowledged by the frame as a mask, or zero if it does not carry
+   * an ACK.
+   */
+  public int getAcknowledgedSequences() {
+    return acknowledgedSequences;
+  }
+  
   @Override
   protected List<Boolean> getSignals() {
-    return ImmutableList.<Boolean>builder()
-        .addAll(Constants.AUDIO_FRAME_START)
-        .addAll(createOutput(createBooleanListFromNumber(source, Constants.COMPUTER_ID_BITS)))
-        .addAll(createOutput(createBooleanListFromNumber(target, Constants.COMPUTER_ID_BITS)))
+    ImmutableList.Builder<Boolean> builder = ImmutableList.<Boolean>builder()
+        .addAll(renderer.getProfile().getFrameStart())
+        .addAll(createOutput(
+            createBooleanListFromNumber(source, renderer.getProfile().getAddressBits())))
+        .addAll(createOutput(
+            createBooleanListFromNumber(target, renderer.getProfile().getAddressBits())))
         .addAll(createOutput(
             createBooleanListFromNumber(data.length, Constants.AUDIO_FRAME_SIZE_BITS)))
+        .addAll(createOutput(
+            createBooleanListFromNumber(sequence, Constants.AUDIO_FRAME_SEQUENCE_BITS)))
+        .addAll(createOutput(ImmutableList.of(isStart())));
+    
+    if (isStart()) {
+      builder.addAll(createOutput(
+          createBooleanListFromNumber(session, Constants.AUDIO_FRAME_SESSION_BITS)));
+    }
+    
+    builder.addAll(createOutput(ImmutableList.of(acknowledgedSequences != 0)));
+    
+    if (acknowledgedSequences != 0) {
+      builder.addAll(createAckOutput(acknowledgedSequences));
+    }
+    
+    return builder
         .addAll(createOutput(byteArrayToBooleanList(data)))
-        .addAll(Constants.AUDIO_FRAME_CHECKSUM)
-        .addAll(Constants.AUDIO_FRAME_END)
+        .addAll(renderer.getProfile().getFrameChecksum())
+        .addAll(renderer.getProfile().getFrameEnd())
         .build();
   }
   
@@ -2,12 +2,13 @@ package com.alanrussian.networkingproject.out.audio.frame;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.sound.sampled.LineUnavailableException;
 
 import com.alanrussian.networkingproject.common.Constants;
 import com.alanrussian.networkingproject.out.audio.AudioPlayer;
-import com.alanrussian.networkingproject.out.audio.wave.Wave;
+import com.alanrussian.networkingproject.out.audio.SignalRenderer;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 
@@ -19,14 +20,17 @@ public abstract class Frame {
   protected final int source;
   protected final int target;
   
-  private final Wave waveOff;
-  private final Wave waveOn;
+  protected final SignalRenderer renderer;
+  
+  /**
+   * The frame's sound, or null if it has not been rendered yet. Guarded by {@code this}.
+   */
+  private byte[] sound;
 
-  protected Frame(int source, int target, Wave waveOff, Wave waveOn) {
+  protected Frame(int source, int target, SignalRenderer renderer) {
     this.source = source;
     this.target = target;
-    this.waveOff = waveOff;
-    this.waveOn = waveOn;
+    this.renderer = renderer;
   }
   
   /**
@@ -36,15 +40,26 @@ public abstract class Frame {
     return target;
   }
   
+  /**
+   * Renders the frame's sound ahead of time, so that sending it starts playing right away.
+   */
+  public synchronized void prerender() {
+    if (sound == null) {
+      sound = renderer.render(getSignals());
+    }
+  }
+  
   /**
    * Sends the frame.
    * 
+   * @param executor executes the blocking work of playing the frame
+   * @param player plays the frame's sound. It must not be playing anything else.
    * @param callback executes after frame is finished sending
    */
-  public void send(Runnable callback) {
-    Runnable runnable = createPlaySoundRunnable(callback);
+  public void send(Executor executor, AudioPlayer player, Runnable callback) {
+    Runnable runnable = createPlaySoundRunnable(player, callback);
     
-    new Thread(runnable).start();
+    executor.execute(runnable);
   }
   
   /**
@@ -54,7 +69,7 @@ public abstract class Frame {
   
   /**
    * Creates an output list of booleans representing whether the sound should be on or off for every
-   * {@link Constants#BIT_DURATION}. This adds the Manchester encoding.
+   * bit duration of the link. This adds the Manchester encoding.
    */
   protected List<Boolean> createOutput(List<Boolean> input) {
     ImmutableList.Builder<Boolean> builder = ImmutableList.builder();
@@ -69,13 +84,51 @@ public abstract class Frame {
     return builder.build();
   }
   
+  /**
+   * Creates the output for an acknowledgement, which is the first acknowledged sequence number
+   * followed by a bitmap of it and the sequence numbers after it. This adds the Manchester
+   * encoding.
+   *
+   * @param acknowledgedSequences a mask with bit {@code n} set if sequence number {@code n} is
+   *     acknowledged. These must all fit within {@link Constants#AUDIO_FRAME_WINDOW} sequence
+   *     numbers.
+   */
+  protected List<Boolean> createAckOutput(int acknowledgedSequences) {
+    for (int base = 0; base < Constants.AUDIO_FRAME_SEQUENCES; base++) {
+      if ((acknowledgedSequences & (1 << base)) == 0) {
+        continue;
+      }
+      
+      int bitmap = 0;
+      int remainingSequences = acknowledgedSequences;
+      for (int i = 0; i < Constants.AUDIO_FRAME_WINDOW; i++) {
+        int sequenceBit = 1 << ((base + i) % Constants.AUDIO_FRAME_SEQUENCES);
+        if ((acknowledgedSequences & sequenceBit) != 0) {
+          bitmap |= 1 << (Constants.AUDIO_FRAME_WINDOW - 1 - i);
+          remainingSequences &= ~sequenceBit;
+        }
+      }
+      
+      if (remainingSequences == 0) {
+        return ImmutableList.<Boolean>builder()
+            .addAll(createOutput(
+                createBooleanListFromNumber(base, Constants.AUDIO_FRAME_SEQUENCE_BITS)))
+            .addAll(createOutput(
+                createBooleanListFromNumber(bitmap, Constants.AUDIO_FRAME_WINDOW)))
+            .build();
+      }
+    }
+    
+    throw new IllegalArgumentException("Acknowledged sequence numbers do not fit in one window");
+  }
+  
   /**
    * Creates a boolean list representing a number using exactly {@code bits}.
    */
   protected static List<Boolean> createBooleanListFromNumber(int number, int bits) {
     Preconditions.checkArgument(number >= 0);
     Preconditions.checkArgument(
-        number <= Math.pow(bits, 2) - 1,
+        number <= Math.pow(2, bits) - 1,
         "Number cannot fit in given number of bits");
 
     LinkedList<Boolean> list = new LinkedList<>();
@@ -96,60 +149,34 @@ public abstract class Frame {
   /**
    * Creates a runnable to play sounds and executes {@code callback} after completion.
    */
-  private Runnable createPlaySoundRunnable(final Runnable callback) {
+  private Runnable createPlaySoundRunnable(
+      final AudioPlayer player,
+      final Runnable callback) {
     return new Runnable() {
       @Override
       public void run() {
-        playSound();
+        playSound(player);
 
         callback.run();
       }
     };
   }
   
+  private synchronized byte[] getSound() {
+    prerender();
+    return sound;
+  }
+  
   /**
    * Plays the sound from the frame's signals.
    */
-  private void playSound() {
-    AudioPlayer player;
+  private void playSound(AudioPlayer player) {
     try {
-      player = new AudioPlayer();
-
-      playOutput(getSignals(), player);
-
-      player.play();
+      player.play(getSound());
     } catch (LineUnavailableException e) {
       // TODO: Handle error.
       e.printStackTrace();
       return;
     }
   }
-  
-  /**
-   * Converts a list of booleans into sound by treating true values as a sound being on and visa
-   * versa with false values.
-   */
-  private void playOutput(List<Boolean> output, AudioPlayer player) {
-    if (output.isEmpty()) {
-      return;
-    }
-    
-    int length = 1;
-    boolean lastValue = output.get(0);
-    
-    for (int i = 1; i < output.size(); i++) {
-      boolean value = output.get(i);
-      
-      if (value == lastValue) {
-        length++;
-        continue;
-      }
-      
-      player.add(lastValue ? waveOn : waveOff, Constants.BIT_DURATION * length);
-      length = 1;
-      lastValue = value;
-    }
-    
-    player.add(lastValue ? waveOn : waveOff, Constants.BIT_DURATION * length);
-  }
 }
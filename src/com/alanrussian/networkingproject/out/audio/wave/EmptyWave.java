@@ -18,7 +18,7 @@ public class EmptyWave implements Wave {
   }
   
   @Override
-  public byte[] getData(int sampleRate, int duration) {
-    return new byte[sampleRate / 1000 * duration];
+  public double[] getData(int sampleRate, int samples) {
+    return new double[samples];
   }
 }
@@ -20,25 +20,25 @@ public class MixedWave implements Wave {
    * Returns the average of the waves data.
    */
   @Override
-  public byte[] getData(int sampleRate, int duration) {
-    byte[] data = new byte[sampleRate / 1000 * duration];
+  public double[] getData(int sampleRate, int samples) {
+    double[] data = new double[samples];
 
-    List<byte[]> waveBytes = FluentIterable.from(waves)
-        .transform(new Function<Wave, byte[]>() {
+    List<double[]> waveSamples = FluentIterable.from(waves)
+        .transform(new Function<Wave, double[]>() {
           @Override
-          public byte[] apply(Wave wave) {
-            return wave.getData(sampleRate, duration);
+          public double[] apply(Wave wave) {
+            return wave.getData(sampleRate, samples);
           }
         }).toList();
     
     for (int i = 0; i < data.length; i++) {
-      int sum = 0;
+      double sum = 0.0;
 
-      for (byte[] bytes : waveBytes) {
-        sum += (int) bytes[i];
+      for (double[] values : waveSamples) {
+        sum += values[i];
       }
 
-      data[i] = (byte) ((double) sum / waves.size());
+      data[i] = sum / waves.size();
     }
     
     return data;
@@ -12,13 +12,13 @@ public class SineWave implements Wave {
   }
   
   @Override
-  public byte[] getData(int sampleRate, int duration) {
+  public double[] getData(int sampleRate, int samples) {
     double angularFrequency = 2.0 * Math.PI * frequency;
     double indexMultiplier = angularFrequency / sampleRate;
     
-    byte[] data = new byte[sampleRate / 1000 * duration];
+    double[] data = new double[samples];
     for (int i = 0; i < data.length; i++) {
-      data[i] = (byte) (Math.sin(indexMultiplier * i) * 127.0);
+      data[i] = Math.sin(indexMultiplier * i);
     }
     
     return data;
@@ -1,13 +1,13 @@
 package com.alanrussian.networkingproject.out.audio.wave;
 
 /**
- * A type of audio wave. Allows you to get wave data at a given sample rate for a given amount of
- * time (see {@link #getData}).
+ * A type of audio wave. Allows you to get wave data at a given sample rate for a given number of
+ * samples (see {@link #getData}).
  */
 public interface Wave {
 
   /**
-   * Gets the audio data of a wave given a sample rate for the given duration.
+   * Gets the audio data of a wave given a sample rate as samples from -1.0 to 1.0.
    */
-  public byte[] getData(int sampleRate, int duration);
+  public double[] getData(int sampleRate, int samples);
 }
@@ -0,0 +1,244 @@
+package com.alanrussian.networkingproject.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.alanrussian.networkingproject.common.Constants;
+
+/**
+ * A stream of bytes from another computer. Segments are put back in order by their sequence numbers
+ * and segments that were already received, such as ones sent again after a lost ACK, are dropped.
+ * The stream ends at the empty segment that the other computer sends when it closes its end.
+ *
+ * <p>The stream is cut off if the other computer starts its frames over, which it does after it
+ * restarts or gives up on frames, since segments may have been lost. Reads then return what is
+ * ready and throw after it. If no segment was in order yet, the stream starts over along with the
+ * other computer instead.
+ */
+public class SoundInputStream extends InputStream {
+  
+  /**
+   * Listener for {@link SoundInputStream}.
+   */
+  interface Listener {
+    
+    /**
+     * Triggered once the stream has ended and this end is done with it. This may be triggered again
+     * if it is closed after.
+     */
+    void onStreamEnded(int source, SoundInputStream stream);
+  }
+  
+  /**
+   * Bytes that are in order and ready to be read.
+   */
+  private final ArrayDeque<byte[]> readySegments;
+  
+  /**
+   * Segments that arrived ahead of a missing one, keyed by sequence number.
+   */
+  private final Map<Integer, byte[]> earlySegments;
+  
+  private final int source;
+  private final Listener listener;
+  
+  private int nextSequence;
+  private int readySegmentOffset;
+  private boolean isClosed;
+  
+  /**
+   * Whether the other computer has ended the stream and every segment before the end is ready.
+   */
+  private boolean isFinished;
+  
+  /**
+   * Whether the other computer started over after segments were put in order.
+   */
+  private boolean isReset;
+  
+  private boolean hasStarted;
+  private boolean hasReadEnd;
+  
+  SoundInputStream(int source, Listener listener) {
+    this.readySegments = new ArrayDeque<>();
+    this.earlySegments = new HashMap<>();
+    this.source = source;
+    this.listener = listener;
+  }
+  
+  @Override
+  public synchronized int read() throws IOException {
+    if (!awaitData()) {
+      return -1;
+    }
+    
+    byte[] segment = readySegments.peekFirst();
+    int value = segment[readySegmentOffset++] & 0xFF;
+    
+    if (readySegmentOffset == segment.length) {
+      readySegments.removeFirst();
+      readySegmentOffset = 0;
+    }
+    
+    return value;
+  }
+  
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    
+    if (!awaitData()) {
+      return -1;
+    }
+
+    // Only return what is ready rather than waiting to fill b.
+    int read = 0;
+    while ((read < len) && !readySegments.isEmpty()) {
+      byte[] segment = readySegments.peekFirst();
+      int length = Math.min(len - read, segment.length - readySegmentOffset);
+
+      System.arraycopy(segment, readySegmentOffset, b, off + read, length);
+      read += length;
+      readySegmentOffset += length;
+      
+      if (readySegmentOffset == segment.length) {
+        readySegments.removeFirst();
+        readySegmentOffset = 0;
+      }
+    }
+    
+    return read;
+  }
+  
+  @Override
+  public synchronized int available() {
+    int available = -readySegmentOffset;
+    for (byte[] segment : readySegments) {
+      available += segment.length;
+    }
+    
+    return available;
+  }
+  
+  /**
+   * Stops waiting for bytes. Reads return whatever is ready and then the end of the stream.
+   */
+  @Override
+  public synchronized void close() {
+    isClosed = true;
+    
+    notifyAll();
+    checkEnded();
+  }
+  
+  /**
+   * Handles a segment received from the other computer. Once this end is closed, segments are
+   * still put in order to find the end of the stream, but their bytes are dropped.
+   */
+  synchronized void handleSegment(int sequence, byte[] data) {
+    if (isFinished || isReset) {
+      return;
+    }
+    
+    // How far ahead of the next expected segment this one is. Anything in the back half of the
+    // sequence numbers has already been received.
+    int distance = (sequence - nextSequence + Constants.STREAM_SEQUENCE_NUMBERS)
+        % Constants.STREAM_SEQUENCE_NUMBERS;
+    if (distance >= SoundOutputStream.MAX_PENDING_SEGMENTS) {
+      return;
+    }
+    
+    earlySegments.put(sequence, data);
+    
+    boolean hasNewData = false;
+    while (earlySegments.containsKey(nextSequence)) {
+      byte[] segment = earlySegments.remove(nextSequence);
+      nextSequence = (nextSequence + 1) % Constants.STREAM_SEQUENCE_NUMBERS;
+      hasStarted = true;
+      hasNewData = true;
+      
+      if (segment.length == 0) {
+        isFinished = true;
+        earlySegments.clear();
+        break;
+      }
+      
+      if (!isClosed) {
+        readySegments.addLast(segment);
+      }
+    }
+    
+    if (hasNewData) {
+      notifyAll();
+      checkEnded();
+    }
+  }
+  
+  /**
+   * Handles the other computer starting over. Segments that were not in order yet are dropped
+   * since the ones before them may have been lost.
+   */
+  synchronized void handleReset() {
+    if (isFinished || isReset) {
+      return;
+    }
+    
+    earlySegments.clear();
+    
+    if (!hasStarted) {
+      // Nothing was read from the old segments, so the stream can go on from the new ones.
+      nextSequence = 0;
+      return;
+    }
+    
+    isReset = true;
+    
+    notifyAll();
+    checkEnded();
+  }
+  
+  /**
+   * Blocks until there are bytes to read or the stream is closed, finished or reset.
+   * 
+   * @return whether there are bytes to read
+   * @throws IOException if the stream was reset and every byte before that has been read
+   */
+  private boolean awaitData() throws IOException {
+    try {
+      while (readySegments.isEmpty() && !isClosed && !isFinished && !isReset) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    
+    if (!readySegments.isEmpty()) {
+      return true;
+    }
+    
+    hasReadEnd = true;
+    checkEnded();
+    
+    if (isReset && !isClosed) {
+      throw new IOException("Stream was cut off since the other computer started over");
+    }
+    return false;
+  }
+  
+  /**
+   * Tells the listener if the other computer will send no more segments and this end has either
+   * read up to the end or been closed.
+   */
+  private void checkEnded() {
+    if ((isFinished || isReset) && (hasReadEnd || isClosed)) {
+      listener.onStreamEnded(source, this);
+    }
+  }
+}
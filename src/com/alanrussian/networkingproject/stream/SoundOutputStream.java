@@ -0,0 +1,183 @@
+package com.alanrussian.networkingproject.stream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.alanrussian.networkingproject.common.Constants;
+import com.alanrussian.networkingproject.out.Output;
+
+/**
+ * A stream of bytes to another computer. Bytes are buffered into segments that each fill a frame,
+ * and every segment carries a sequence number so the receiver can put them back in order and drop
+ * repeats. Closing the stream sends an empty segment after the last one, which ends the stream for
+ * the receiver.
+ *
+ * <p>Segments are only sent in the session that the first one was sent in. If data to the receiver
+ * is given up on, the receiver starts over and the stream fails, since segments may have been lost.
+ */
+public class SoundOutputStream extends OutputStream {
+  
+  /**
+   * Listener for {@link SoundOutputStream}.
+   */
+  interface Listener {
+    
+    /**
+     * Triggered once the stream is closed or has failed.
+     */
+    void onStreamClosed(int target, SoundOutputStream stream);
+  }
+  
+  /**
+   * The most segments that may be waiting for an ACK. This is half the sequence numbers so that the
+   * receiver can always tell a repeated segment from a new one.
+   */
+  static final int MAX_PENDING_SEGMENTS = Constants.STREAM_SEQUENCE_NUMBERS / 2;
+  
+  private final Output out;
+  private final int target;
+  private final byte[] buffer;
+  private final Listener listener;
+  
+  /**
+   * Segments that have been sent but not yet ACKed.
+   */
+  private final List<CompletableFuture<Void>> pendingSegments;
+  
+  private int bufferSize;
+  private int nextSequence;
+  private boolean isClosed;
+  
+  /**
+   * The session that segments are sent in, or -1 until the first one is sent.
+   */
+  private int session;
+  
+  SoundOutputStream(Output out, int target, Listener listener) {
+    this.out = out;
+    this.target = target;
+    this.buffer = new byte[Constants.STREAM_MAX_SEGMENT_LENGTH];
+    this.pendingSegments = new ArrayList<>();
+    this.listener = listener;
+    this.session = -1;
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    checkOpen();
+
+    buffer[bufferSize++] = (byte) b;
+    
+    if (bufferSize == buffer.length) {
+      sendBuffer();
+    }
+  }
+  
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    
+    while (len > 0) {
+      int length = Math.min(len, buffer.length - bufferSize);
+
+      System.arraycopy(b, off, buffer, bufferSize, length);
+      bufferSize += length;
+      off += length;
+      len -= length;
+      
+      if (bufferSize == buffer.length) {
+        sendBuffer();
+      }
+    }
+  }
+  
+  /**
+   * Sends any buffered bytes and blocks until every segment sent so far has been ACKed.
+   * 
+   * @throws IOException if a segment could not be delivered, after which the stream is unusable
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    checkOpen();
+    
+    if (bufferSize > 0) {
+      sendBuffer();
+    }
+    
+    try {
+      for (CompletableFuture<Void> segment : pendingSegments) {
+        segment.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      markClosed();
+      throw new IOException("Segment could not be delivered", e.getCause());
+    }
+    
+    pendingSegments.clear();
+  }
+  
+  /**
+   * Flushes the stream, stops accepting bytes and blocks until the receiver has been told that the
+   * stream has ended.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (isClosed) {
+      return;
+    }
+
+    try {
+      flush();
+      sendBuffer();
+      flush();
+    } finally {
+      markClosed();
+    }
+  }
+  
+  /**
+   * Sends the buffered bytes as the next segment, which ends the stream if it is empty, first
+   * waiting for the oldest segment to be ACKed if there are too many pending.
+   */
+  private void sendBuffer() throws IOException {
+    try {
+      while (pendingSegments.size() >= MAX_PENDING_SEGMENTS) {
+        pendingSegments.remove(0).get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      markClosed();
+      throw new IOException("Segment could not be delivered", e.getCause());
+    }
+    
+    if (session == -1) {
+      session = out.getSession(target);
+    }
+    pendingSegments.add(
+        out.sendStreamSegment(target, session, nextSequence, buffer, 0, bufferSize));
+
+    nextSequence = (nextSequence + 1) % Constants.STREAM_SEQUENCE_NUMBERS;
+    bufferSize = 0;
+  }
+  
+  private void markClosed() {
+    isClosed = true;
+    listener.onStreamClosed(target, this);
+  }
+  
+  private void checkOpen() throws IOException {
+    if (isClosed) {
+      throw new IOException("Stream closed");
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package com.alanrussian.networkingproject.stream;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.alanrussian.networkingproject.in.Input;
+import com.alanrussian.networkingproject.out.Output;
+
+/**
+ * Reliable, in-order byte streams between this computer and every other computer. There is one
+ * {@link SoundOutputStream} per target and one {@link SoundInputStream} per source at a time. A
+ * stream is let go of once it has ended, so that the next one to or from that computer is new.
+ */
+public class SoundStreams {
+  
+  private final Output out;
+  private final Map<Integer, SoundOutputStream> targetsToOutputStream;
+  private final Map<Integer, SoundInputStream> sourcesToInputStream;
+  
+  private final Input.StreamListener streamListener = new Input.StreamListener() {
+    @Override
+    public void onStreamSegmentReceived(int source, int sequence, byte[] data) {
+      handleStreamSegmentReceived(source, sequence, data);
+    }
+    
+    @Override
+    public void onStreamReset(int source) {
+      handleStreamReset(source);
+    }
+  };
+  
+  private final SoundOutputStream.Listener outputStreamListener = new SoundOutputStream.Listener() {
+    @Override
+    public void onStreamClosed(int target, SoundOutputStream stream) {
+      removeStream(targetsToOutputStream, target, stream);
+    }
+  };
+  
+  private final SoundInputStream.Listener inputStreamListener = new SoundInputStream.Listener() {
+    @Override
+    public void onStreamEnded(int source, SoundInputStream stream) {
+      removeStream(sourcesToInputStream, source, stream);
+    }
+  };
+
+  public SoundStreams(Input in, Output out) {
+    this.out = out;
+    this.targetsToOutputStream = new HashMap<>();
+    this.sourcesToInputStream = new HashMap<>();
+    
+    in.setStreamListener(streamListener);
+  }
+  
+  /**
+   * Returns the stream of bytes to {@code target}.
+   */
+  public synchronized SoundOutputStream getOutputStream(int target) {
+    if (!targetsToOutputStream.containsKey(target)) {
+      targetsToOutputStream.put(target, new SoundOutputStream(out, target, outputStreamListener));
+    }
+    
+    return targetsToOutputStream.get(target);
+  }
+  
+  /**
+   * Returns the stream of bytes from {@code source}.
+   */
+  public synchronized SoundInputStream getInputStream(int source) {
+    if (!sourcesToInputStream.containsKey(source)) {
+      sourcesToInputStream.put(source, new SoundInputStream(source, inputStreamListener));
+    }
+    
+    return sourcesToInputStream.get(source);
+  }
+  
+  /**
+   * Passes a segment on to the input stream of its source.
+   */
+  private void handleStreamSegmentReceived(int source, int sequence, byte[] data) {
+    getInputStream(source).handleSegment(sequence, data);
+  }
+  
+  /**
+   * Resets the input stream of {@code source}, if there is one, after the source started over.
+   */
+  private void handleStreamReset(int source) {
+    SoundInputStream stream;
+    synchronized (this) {
+      stream = sourcesToInputStream.get(source);
+    }
+    
+    if (stream != null) {
+      stream.handleReset();
+    }
+  }
+  
+  /**
+   * Removes {@code stream} from {@code streams} unless another one has taken its place.
+   */
+  private synchronized <T> void removeStream(Map<Integer, T> streams, int address, T stream) {
+    if (streams.get(address) == stream) {
+      streams.remove(address);
+    }
+  }
+}
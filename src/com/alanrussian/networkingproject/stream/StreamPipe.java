@@ -0,0 +1,144 @@
+package com.alanrussian.networkingproject.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+
+import com.alanrussian.networkingproject.common.SharedExecutors;
+
+/**
+ * Pipes raw bytes to and from another computer: everything read from an {@link InputStream} is
+ * sent to the computer over its {@link SoundOutputStream} and everything it sends back is written
+ * to an {@link OutputStream}. Bytes are copied as they are, with no text parsing or charset
+ * conversion, so that any file or compressed stream can be sent.
+ */
+public class StreamPipe {
+
+  /**
+   * Listener for {@link StreamPipe}.
+   */
+  public interface Listener {
+
+    /**
+     * Triggered when all of the input has been sent and ACKed.
+     */
+    void onInputSent(long bytes);
+
+    /**
+     * Triggered when the other computer has ended its stream and all of it has been written.
+     */
+    void onOutputWritten(long bytes);
+
+    /**
+     * Triggered when copying in either direction stops because of {@code e}.
+     */
+    void onError(IOException e);
+  }
+
+  /**
+   * The number of bytes copied at once in each direction.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final SoundOutputStream soundOut;
+  private final SoundInputStream soundIn;
+  private final InputStream in;
+  private final OutputStream out;
+  private final Listener listener;
+
+  private Future<?> sendFuture;
+  private Future<?> receiveFuture;
+
+  private final Runnable sendRunnable = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        long bytes = copy(in, soundOut, false /* flushEachRead */);
+        soundOut.close();
+        listener.onInputSent(bytes);
+      } catch (InterruptedIOException e) {
+        // The pipe has been closed.
+      } catch (IOException e) {
+        listener.onError(e);
+      }
+    }
+  };
+
+  private final Runnable receiveRunnable = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        long bytes = copy(soundIn, out, true /* flushEachRead */);
+        out.flush();
+        listener.onOutputWritten(bytes);
+      } catch (InterruptedIOException e) {
+        // The pipe has been closed.
+      } catch (IOException e) {
+        listener.onError(e);
+      }
+    }
+  };
+
+  /**
+   * Starts piping.
+   *
+   * @param peer the computer to send {@code in} to and to receive {@code out} from
+   */
+  public StreamPipe(
+      SoundStreams streams,
+      int peer,
+      InputStream in,
+      OutputStream out,
+      Listener listener) {
+
+    this.soundOut = streams.getOutputStream(peer);
+    this.soundIn = streams.getInputStream(peer);
+    this.in = in;
+    this.out = out;
+    this.listener = listener;
+
+    scheduleTasks();
+  }
+
+  /**
+   * Stops piping. Bytes that have been read but not sent are dropped.
+   */
+  public void close() {
+    sendFuture.cancel(true /* mayInterruptIfRunning */);
+    receiveFuture.cancel(true /* mayInterruptIfRunning */);
+    soundIn.close();
+  }
+
+  private void scheduleTasks() {
+    // Both directions block, so each runs on a worker until its input ends.
+    sendFuture = SharedExecutors.getInstance().getWorkers().submit(sendRunnable);
+    receiveFuture = SharedExecutors.getInstance().getWorkers().submit(receiveRunnable);
+  }
+
+  /**
+   * Copies {@code from} to {@code to} until {@code from} ends.
+   *
+   * @param flushEachRead whether to flush {@code to} after every read, so that bytes that arrive
+   *     slowly are passed on right away
+   * @return the number of bytes copied
+   */
+  private static long copy(InputStream from, OutputStream to, boolean flushEachRead)
+      throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long bytes = 0;
+
+    int length;
+    while ((length = from.read(buffer)) != -1) {
+      to.write(buffer, 0, length);
+      bytes += length;
+
+      if (flushEachRead) {
+        to.flush();
+      }
+    }
+
+    return bytes;
+  }
+}
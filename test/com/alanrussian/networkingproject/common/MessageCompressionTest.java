@@ -0,0 +1,92 @@
+package com.alanrussian.networkingproject.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class MessageCompressionTest {
+
+  @Test
+  public void shortLineIsCompressedAndRestored() throws DataFormatException {
+    byte[] data = "Can you send me the file again please?".getBytes(Constants.CHARSET);
+
+    byte[] compressedData = MessageCompression.compress(data);
+
+    assertNotNull(compressedData);
+    assertTrue(compressedData.length < data.length);
+    assertArrayEquals(data, MessageCompression.decompress(compressedData));
+  }
+
+  @Test
+  public void emptyMessageIsRestored() throws DataFormatException {
+    byte[] compressedData = MessageCompression.compress(new byte[0]);
+
+    if (compressedData != null) {
+      assertArrayEquals(new byte[0], MessageCompression.decompress(compressedData));
+    }
+  }
+
+  @Test
+  public void incompressibleDataIsLeftAlone() {
+    byte[] data = new byte[500];
+    new Random(1).nextBytes(data);
+
+    assertNull(MessageCompression.compress(data));
+  }
+
+  @Test
+  public void longestMessageIsRestored() throws DataFormatException {
+    byte[] line = "The sound is too quiet, can you turn up the audio? ".getBytes(Constants.CHARSET);
+    byte[] data = new byte[Constants.MESSAGE_MAX_LENGTH];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = line[i % line.length];
+    }
+
+    assertArrayEquals(data, MessageCompression.decompress(MessageCompression.compress(data)));
+  }
+
+  @Test
+  public void dataLongerThanAMessageIsNotDecompressed() {
+    byte[] data = new byte[Constants.MESSAGE_MAX_LENGTH + 1];
+    Arrays.fill(data, (byte) 'a');
+
+    // MessageCompression never produces this, so it is deflated without the dictionary, which is
+    // still valid since nothing refers back to it.
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true /* nowrap */);
+    deflater.setInput(data);
+    deflater.finish();
+    byte[] buffer = new byte[data.length];
+    byte[] compressedData = Arrays.copyOf(buffer, deflater.deflate(buffer));
+    deflater.end();
+
+    try {
+      MessageCompression.decompress(compressedData);
+      fail();
+    } catch (DataFormatException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void truncatedDataIsNotDecompressed() {
+    byte[] data =
+        "Hello, are you there? I didn't get the last message.".getBytes(Constants.CHARSET);
+    byte[] compressedData = MessageCompression.compress(data);
+
+    try {
+      MessageCompression.decompress(Arrays.copyOf(compressedData, compressedData.length / 2));
+      fail();
+    } catch (DataFormatException e) {
+      // Expected.
+    }
+  }
+}
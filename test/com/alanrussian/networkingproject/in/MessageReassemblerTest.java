@@ -0,0 +1,54 @@
+package com.alanrussian.networkingproject.in;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageReassemblerTest {
+
+  private static final int SOURCE = 1;
+
+  private MessageReassembler reassembler;
+
+  @Before
+  public void setUp() {
+    reassembler = new MessageReassembler();
+  }
+
+  @Test
+  public void fragmentsAreJoinedInAnyOrder() {
+    assertNull(reassembler.addFragment(SOURCE, 3, 1, true /* isLast */, new byte[] {3, 4}));
+    assertArrayEquals(
+        new byte[] {1, 2, 3, 4},
+        reassembler.addFragment(SOURCE, 3, 0, false /* isLast */, new byte[] {1, 2}));
+  }
+
+  @Test
+  public void repeatedFragmentIsDropped() {
+    assertArrayEquals(
+        new byte[] {1}, reassembler.addFragment(SOURCE, 0, 0, true /* isLast */, new byte[] {1}));
+    assertNull(reassembler.addFragment(SOURCE, 0, 0, true /* isLast */, new byte[] {1}));
+  }
+
+  @Test
+  public void firstMessageAfterRestartIsReceived() {
+    reassembler.addFragment(SOURCE, 0, 0, true /* isLast */, new byte[] {1});
+    reassembler.handleSourceRestarted(SOURCE);
+
+    assertArrayEquals(
+        new byte[] {2}, reassembler.addFragment(SOURCE, 0, 0, true /* isLast */, new byte[] {2}));
+  }
+
+  @Test
+  public void fragmentsFromBeforeRestartAreNotJoined() {
+    reassembler.addFragment(SOURCE, 0, 1, true /* isLast */, new byte[] {9});
+    reassembler.handleSourceRestarted(SOURCE);
+
+    assertNull(reassembler.addFragment(SOURCE, 0, 0, false /* isLast */, new byte[] {1}));
+    assertArrayEquals(
+        new byte[] {1, 2},
+        reassembler.addFragment(SOURCE, 0, 1, true /* isLast */, new byte[] {2}));
+  }
+}
@@ -0,0 +1,82 @@
+package com.alanrussian.networkingproject.in.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alanrussian.networkingproject.common.LinkProfile;
+
+public class AckAggregatorTest {
+
+  private static final int SOURCE = 1;
+
+  private AckAggregator aggregator;
+  private int restarts;
+
+  @Before
+  public void setUp() {
+    restarts = 0;
+    aggregator = new AckAggregator(LinkProfile.BALANCED, new AckAggregator.Listener() {
+      @Override
+      public void onAckReady(int target, int acknowledgedSequences) {}
+
+      @Override
+      public void onSourceRestarted(int source) {
+        restarts++;
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    aggregator.close();
+  }
+
+  @Test
+  public void repeatedFrameIsAcknowledgedAgain() {
+    assertTrue(aggregator.addDataFrame(SOURCE, 0, -1));
+    assertEquals(0x1, aggregator.takePendingAck(SOURCE));
+
+    assertFalse(aggregator.addDataFrame(SOURCE, 0, -1));
+    assertEquals(0x1, aggregator.takePendingAck(SOURCE));
+  }
+
+  @Test
+  public void repeatedStartFrameIsAcknowledgedAgain() {
+    assertTrue(aggregator.addDataFrame(SOURCE, 0, 3));
+    assertEquals(0x1, aggregator.takePendingAck(SOURCE));
+
+    assertFalse(aggregator.addDataFrame(SOURCE, 0, 3));
+    assertEquals(0x1, aggregator.takePendingAck(SOURCE));
+    assertEquals(1, restarts);
+  }
+
+  @Test
+  public void restartedSenderStartsOver() {
+    for (int sequence = 0; sequence < 4; sequence++) {
+      assertTrue(aggregator.addDataFrame(SOURCE, sequence, (sequence == 0) ? 3 : -1));
+    }
+    aggregator.takePendingAck(SOURCE);
+
+    // Sequence number 0 is still marked as received from before the restart.
+    assertTrue(aggregator.addDataFrame(SOURCE, 0, 11));
+    assertEquals(0x1, aggregator.takePendingAck(SOURCE));
+    assertTrue(aggregator.addDataFrame(SOURCE, 1, 11));
+    assertEquals(2, restarts);
+  }
+
+  @Test
+  public void senderThatGaveUpStartsOver() {
+    assertTrue(aggregator.addDataFrame(SOURCE, 0, 3));
+    assertTrue(aggregator.addDataFrame(SOURCE, 1, -1));
+
+    // Frames 2 to 5 were never heard.
+    assertTrue(aggregator.addDataFrame(SOURCE, 6, 4));
+    assertTrue(aggregator.addDataFrame(SOURCE, 7, 4));
+    assertFalse(aggregator.addDataFrame(SOURCE, 6, -1));
+  }
+}
@@ -0,0 +1,235 @@
+package com.alanrussian.networkingproject.in.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.alanrussian.networkingproject.common.LinkProfile;
+import com.alanrussian.networkingproject.common.SoundFormat;
+import com.alanrussian.networkingproject.in.audio.frame.FrameWatcher;
+import com.alanrussian.networkingproject.in.audio.math.SoundMath;
+import com.alanrussian.networkingproject.in.audio.math.ToneDetector;
+import com.alanrussian.networkingproject.out.audio.SignalRenderer;
+import com.alanrussian.networkingproject.out.audio.frame.DataFrame;
+import com.alanrussian.networkingproject.out.audio.wave.MixedWave;
+import com.alanrussian.networkingproject.out.audio.wave.SineWave;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Checks that sound processed in single precision gives the same magnitudes, within {@link
+ * #MAGNITUDE_TOLERANCE}, and the same frames as sound processed in double precision.
+ */
+public class BandDecoderTest {
+
+  private static final LinkProfile PROFILE = LinkProfile.BALANCED;
+  private static final LinkProfile.Band BAND = LinkProfile.Band.FORWARD;
+  private static final SoundFormat FORMAT = PROFILE.getSoundFormat();
+
+  private static final int PARTITIONS = 16;
+  private static final int SAMPLES_PER_PARTITION =
+      FORMAT.getSampleCount(PROFILE.getBitDuration()) / PARTITIONS;
+
+  /**
+   * The most that a single precision magnitude may differ from the double precision one, as a
+   * fraction of the largest magnitude in the sound. Single precision keeps about seven digits.
+   */
+  private static final double MAGNITUDE_TOLERANCE = 1e-5;
+
+  private static final byte[] DATA = "Single".getBytes(StandardCharsets.US_ASCII);
+
+  @Test
+  public void magnitudesMatchInSinglePrecision() {
+    byte[] sound = createFrameSound();
+    ToneDetector onDetector =
+        new ToneDetector(PROFILE.getFrequencyOn(BAND), SAMPLES_PER_PARTITION, getSampleRate());
+    ToneDetector offDetector =
+        new ToneDetector(PROFILE.getFrequencyOff(BAND), SAMPLES_PER_PARTITION, getSampleRate());
+
+    int decisions = 0;
+    for (int offset = 0; offset + getChunkLength() <= sound.length; offset += getChunkLength()) {
+      double[] samples = new double[SAMPLES_PER_PARTITION * PARTITIONS];
+      float[] singleSamples = new float[samples.length];
+      FORMAT.toSamples(sound, offset, samples, samples.length);
+      FORMAT.toSamples(sound, offset, singleSamples, singleSamples.length);
+
+      double[] onMagnitudes = onDetector.getMagnitudes(samples, PARTITIONS);
+      double[] offMagnitudes = offDetector.getMagnitudes(samples, PARTITIONS);
+      double tolerance =
+          MAGNITUDE_TOLERANCE * Math.max(getMax(onMagnitudes), getMax(offMagnitudes));
+      double[] singleOnMagnitudes = onDetector.getMagnitudes(singleSamples, PARTITIONS);
+      double[] singleOffMagnitudes = offDetector.getMagnitudes(singleSamples, PARTITIONS);
+      assertArrayEquals(onMagnitudes, singleOnMagnitudes, tolerance);
+      assertArrayEquals(offMagnitudes, singleOffMagnitudes, tolerance);
+
+      // Each partition is decided the same way unless its tones are closer than the tolerance.
+      for (int i = 0; i < PARTITIONS; i++) {
+        if (Math.abs(onMagnitudes[i] - offMagnitudes[i]) > 2 * tolerance) {
+          assertEquals(
+              "Partition " + i,
+              onMagnitudes[i] > offMagnitudes[i],
+              singleOnMagnitudes[i] > singleOffMagnitudes[i]);
+          decisions++;
+        }
+      }
+    }
+
+    assertTrue(decisions > 0);
+  }
+
+  @Test
+  public void soundMathMatchesInSinglePrecision() {
+    int length = 100;
+    // Not a multiple of the partitions measured side by side, so the leftovers are checked too.
+    int partitions = 7;
+    Random random = new Random(1);
+
+    double[] cosines = new double[length];
+    double[] sines = new double[length];
+    float[] singleCosines = new float[length];
+    float[] singleSines = new float[length];
+    for (int i = 0; i < length; i++) {
+      double angle = 2.0 * Math.PI * 9 * i / length;
+      cosines[i] = Math.cos(angle);
+      sines[i] = Math.sin(angle);
+      singleCosines[i] = (float) cosines[i];
+      singleSines[i] = (float) sines[i];
+    }
+
+    double[] samples = new double[length * partitions];
+    float[] singleSamples = new float[samples.length];
+    for (int i = 0; i < samples.length; i++) {
+      singleSamples[i] = (float) random.nextGaussian();
+      samples[i] = singleSamples[i];
+    }
+
+    double[] magnitudes = new double[partitions];
+    double[] singleMagnitudes = new double[partitions];
+    SoundMath.getMagnitudes(samples, partitions, cosines, sines, magnitudes);
+    SoundMath.getMagnitudes(
+        singleSamples, partitions, singleCosines, singleSines, singleMagnitudes);
+
+    assertArrayEquals(magnitudes, singleMagnitudes, MAGNITUDE_TOLERANCE * getMax(magnitudes));
+  }
+
+  @Test
+  public void frameIsDecodedTheSameInSinglePrecision() {
+    byte[] sound = createFrameSound();
+
+    List<byte[]> frames = new ArrayList<>();
+    BandDecoder decoder = createDecoder(frames);
+    for (int offset = 0; offset + getChunkLength() <= sound.length; offset += getChunkLength()) {
+      double[] samples = new double[SAMPLES_PER_PARTITION * PARTITIONS];
+      FORMAT.toSamples(sound, offset, samples, samples.length);
+      decoder.process(samples, PARTITIONS);
+    }
+
+    List<byte[]> singleFrames = new ArrayList<>();
+    BandDecoder singleDecoder = createDecoder(singleFrames);
+    for (int offset = 0; offset + getChunkLength() <= sound.length; offset += getChunkLength()) {
+      float[] samples = new float[SAMPLES_PER_PARTITION * PARTITIONS];
+      FORMAT.toSamples(sound, offset, samples, samples.length);
+      singleDecoder.process(samples, PARTITIONS);
+    }
+
+    assertEquals(1, frames.size());
+    assertArrayEquals(DATA, frames.get(0));
+    assertEquals(1, singleFrames.size());
+    assertArrayEquals(DATA, singleFrames.get(0));
+  }
+
+  /**
+   * Returns the sound of a data frame with silence around it, quietly and with noise like a
+   * recording.
+   */
+  private static byte[] createFrameSound() {
+    double secondOffset = PROFILE.getFrequencySecondOffset();
+    SignalRenderer renderer = new SignalRenderer(
+        PROFILE,
+        new MixedWave(ImmutableList.of(
+            new SineWave(PROFILE.getFrequencyOff(BAND)),
+            new SineWave(PROFILE.getFrequencyOff(BAND) + secondOffset))),
+        new MixedWave(ImmutableList.of(
+            new SineWave(PROFILE.getFrequencyOn(BAND)),
+            new SineWave(PROFILE.getFrequencyOn(BAND) + secondOffset))));
+
+    List<Boolean> signals = new ArrayList<>(Collections.nCopies(4, false));
+    signals.addAll(new SignalsFrame(renderer).getFrameSignals());
+    signals.addAll(Collections.nCopies(6, false));
+
+    byte[] rendered = renderer.render(signals);
+    double[] samples = new double[rendered.length / FORMAT.getFrameSize()];
+    FORMAT.toSamples(rendered, 0, samples, samples.length);
+
+    Random random = new Random(1);
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = 0.03 * (0.5 * samples[i] + 0.5 * random.nextGaussian());
+    }
+
+    return FORMAT.toBytes(samples);
+  }
+
+  private static BandDecoder createDecoder(final List<byte[]> frames) {
+    return new BandDecoder(
+        PROFILE,
+        BAND,
+        PARTITIONS,
+        SAMPLES_PER_PARTITION,
+        new FrameWatcher.Listener() {
+          @Override
+          public void onFrameStartFound(double confidence) {}
+
+          @Override
+          public void onDataFrameFound(
+              int source,
+              int target,
+              int sequence,
+              int session,
+              int acknowledgedSequences,
+              byte[] data) {
+            frames.add(data);
+          }
+
+          @Override
+          public void onAckFrameFound(int source, int target, int acknowledgedSequences) {}
+        });
+  }
+
+  private static int getSampleRate() {
+    return FORMAT.getSampleRate();
+  }
+
+  private static int getChunkLength() {
+    return SAMPLES_PER_PARTITION * PARTITIONS * FORMAT.getFrameSize();
+  }
+
+  private static double getMax(double[] values) {
+    double max = 0.0;
+    for (double value : values) {
+      max = Math.max(max, value);
+    }
+
+    return max;
+  }
+
+  /**
+   * A data frame whose on/off signals can be read.
+   */
+  private static class SignalsFrame extends DataFrame {
+
+    private SignalsFrame(SignalRenderer renderer) {
+      super(1, 3, 0, -1, 0, renderer, DATA);
+    }
+
+    private List<Boolean> getFrameSignals() {
+      return getSignals();
+    }
+  }
+}
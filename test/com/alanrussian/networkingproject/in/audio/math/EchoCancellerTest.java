@@ -0,0 +1,116 @@
+package com.alanrussian.networkingproject.in.audio.math;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EchoCancellerTest {
+
+  private static final int SAMPLE_RATE = 8000;
+  private static final int FILTER_LENGTH = 80;
+  private static final int TRAINING_LENGTH = 1600;
+  private static final int MAX_DELAY = 2000;
+
+  /**
+   * Samples that the echo is heard after where the sound is placed.
+   */
+  private static final int ECHO_DELAY = 600;
+
+  private static final int BURST_LENGTH = 4000;
+  private static final int SILENCE_LENGTH = 4000;
+  private static final int BURSTS = 3;
+
+  /**
+   * Samples that each tone of a burst lasts, like the bits of a frame.
+   */
+  private static final int TONE_LENGTH = 400;
+
+  private static final int CHUNK_LENGTH = 256;
+
+  @Test
+  public void delayedEchoIsFoundAndRemoved() {
+    EchoCanceller canceller = new EchoCanceller(FILTER_LENGTH, TRAINING_LENGTH, MAX_DELAY);
+    double[] played = createPlayedSound(canceller);
+    double[] recorded = new double[played.length];
+    Random random = new Random(1);
+    for (int p = 0; p < recorded.length; p++) {
+      double echo = 0.0;
+      if (p >= ECHO_DELAY) {
+        echo += 0.4 * played[p - ECHO_DELAY];
+      }
+      if (p >= ECHO_DELAY + 10) {
+        // The room echoes a little later too.
+        echo -= 0.1 * played[p - ECHO_DELAY - 10];
+      }
+      recorded[p] = echo + 0.001 * random.nextGaussian();
+    }
+
+    double echoEnergy = getLastBurstEnergy(recorded);
+    process(canceller, recorded);
+    double leftOverEnergy = getLastBurstEnergy(recorded);
+
+    int delay = canceller.getDelay();
+    assertTrue("Delay " + delay, (delay <= ECHO_DELAY) && (delay > ECHO_DELAY - FILTER_LENGTH / 2));
+    // At least 20 dB of the echo is removed.
+    assertTrue(leftOverEnergy < echoEnergy / 100);
+  }
+
+  @Test
+  public void soundThatIsNotHeardLeavesDelayUnknown() {
+    EchoCanceller canceller = new EchoCanceller(FILTER_LENGTH, TRAINING_LENGTH, MAX_DELAY);
+    double[] played = createPlayedSound(canceller);
+    double[] recorded = new double[played.length];
+    Random random = new Random(1);
+    for (int p = 0; p < recorded.length; p++) {
+      recorded[p] = 0.001 * random.nextGaussian();
+    }
+
+    process(canceller, recorded);
+
+    assertEquals(-1, canceller.getDelay());
+  }
+
+  /**
+   * Returns bursts of tones with silence before each one, and adds them as references.
+   */
+  private static double[] createPlayedSound(EchoCanceller canceller) {
+    double[] played = new double[(SILENCE_LENGTH + BURST_LENGTH) * BURSTS + SILENCE_LENGTH];
+    for (int burst = 0; burst < BURSTS; burst++) {
+      int start = SILENCE_LENGTH + burst * (SILENCE_LENGTH + BURST_LENGTH);
+      double[] samples = new double[BURST_LENGTH];
+      for (int i = 0; i < BURST_LENGTH; i++) {
+        double frequency = ((i / TONE_LENGTH) % 2 == 0) ? 1000 : 1500;
+        samples[i] = 0.8 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+      }
+
+      System.arraycopy(samples, 0, played, start, BURST_LENGTH);
+      canceller.addReference(start, samples);
+    }
+    return played;
+  }
+
+  private static void process(EchoCanceller canceller, double[] recorded) {
+    for (int position = 0; position < recorded.length; position += CHUNK_LENGTH) {
+      int count = Math.min(CHUNK_LENGTH, recorded.length - position);
+      double[] chunk = new double[count];
+      System.arraycopy(recorded, position, chunk, 0, count);
+      canceller.process(chunk, count, position);
+      System.arraycopy(chunk, 0, recorded, position, count);
+    }
+  }
+
+  /**
+   * Returns the energy of the echo of the last burst, after the filter has had time to train.
+   */
+  private static double getLastBurstEnergy(double[] recorded) {
+    int start = SILENCE_LENGTH + (BURSTS - 1) * (SILENCE_LENGTH + BURST_LENGTH) + ECHO_DELAY;
+    double energy = 0.0;
+    for (int p = start + TRAINING_LENGTH; p < start + BURST_LENGTH; p++) {
+      energy += recorded[p] * recorded[p];
+    }
+    return energy;
+  }
+}
@@ -0,0 +1,127 @@
+package com.alanrussian.networkingproject.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SoundInputStreamTest {
+
+  private static final int SOURCE = 1;
+
+  private SoundInputStream stream;
+  private boolean hasEnded;
+
+  @Before
+  public void setUp() {
+    hasEnded = false;
+    stream = new SoundInputStream(SOURCE, new SoundInputStream.Listener() {
+      @Override
+      public void onStreamEnded(int source, SoundInputStream stream) {
+        assertEquals(SOURCE, source);
+        hasEnded = true;
+      }
+    });
+  }
+
+  @Test
+  public void reorderedSegmentsAreReadInOrder() throws IOException {
+    stream.handleSegment(2, new byte[] {3});
+    stream.handleSegment(0, new byte[] {1});
+    assertEquals(1, stream.available());
+
+    stream.handleSegment(1, new byte[] {2});
+    stream.handleSegment(3, new byte[0]);
+
+    assertArrayEquals(new byte[] {1, 2, 3}, readAll());
+  }
+
+  @Test
+  public void repeatedSegmentsAreDropped() throws IOException {
+    stream.handleSegment(0, new byte[] {1});
+    stream.handleSegment(0, new byte[] {1});
+    stream.handleSegment(2, new byte[] {3});
+    stream.handleSegment(1, new byte[] {2});
+    stream.handleSegment(2, new byte[] {3});
+    stream.handleSegment(1, new byte[] {2});
+    stream.handleSegment(3, new byte[0]);
+
+    assertArrayEquals(new byte[] {1, 2, 3}, readAll());
+  }
+
+  @Test
+  public void streamEndsOnceReadToTheEnd() throws IOException {
+    stream.handleSegment(0, new byte[] {1});
+    stream.handleSegment(1, new byte[0]);
+    assertFalse(hasEnded);
+
+    assertEquals(1, stream.read());
+    assertEquals(-1, stream.read());
+    assertTrue(hasEnded);
+  }
+
+  @Test
+  public void closedStreamEndsAtTheEndSegment() {
+    stream.handleSegment(0, new byte[] {1});
+    stream.close();
+    assertFalse(hasEnded);
+
+    stream.handleSegment(2, new byte[0]);
+    stream.handleSegment(1, new byte[] {2});
+    assertTrue(hasEnded);
+  }
+
+  @Test
+  public void restartedSenderCutsOffStream() throws IOException {
+    for (int sequence = 0; sequence < 70; sequence++) {
+      stream.handleSegment(sequence, new byte[] {(byte) sequence});
+    }
+    stream.handleSegment(71, new byte[] {71});
+
+    stream.handleReset();
+    stream.handleSegment(0, new byte[] {0});
+    assertEquals(70, stream.available());
+
+    byte[] b = new byte[70];
+    assertEquals(70, stream.read(b, 0, b.length));
+    try {
+      stream.read();
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertTrue(hasEnded);
+  }
+
+  @Test
+  public void restartBeforeAnyDataStartsOver() throws IOException {
+    // Segment 0 was given up on, so these will never be in order.
+    stream.handleSegment(1, new byte[] {1});
+    stream.handleSegment(2, new byte[] {2});
+
+    stream.handleReset();
+    assertFalse(hasEnded);
+
+    stream.handleSegment(0, new byte[] {5});
+    stream.handleSegment(1, new byte[0]);
+
+    assertArrayEquals(new byte[] {5}, readAll());
+  }
+
+  private byte[] readAll() throws IOException {
+    byte[] b = new byte[16];
+    int length = 0;
+    int read;
+    while ((read = stream.read(b, length, b.length - length)) != -1) {
+      length += read;
+    }
+    return Arrays.copyOf(b, length);
+  }
+}